@@ -0,0 +1,74 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Compares passing frames between two processes by copying them into byte
+ * arrays (over a SynchronousChannel&lt;byte[]&gt;) with passing pooled direct buffers
+ * over a BufferChannel.
+ * <p>
+ * Usage: BufferBench [frames] [frameSize]
+ * </p>
+ */
+public class BufferBench {
+
+  public static void main(String[] args) throws Exception {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+    for (int round = 0; round < 2; round++) {
+      report("copy", frames, copying(frames, size));
+      report("pooled", frames, pooled(frames, size));
+    }
+  }
+
+  static long copying(int frames, int size) throws InterruptedException {
+    SynchronousChannel<byte[]> channel = new SynchronousChannel<byte[]>("copy");
+    ByteBuffer input = ByteBuffer.allocateDirect(size);
+    Thread receiver = new Thread(() -> {
+        long sum = 0;
+        for (int i = 0; i < frames; i++) sum += Command.receive(channel)[0];
+        if (sum == Long.MIN_VALUE) System.out.println(sum);
+    }, "receiver");
+    receiver.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) {
+      input.clear();
+      input.put(0, (byte) i);
+      byte[] frame = new byte[size];
+      input.get(frame);
+      Command.send(channel, frame);
+    }
+    receiver.join();
+    return System.nanoTime() - start;
+  }
+
+  static long pooled(int frames, int size) throws InterruptedException {
+    BufferChannel channel = new BufferChannel("pooled");
+    BufferPool pool = new BufferPool(size, true);
+    Thread receiver = new Thread(() -> {
+        long sum = 0;
+        for (int i = 0; i < frames; i++) {
+          PooledBuffer frame = Command.receive(channel);
+          sum += frame.buffer().get(0);
+          frame.release();
+        }
+        if (sum == Long.MIN_VALUE) System.out.println(sum);
+    }, "receiver");
+    receiver.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) {
+      PooledBuffer frame = pool.acquire();
+      frame.buffer().put(0, (byte) i);
+      Command.send(channel, frame);
+    }
+    receiver.join();
+    System.out.println("pooled buffers allocated: " + pool.getAllocated());
+    return System.nanoTime() - start;
+  }
+
+  static void report(String name, int frames, long nanos) {
+    System.out.println(String.format("%-8s %.0f ns/frame", name, (double) nanos / frames));
+  }
+}
@@ -0,0 +1,91 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures the cost of channels which are created, used once and discarded.
+ * First several processes only create channels; then client processes send
+ * requests to a pool of servers, each request carrying a fresh reply channel
+ * (used for a single reply, then dropped). Reports the channels created per second.
+ * <p>
+ * Usage: ChannelBench [processes] [channels] (channels per process)
+ * </p>
+ */
+public class ChannelBench {
+
+  static class Request {
+    final int value;
+    final SynchronousChannel<Integer> reply;
+
+    Request(int value, SynchronousChannel<Integer> reply) {
+      this.value = value;
+      this.reply = reply;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int channels = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    for (int round = 0; round < 3; round++) {
+      report("create, " + processes + " processes", processes * (long) channels, create(processes, channels));
+      report("create/use/discard, " + processes + " clients", processes * (long) (channels / 10),
+             requestReply(processes, channels / 10));
+    }
+  }
+
+  static long create(int processes, int channels) throws InterruptedException {
+    List<Thread> threads = new ArrayList<Thread>();
+    long[] ids = new long[processes];
+    for (int i = 0; i < processes; i++) {
+      int process = i;
+      threads.add(new Thread(() -> {
+          long sum = 0;
+          for (int j = 0; j < channels; j++) sum += new SynchronousChannel<Integer>().getId();
+          ids[process] = sum;
+      }, "creator" + i));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return System.nanoTime() - start;
+  }
+
+  static long requestReply(int clients, int requests) throws InterruptedException {
+    SynchronousChannel<Request> requestChannel = new SynchronousChannel<Request>("requests");
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < clients; i++) {
+      threads.add(new Thread(() -> {
+          for (int j = 0; j < requests; j++) {
+            SynchronousChannel<Integer> reply = new SynchronousChannel<Integer>();
+            Command.send(requestChannel, new Request(j, reply));
+            if (Command.receive(reply) != j + 1) throw new RuntimeException();
+          }
+      }, "client" + i));
+    }
+    // A request without a reply channel stops a server
+    List<Thread> servers = new ArrayList<Thread>();
+    for (int i = 0; i < clients; i++) {
+      servers.add(new Thread(() -> {
+          Request request;
+          while ((request = Command.receive(requestChannel)).reply != null)
+            Command.send(request.reply, request.value + 1);
+      }, "server" + i));
+    }
+    long start = System.nanoTime();
+    for (Thread server : servers) server.start();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    long elapsed = System.nanoTime() - start;
+    for (int i = 0; i < clients; i++) Command.send(requestChannel, new Request(0, null));
+    for (Thread server : servers) server.join();
+    return elapsed;
+  }
+
+  static void report(String name, long channels, long elapsed) {
+    System.out.println(String.format("%s: %.0f channels/s, %.2f us/channel",
+                                     name, channels / (elapsed / 1e9), elapsed / 1e3 / channels));
+  }
+}
@@ -0,0 +1,94 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures how long each of many producers waits for its messages to be received,
+ * for every channel fairness policy, and for select versus fairSelect.
+ * A fair policy shows a flat 99th percentile across producers.
+ * <p>
+ * Usage: FairnessBench [producers] [messagesPerProducer]
+ * </p>
+ */
+public class FairnessBench {
+
+  public static void main(String[] args) throws Exception {
+    int producers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    for (Fairness fairness : Fairness.values())
+      report("channel " + fairness, channelMatching(fairness, producers, messages));
+    report("select", selectMatching(false, producers, messages));
+    report("fairSelect", selectMatching(true, producers, messages));
+  }
+
+  // All producers send over the same channel to a single consumer
+  static Latencies[] channelMatching(Fairness fairness, int producers, int messages) throws InterruptedException {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bench", fairness);
+    Latencies[] latencies = new Latencies[producers];
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < producers; i++) {
+      Latencies l = latencies[i] = new Latencies();
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < messages; j++) {
+          long start = System.nanoTime();
+          Command.send(ch, j);
+          l.record(System.nanoTime() - start);
+        }
+      }, "producer" + i));
+    }
+    for (Thread t : threads) t.start();
+    for (int i = 0; i < producers * messages; i++)
+      Command.receive(ch);
+    for (Thread t : threads) t.join();
+    return latencies;
+  }
+
+  // Every producer has its own channel; the consumer selects over all of them
+  static Latencies[] selectMatching(boolean fair, int producers, int messages) throws InterruptedException {
+    Latencies[] latencies = new Latencies[producers];
+    List<Action<?,Integer>> selectArgs = new ArrayList<Action<?,Integer>>();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < producers; i++) {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bench" + i);
+      selectArgs.add(Action.receive(ch));
+      Latencies l = latencies[i] = new Latencies();
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < messages; j++) {
+          long start = System.nanoTime();
+          Command.send(ch, j);
+          l.record(System.nanoTime() - start);
+        }
+      }, "producer" + i));
+    }
+    for (Thread t : threads) t.start();
+    for (int i = 0; i < producers * messages; i++) {
+      if (fair) Command.fairSelect(selectArgs);
+      else Command.select(selectArgs);
+    }
+    for (Thread t : threads) t.join();
+    return latencies;
+  }
+
+  static void report(String name, Latencies[] latencies) {
+    long minP99 = Long.MAX_VALUE;
+    long maxP99 = 0;
+    System.out.println(name);
+    for (int i = 0; i < latencies.length; i++) {
+      Latencies l = latencies[i];
+      long p99 = l.percentile(99);
+      minP99 = Math.min(minP99, p99);
+      maxP99 = Math.max(maxP99, p99);
+      System.out.println("  producer " + i
+                         + " p50=" + Latencies.micros(l.percentile(50))
+                         + "us p99=" + Latencies.micros(p99)
+                         + "us max=" + Latencies.micros(l.max()) + "us");
+    }
+    System.out.println("  p99 spread across producers: " + Latencies.micros(minP99)
+                       + "us .. " + Latencies.micros(maxP99) + "us");
+  }
+}
@@ -0,0 +1,85 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+
+/**
+ * Compares the throughput of bridging channels to Flow subscribers using
+ * ChannelPublisher with bridging them using a thread per channel which
+ * loops on Command.receive.
+ * <p>
+ * Usage: FlowBench [bridges] [messagesPerBridge]
+ * </p>
+ */
+public class FlowBench {
+
+  public static void main(String[] args) throws Exception {
+    int bridges = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+    for (int round = 0; round < 3; round++) {
+      report("thread per bridge", bridges, messages, run(false, bridges, messages));
+      report("ChannelPublisher", bridges, messages, run(true, bridges, messages));
+    }
+  }
+
+  static long run(boolean publisher, int bridges, int messages) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(bridges);
+    List<Thread> threads = new ArrayList<Thread>();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < bridges; i++) {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bridge" + i);
+      CountingSubscriber subscriber = new CountingSubscriber(messages, done);
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < messages; j++) Command.send(ch, j);
+      }, "producer" + i));
+
+      if (publisher) {
+        new ChannelPublisher<Integer>(ch).subscribe(subscriber);
+      } else {
+        threads.add(new Thread(() -> {
+          subscriber.onSubscribe(null);
+          for (int j = 0; j < messages; j++) subscriber.onNext(Command.receive(ch));
+        }, "bridge" + i));
+      }
+    }
+    for (Thread t : threads) t.start();
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    for (Thread t : threads) t.join();
+    return elapsed;
+  }
+
+  static void report(String name, int bridges, int messages, long elapsed) {
+    double seconds = elapsed / 1e9;
+    System.out.println(String.format("%-20s %d bridges: %.0f msgs/s (%.2fs)",
+                                     name, bridges, bridges * (double) messages / seconds, seconds));
+  }
+
+  static class CountingSubscriber implements Flow.Subscriber<Integer> {
+    private final int expected;
+    private final CountDownLatch done;
+    private int received = 0;
+
+    CountingSubscriber(int expected, CountDownLatch done) {
+      this.expected = expected;
+      this.done = done;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (subscription != null) subscription.request(Long.MAX_VALUE);
+    }
+
+    public void onNext(Integer value) {
+      if (++received == expected) done.countDown();
+    }
+
+    public void onError(Throwable exc) { }
+
+    public void onComplete() { }
+  }
+}
@@ -0,0 +1,73 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Thousands of receiver processes waiting on a single channel, each with a guard
+ * accepting only the messages addressed to it, fed by a few senders which
+ * address their messages in a (seeded) random order.
+ * Latency is the time from a send starting until the addressed receiver gets the message.
+ * <p>
+ * Parameters: guarded.receivers, guarded.senders, guarded.messages (per receiver)
+ * </p>
+ */
+class GuardedReceiversWorkload extends Workload {
+  private static final long STACK_SIZE = 256 * 1024;
+
+  static class Addressed {
+    final int target;
+    final long sent;
+
+    Addressed(int target, long sent) {
+      this.target = target;
+      this.sent = sent;
+    }
+  }
+
+  GuardedReceiversWorkload() {
+    super("guarded");
+  }
+
+  public Result run(Options options) throws InterruptedException {
+    int receivers = options.getInt("receivers", 2000);
+    int senders = options.getInt("senders", 4);
+    int messages = options.getScaled("messages", 5);
+    Random random = new Random(options.getSeed());
+
+    SynchronousChannel<Addressed> ch = new SynchronousChannel<Addressed>("guarded");
+    List<Integer> targets = new ArrayList<Integer>();
+    for (int i = 0; i < receivers; i++)
+      for (int j = 0; j < messages; j++) targets.add(i);
+    Collections.shuffle(targets, random);
+
+    // Thousands of histograms would not fit in memory; receivers keep raw samples
+    long[][] samples = new long[receivers][messages];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < receivers; i++) {
+      int id = i;
+      threads.add(new Thread(null, () -> {
+        for (int j = 0; j < messages; j++) {
+          Addressed msg = Command.receiveWithGuard(ch, m -> m.target == id);
+          samples[id][j] = System.nanoTime() - msg.sent;
+        }
+      }, "receiver" + i, STACK_SIZE));
+    }
+    for (int i = 0; i < senders; i++) {
+      List<Integer> mine = new ArrayList<Integer>();
+      for (int j = i; j < targets.size(); j += senders) mine.add(targets.get(j));
+      threads.add(new Thread(() -> {
+        for (int target : mine) Command.send(ch, new Addressed(target, System.nanoTime()));
+      }, "sender" + i));
+    }
+
+    long elapsed = runThreads(threads);
+    Histogram latencies = new Histogram();
+    for (long[] receiverSamples : samples)
+      for (long sample : receiverSamples) latencies.record(sample);
+    return new Result((long) receivers * messages, elapsed, latencies);
+  }
+}
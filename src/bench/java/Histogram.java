@@ -0,0 +1,83 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * A latency histogram in the style of HdrHistogram: values (in nanoseconds) are
+ * counted in logarithmic buckets, each split into 64 linear sub-buckets, so
+ * recording is allocation-free and every percentile is exact to within about 1.6%
+ * over the whole range of long values.
+ * Not thread safe; each thread should record into its own instance, and
+ * the instances be added together afterwards.
+ */
+class Histogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+  private long count = 0;
+  private long max = 0;
+  private long min = Long.MAX_VALUE;
+  private double sum = 0;
+
+  public void record(long value) {
+    if (value < 0) value = 0;
+    counts[index(value)]++;
+    count++;
+    sum += value;
+    if (value > max) max = value;
+    if (value < min) min = value;
+  }
+
+  public void add(Histogram other) {
+    for (int i = 0; i < counts.length; i++)
+      counts[i] += other.counts[i];
+    count += other.count;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+    min = Math.min(min, other.min);
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long max() {
+    return max;
+  }
+
+  public long min() {
+    return count == 0 ? 0 : min;
+  }
+
+  public double mean() {
+    return count == 0 ? 0 : sum / count;
+  }
+
+  // Returns the highest value equivalent (up to the histogram precision)
+  // to the value at the given percentile
+  public long percentile(double p) {
+    if (count == 0) return 0;
+    long target = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) return Math.min(max, highestEquivalentValue(i));
+    }
+    return max;
+  }
+
+  // Values below 2*SUB_BUCKETS are counted exactly; above, the value is shifted
+  // right until it has SUB_BUCKET_BITS+1 bits, and the shift selects the bucket.
+  private static int index(long value) {
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    int shift = Math.max(0, msb - SUB_BUCKET_BITS);
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < 2 * SUB_BUCKETS) return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index - shift * SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
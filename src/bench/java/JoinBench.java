@@ -0,0 +1,49 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Measures the throughput of joins (Command.join) over three channels fed by
+ * one sender each, for an increasing number of concurrent joiners.
+ * <p>
+ * Usage: JoinBench [joins] [maxJoiners]
+ * </p>
+ */
+public class JoinBench {
+
+  public static void main(String[] args) throws Exception {
+    int joins = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int maxJoiners = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+    for (int joiners = 1; joiners <= maxJoiners; joiners *= 4) {
+      long nanos = run(joins, joiners);
+      System.out.println(String.format("%3d joiners: %.0f joins/s", joiners, joins / (nanos / 1e9)));
+    }
+  }
+
+  static long run(int joins, int joiners) throws InterruptedException {
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 3; i++) {
+      SynchronousChannel<Integer> channel = new SynchronousChannel<Integer>("join" + i);
+      channels.add(channel);
+      threads.add(new Thread(() -> { for (int j = 0; j < joins; j++) Command.send(channel, j); }, "sender" + i));
+    }
+    List<Action<?,Integer>> actions =
+      Arrays.asList(Action.receive(channels.get(0)), Action.receive(channels.get(1)), Action.receive(channels.get(2)));
+    AtomicInteger remaining = new AtomicInteger(joins);
+    for (int i = 0; i < joiners; i++) {
+      threads.add(new Thread(() -> {
+          while (remaining.decrementAndGet() >= 0) Command.join(actions);
+      }, "joiner" + i));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return System.nanoTime() - start;
+  }
+}
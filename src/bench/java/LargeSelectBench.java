@@ -0,0 +1,63 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Measures selects over many channels. First a single process selects over
+ * all the channels, while another sends over a channel chosen at random, so that
+ * the cost of a select is mostly that of making (and dropping) its offers.
+ * Then several processes select over all the channels, while as many processes
+ * select a send over two channels chosen at random: selects on both sides abort each
+ * other's synchronizations, so a select is re-armed several times before it commits.
+ * <p>
+ * Usage: LargeSelectBench [channels] [processes] [rounds]
+ * </p>
+ */
+public class LargeSelectBench {
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int processes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 4000;
+
+    for (int run = 0; run < 3; run++) {
+      report(n + " channels, 1 process", 1, rounds, run(n, 1, rounds, false));
+      report(n + " channels, " + processes + " processes", processes, rounds, run(n, processes, rounds, true));
+    }
+  }
+
+  static long run(int n, int processes, int rounds, boolean selectingSenders) throws InterruptedException {
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    for (int i = 0; i < n; i++) channels.add(new SynchronousChannel<Integer>());
+    List<Action<?,Integer>> receives = new ArrayList<Action<?,Integer>>();
+    for (SynchronousChannel<Integer> channel : channels) receives.add(Action.receive(channel));
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < processes; i++) {
+      Random random = new Random(i);
+      threads.add(new Thread(() -> {
+          for (int j = 0; j < rounds; j++) {
+            if (selectingSenders)
+              Command.select(Arrays.<Action<?,Integer>>asList(Action.send(channels.get(random.nextInt(n)), j),
+                                                              Action.send(channels.get(random.nextInt(n)), j)));
+            else
+              Command.send(channels.get(random.nextInt(n)), j);
+          }
+      }, "sender" + i));
+      threads.add(new Thread(() -> { for (int j = 0; j < rounds; j++) Command.select(receives); }, "selector" + i));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return System.nanoTime() - start;
+  }
+
+  static void report(String name, int processes, int rounds, long elapsed) {
+    System.out.println(String.format("%s: %.0f selects/s over all channels, %.1f us/select",
+                                     name, processes * rounds / (elapsed / 1e9),
+                                     elapsed / 1e3 / (processes * rounds)));
+  }
+}
@@ -0,0 +1,43 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Arrays;
+
+
+/**
+ * Collects latency samples (in nanoseconds) and computes percentiles.
+ * Not thread safe; each thread should record into its own instance.
+ */
+class Latencies {
+  private long[] samples = new long[1024];
+  private int size = 0;
+  private boolean sorted = true;
+
+  public void record(long nanos) {
+    if (size == samples.length)
+      samples = Arrays.copyOf(samples, size * 2);
+    samples[size++] = nanos;
+    sorted = false;
+  }
+
+  public int count() {
+    return size;
+  }
+
+  public long percentile(double p) {
+    if (size == 0) return 0;
+    if (!sorted) {
+      Arrays.sort(samples, 0, size);
+      sorted = true;
+    }
+    int index = (int) Math.ceil(p / 100.0 * size) - 1;
+    return samples[Math.max(0, Math.min(size - 1, index))];
+  }
+
+  public long max() {
+    return percentile(100);
+  }
+
+  public static String micros(long nanos) {
+    return String.format("%.1f", nanos / 1000.0);
+  }
+}
@@ -0,0 +1,65 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Measures the throughput of a channel, and the latency of its senders, for every
+ * built-in matching strategy, with a mix of senders using send and select
+ * and a single consumer.
+ * <p>
+ * Usage: MatchingBench [senders] [selectSenders] [messagesPerSender]
+ * </p>
+ */
+public class MatchingBench {
+
+  public static void main(String[] args) throws Exception {
+    int senders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int selectSenders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+    MatchingStrategy[] strategies =
+      { MatchingStrategy.fifo(), MatchingStrategy.lifo(), MatchingStrategy.preferNonSelect(),
+        MatchingStrategy.random(), MatchingStrategy.roundRobin() };
+    for (MatchingStrategy strategy : strategies)
+      run(strategy, senders, selectSenders, messages);
+  }
+
+  static void run(MatchingStrategy strategy, int senders, int selectSenders, int messages) throws InterruptedException {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bench", strategy);
+    Latencies plain = new Latencies();
+    Latencies select = new Latencies();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < senders + selectSenders; i++) {
+      boolean isSelect = i >= senders;
+      Latencies l = isSelect ? select : plain;
+      List<Action<?,Integer>> selectArgs = Arrays.<Action<?,Integer>>asList(Action.send(ch, i));
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < messages; j++) {
+          long start = System.nanoTime();
+          if (isSelect) Command.select(selectArgs);
+          else Command.send(ch, j);
+          long elapsed = System.nanoTime() - start;
+          synchronized (l) { l.record(elapsed); }
+        }
+      }, (isSelect ? "select" : "sender") + i));
+    }
+
+    long start = System.nanoTime();
+    for (Thread t : threads) t.start();
+    for (int i = 0; i < (senders + selectSenders) * messages; i++)
+      Command.receive(ch);
+    long elapsed = System.nanoTime() - start;
+    for (Thread t : threads) t.join();
+
+    System.out.println(strategy + ": "
+                       + (long) ((senders + selectSenders) * messages / (elapsed / 1e9)) + " msgs/s"
+                       + " send p50=" + Latencies.micros(plain.percentile(50))
+                       + "us p99=" + Latencies.micros(plain.percentile(99)) + "us"
+                       + " select p50=" + Latencies.micros(select.percentile(50))
+                       + "us p99=" + Latencies.micros(select.percentile(99)) + "us");
+  }
+}
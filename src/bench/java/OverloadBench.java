@@ -0,0 +1,85 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Measures an overloaded channel under each admission policy: producer processes
+ * send over a channel faster than a consumer process, which works for a while
+ * on every value, can receive. Reports the values delivered and rejected, and the
+ * latency of the sends delivered (their time waiting on the channel). A producer
+ * whose send is rejected backs off for a millisecond.
+ * <p>
+ * Usage: OverloadBench [producers] [millis] [work] (work is the time, in
+ * microseconds, the consumer spends on a value)
+ * </p>
+ */
+public class OverloadBench {
+  // How long a producer whose send was rejected waits before sending again
+  private static final long BACKOFF_NANOS = 1_000_000;
+
+  public static void main(String[] args) throws Exception {
+    int producers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int millis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int work = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    AdmissionPolicy[] policies = { AdmissionPolicy.unbounded(),
+                                   AdmissionPolicy.rejectNewest(8),
+                                   AdmissionPolicy.rejectOldest(8),
+                                   AdmissionPolicy.latencyTarget(Duration.ofMillis(1)) };
+    for (int round = 0; round < 2; round++)
+      for (AdmissionPolicy policy : policies) run(policy, producers, millis, work);
+  }
+
+  static void run(AdmissionPolicy policy, int producers, int millis, int work) throws InterruptedException {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("overloaded");
+    ch.setAdmissionPolicy(policy);
+    AtomicLong rejected = new AtomicLong();
+    List<Histogram> histograms = new ArrayList<Histogram>();
+    List<Thread> threads = new ArrayList<Thread>();
+    // Closing the channel stops the producers and the consumer
+    for (int i = 0; i < producers; i++) {
+      Histogram latencies = new Histogram();
+      histograms.add(latencies);
+      threads.add(new Thread(() -> {
+          try {
+            for (int j = 0; ; j++) {
+              long start = System.nanoTime();
+              try {
+                Command.send(ch, j);
+                latencies.record(System.nanoTime() - start);
+              } catch (ChannelOverloadedException exc) {
+                rejected.incrementAndGet();
+                LockSupport.parkNanos(BACKOFF_NANOS);
+              }
+            }
+          } catch (ChannelClosedException exc) {
+          }
+      }, "producer" + i));
+    }
+    threads.add(new Thread(() -> {
+        try {
+          while (true) {
+            Command.receive(ch);
+            long until = System.nanoTime() + work * 1000L;
+            while (System.nanoTime() < until) Thread.onSpinWait();
+          }
+        } catch (ChannelClosedException exc) {
+        }
+    }, "consumer"));
+    for (Thread thread : threads) thread.start();
+    Thread.sleep(millis);
+    ch.close();
+    for (Thread thread : threads) thread.join();
+
+    Histogram all = new Histogram();
+    for (Histogram histogram : histograms) all.add(histogram);
+    System.out.println(String.format("%s: %d delivered, %d rejected, latency p50 %.0f us, p99 %.0f us, max %.0f us",
+                                     policy, all.count(), rejected.get(), all.percentile(50) / 1e3,
+                                     all.percentile(99) / 1e3, all.max() / 1e3));
+  }
+}
@@ -0,0 +1,81 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The dining philosophers. Every fork is a process which is picked up and released
+ * over channels; a philosopher picks up whichever of its forks is free first (with Command.select),
+ * and a butler process (also using select) lets at most all but one philosopher sit at the table.
+ * Latency is the time from a philosopher becoming hungry until it eats.
+ * <p>
+ * Parameters: philosophers.philosophers, philosophers.meals (per philosopher)
+ * </p>
+ */
+class PhilosophersWorkload extends Workload {
+
+  PhilosophersWorkload() {
+    super("philosophers");
+  }
+
+  public Result run(Options options) throws InterruptedException {
+    int philosophers = options.getInt("philosophers", 5);
+    int meals = options.getScaled("meals", 2000);
+
+    List<SynchronousChannel<Integer>> pickups = new ArrayList<SynchronousChannel<Integer>>();
+    List<SynchronousChannel<Integer>> releases = new ArrayList<SynchronousChannel<Integer>>();
+    SynchronousChannel<Integer> sit = new SynchronousChannel<Integer>("sit");
+    SynchronousChannel<Integer> leave = new SynchronousChannel<Integer>("leave");
+    List<Histogram> histograms = new ArrayList<Histogram>();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < philosophers; i++) {
+      SynchronousChannel<Integer> pickup = new SynchronousChannel<Integer>("pickup" + i);
+      SynchronousChannel<Integer> release = new SynchronousChannel<Integer>("release" + i);
+      pickups.add(pickup);
+      releases.add(release);
+      // Every fork is shared by two philosophers
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < 2 * meals; j++) {
+          Command.receive(pickup);
+          Command.receive(release);
+        }
+      }, "fork" + i));
+    }
+
+    threads.add(new Thread(() -> {
+      int seated = 0;
+      for (int j = 0; j < 2 * philosophers * meals; j++) {
+        List<Action<?,Integer>> actions = new ArrayList<Action<?,Integer>>();
+        if (seated < philosophers - 1) actions.add(Action.receive(sit, v -> 1));
+        actions.add(Action.receive(leave, v -> -1));
+        seated += Command.select(actions);
+      }
+    }, "butler"));
+
+    for (int i = 0; i < philosophers; i++) {
+      int id = i;
+      int left = i;
+      int right = (i + 1) % philosophers;
+      Histogram latencies = new Histogram();
+      histograms.add(latencies);
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < meals; j++) {
+          long start = System.nanoTime();
+          Command.send(sit, id);
+          int first = Command.select(Arrays.asList(Action.send(pickups.get(left), id, v -> left),
+                                                   Action.send(pickups.get(right), id, v -> right)));
+          Command.send(pickups.get(first == left ? right : left), id);
+          latencies.record(System.nanoTime() - start);
+          Command.send(releases.get(left), id);
+          Command.send(releases.get(right), id);
+          Command.send(leave, id);
+        }
+      }, "philosopher" + i));
+    }
+
+    return new Result((long) philosophers * meals, runThreads(threads), merge(histograms));
+  }
+}
@@ -0,0 +1,50 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A multi-stage pipeline: a source process sends items through a chain of
+ * stage processes, connected by synchronous channels, to a sink process.
+ * Latency is the time from the source sending an item until the sink receives it.
+ * <p>
+ * Parameters: pipeline.stages, pipeline.items
+ * </p>
+ */
+class PipelineWorkload extends Workload {
+
+  PipelineWorkload() {
+    super("pipeline");
+  }
+
+  public Result run(Options options) throws InterruptedException {
+    int stages = options.getInt("stages", 4);
+    int items = options.getScaled("items", 100000);
+
+    List<SynchronousChannel<Long>> channels = new ArrayList<SynchronousChannel<Long>>();
+    for (int i = 0; i <= stages; i++)
+      channels.add(new SynchronousChannel<Long>("stage" + i));
+
+    Histogram latencies = new Histogram();
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(new Thread(() -> {
+      for (int j = 0; j < items; j++) Command.send(channels.get(0), System.nanoTime());
+    }, "source"));
+    for (int i = 0; i < stages; i++) {
+      SynchronousChannel<Long> in = channels.get(i);
+      SynchronousChannel<Long> out = channels.get(i + 1);
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < items; j++) Command.send(out, Command.receive(in));
+      }, "stage" + i));
+    }
+    threads.add(new Thread(() -> {
+      for (int j = 0; j < items; j++) {
+        long sent = Command.receive(channels.get(stages));
+        latencies.record(System.nanoTime() - sent);
+      }
+    }, "sink"));
+
+    return new Result(items, runThreads(threads), latencies);
+  }
+}
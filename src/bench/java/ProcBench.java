@@ -0,0 +1,60 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Measures how fast processes are spawned and torn down: pairs of short-lived
+ * processes, each pair synchronizing once over a shared channel, are spawned in batches
+ * on a group and joined. Reports the processes spawned per second, and checks that
+ * nothing is left behind (live processes in the group, mailboxes in the registry).
+ * <p>
+ * Usage: ProcBench [processes] [batch] [threads] (the groups are platform
+ * (a thread per process), fixed (a pool of threads) and virtual, when available)
+ * </p>
+ */
+public class ProcBench {
+
+  public static void main(String[] args) throws Exception {
+    int processes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+    for (int round = 0; round < 2; round++) {
+      run("platform", ProcGroup.platform("platform"), processes / 10, batch);
+      ProcGroup fixed = ProcGroup.fixed("fixed", threads);
+      run("fixed(" + threads + ")", fixed, processes, batch);
+      fixed.shutdown();
+      ProcGroup virtual;
+      try {
+        virtual = ProcGroup.virtual("virtual");
+      } catch (UnsupportedOperationException exc) {
+        continue;
+      }
+      run("virtual", virtual, processes, batch);
+      virtual.shutdown();
+    }
+  }
+
+  static void run(String name, ProcGroup group, int processes, int batch) throws InterruptedException {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bench");
+    AtomicLong sum = new AtomicLong();
+    int queues = JMsgProcess.getQueues();
+    long start = System.nanoTime();
+    for (int spawned = 0; spawned < processes; spawned += batch) {
+      for (int i = 0; i < batch / 2; i++) {
+        int value = i;
+        group.spawn(() -> Command.send(ch, value));
+        group.spawn(() -> sum.addAndGet(Command.receive(ch)));
+      }
+      group.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    double perSecond = group.getSpawned() * 1e9 / elapsed;
+    System.out.println(name + ": " + (long) perSecond + " processes/s ("
+                       + String.format("%.2f", perSecond * 60 / 1e6) + "M/min), "
+                       + group.getSynchronizations() + " synchronizations, "
+                       + group.size() + " live, "
+                       + (JMsgProcess.getQueues() - queues) + " mailboxes leaked");
+  }
+}
@@ -0,0 +1,65 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+
+/**
+ * Measures how long a receiver with a guard takes to find its sender among many
+ * senders waiting on a channel with different values, for a range guard
+ * (see Guards, looked up in the index of the senders) versus the equivalent
+ * predicate (tested against every sender). The senders are asynchronous offers,
+ * so that thousands of them wait without a thread each.
+ * <p>
+ * Usage: RangeGuardBench [senders] [receives]
+ * </p>
+ */
+public class RangeGuardBench {
+
+  public static void main(String[] args) throws Exception {
+    int senders = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int receives = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+    for (int round = 0; round < 2; round++) {
+      report("predicate", run(false, senders, receives));
+      report("range guard", run(true, senders, receives));
+    }
+  }
+
+  static Latencies run(boolean indexed, int senders, int receives) {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bench");
+    long id = JMsgProcess.newAsyncId();
+    List<Integer> values = new ArrayList<Integer>();
+    for (int i = 0; i < senders; i++) values.add(i);
+    Collections.shuffle(values, new Random(42));
+    for (int value : values) send(ch, id, value);
+
+    // Every receive takes a value in a narrow range, and the value is sent again
+    Random random = new Random(7);
+    Latencies latencies = new Latencies();
+    for (int i = 0; i < receives; i++) {
+      int low = random.nextInt(senders - 2);
+      int high = low + 2;
+      Predicate<Integer> guard = indexed ? Guards.between(low, high) : v -> v >= low && v <= high;
+      long start = System.nanoTime();
+      int value = Command.receiveWithGuard(ch, guard);
+      latencies.record(System.nanoTime() - start);
+      send(ch, id, value);
+    }
+    ch.close();
+    return latencies;
+  }
+
+  static void send(SynchronousChannel<Integer> ch, long id, int value) {
+    ch.offer(AsyncOffer.newAsyncOffer(Action.send(ch, value), id, msg -> { }));
+  }
+
+  static void report(String name, Latencies l) {
+    System.out.println(name + ": p50=" + Latencies.micros(l.percentile(50))
+                       + "us p99=" + Latencies.micros(l.percentile(99))
+                       + "us max=" + Latencies.micros(l.max()) + "us");
+  }
+}
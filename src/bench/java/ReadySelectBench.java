@@ -0,0 +1,60 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures selects which mostly find a partner already waiting: a server process
+ * selects a receive over several channels, each of which has a client process
+ * sending over it (a plain send) in a loop, so that a select usually finds
+ * a sender waiting. Both a select and a fair select are measured.
+ * <p>
+ * Usage: ReadySelectBench [channels] [rounds]
+ * </p>
+ */
+public class ReadySelectBench {
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    for (int run = 0; run < 3; run++) {
+      report("select over " + n + " channels", rounds, run(n, rounds, false));
+      report("fair select over " + n + " channels", rounds, run(n, rounds, true));
+    }
+  }
+
+  static long run(int n, int rounds, boolean fair) throws InterruptedException {
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    for (int i = 0; i < n; i++) channels.add(new SynchronousChannel<Integer>());
+    List<Action<?,Integer>> receives = new ArrayList<Action<?,Integer>>();
+    for (SynchronousChannel<Integer> channel : channels) receives.add(Action.receive(channel));
+    // Closing its channel stops a client
+    List<Thread> clients = new ArrayList<Thread>();
+    for (int i = 0; i < n; i++) {
+      SynchronousChannel<Integer> channel = channels.get(i);
+      clients.add(new Thread(() -> {
+          try {
+            for (int j = 0; ; j++) Command.send(channel, j);
+          } catch (ChannelClosedException exc) {
+          }
+      }, "client" + i));
+    }
+    for (Thread client : clients) client.start();
+    long start = System.nanoTime();
+    for (int j = 0; j < rounds; j++) {
+      if (fair) Command.fairSelect(receives);
+      else Command.select(receives);
+    }
+    long elapsed = System.nanoTime() - start;
+    for (SynchronousChannel<Integer> channel : channels) channel.close();
+    for (Thread client : clients) client.join();
+    return elapsed;
+  }
+
+  static void report(String name, int rounds, long elapsed) {
+    System.out.println(String.format("%s: %.0f selects/s, %.2f us/select",
+                                     name, rounds / (elapsed / 1e9), elapsed / 1e3 / rounds));
+  }
+}
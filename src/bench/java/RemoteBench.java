@@ -0,0 +1,88 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Compares remote channels (over loopback, within one JVM) with in-process channels:
+ * the round trip latency of a request and reply, and the throughput of several
+ * senders streaming to one receiver, where the offers of the senders are batched
+ * into frames.
+ * <p>
+ * Usage: RemoteBench [roundTrips] [senders] [messagesPerSender]
+ * </p>
+ */
+public class RemoteBench {
+
+  public static void main(String[] args) throws Exception {
+    int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int senders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+    ChannelServer server = ChannelServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    for (int round = 0; round < 2; round++) {
+      SynchronousChannel<Integer> requests = new SynchronousChannel<Integer>("requests");
+      SynchronousChannel<Integer> replies = new SynchronousChannel<Integer>("replies");
+      server.export("requests" + round, requests, Codec.integers());
+      server.export("replies" + round, replies, Codec.integers());
+      RemoteChannel<Integer> remoteRequests = RemoteChannel.connect(server.getAddress(), "requests" + round, Codec.integers());
+      RemoteChannel<Integer> remoteReplies = RemoteChannel.connect(server.getAddress(), "replies" + round, Codec.integers());
+
+      report("local round trip", roundTrip(requests, replies, requests, replies, roundTrips));
+      report("remote round trip", roundTrip(remoteRequests, remoteReplies, requests, replies, roundTrips));
+
+      SynchronousChannel<Integer> stream = new SynchronousChannel<Integer>("stream");
+      server.export("stream" + round, stream, Codec.integers());
+      RemoteChannel<Integer> remoteStream = RemoteChannel.connect(server.getAddress(), "stream" + round, Codec.integers());
+      System.out.println("local stream: " + stream(stream, stream, senders, messages) + " msgs/s");
+      RemoteConnection connection = RemoteConnection.get(server.getAddress());
+      long frames = connection.getFrames();
+      long records = connection.getRecords();
+      System.out.println("remote stream: " + stream(remoteStream, stream, senders, messages) + " msgs/s, "
+                         + String.format("%.1f", (connection.getRecords() - records) / (double) Math.max(1, connection.getFrames() - frames))
+                         + " records/frame");
+    }
+    server.close();
+  }
+
+  // The client sends requests and receives replies over the first pair of channels,
+  // the server over the second (the same channels, or the exported ones)
+  static Latencies roundTrip(SynchronousChannel<Integer> clientRequests, SynchronousChannel<Integer> clientReplies,
+                             SynchronousChannel<Integer> serverRequests, SynchronousChannel<Integer> serverReplies,
+                             int roundTrips) throws InterruptedException {
+    Thread server = new Thread(() -> {
+      for (int i = 0; i < roundTrips; i++) Command.send(serverReplies, Command.receive(serverRequests) + 1);
+    }, "server");
+    server.start();
+    Latencies latencies = new Latencies();
+    for (int i = 0; i < roundTrips; i++) {
+      long start = System.nanoTime();
+      Command.send(clientRequests, i);
+      Command.receive(clientReplies);
+      latencies.record(System.nanoTime() - start);
+    }
+    server.join();
+    return latencies;
+  }
+
+  static long stream(SynchronousChannel<Integer> out, SynchronousChannel<Integer> in, int senders, int messages) throws InterruptedException {
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < senders; i++)
+      threads.add(new Thread(() -> { for (int j = 0; j < messages; j++) Command.send(out, j); }, "sender" + i));
+    long start = System.nanoTime();
+    for (Thread t : threads) t.start();
+    for (int i = 0; i < senders * messages; i++) Command.receive(in);
+    long elapsed = System.nanoTime() - start;
+    for (Thread t : threads) t.join();
+    return (long) (senders * messages / (elapsed / 1e9));
+  }
+
+  static void report(String name, Latencies l) {
+    System.out.println(name + ": p50=" + Latencies.micros(l.percentile(50))
+                       + "us p99=" + Latencies.micros(l.percentile(99))
+                       + "us max=" + Latencies.micros(l.max()) + "us");
+  }
+}
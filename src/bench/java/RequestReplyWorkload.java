@@ -0,0 +1,72 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Request/reply: client processes send requests, carrying their own reply channel,
+ * over a shared channel to a pool of server processes.
+ * Latency is the round trip time of a request.
+ * <p>
+ * Parameters: requestreply.servers, requestreply.clients, requestreply.requests (per client)
+ * </p>
+ */
+class RequestReplyWorkload extends Workload {
+
+  static class Request {
+    final int value;
+    final SynchronousChannel<Integer> reply;
+
+    Request(int value, SynchronousChannel<Integer> reply) {
+      this.value = value;
+      this.reply = reply;
+    }
+  }
+
+  RequestReplyWorkload() {
+    super("requestreply");
+  }
+
+  public Result run(Options options) throws InterruptedException {
+    int servers = options.getInt("servers", 4);
+    int clients = options.getInt("clients", 16);
+    int requests = options.getScaled("requests", 5000);
+
+    SynchronousChannel<Request> requestChannel = new SynchronousChannel<Request>("requests");
+    List<Histogram> histograms = new ArrayList<Histogram>();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < clients; i++) {
+      SynchronousChannel<Integer> reply = new SynchronousChannel<Integer>("reply" + i);
+      Histogram latencies = new Histogram();
+      histograms.add(latencies);
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < requests; j++) {
+          long start = System.nanoTime();
+          Command.send(requestChannel, new Request(j, reply));
+          if (Command.receive(reply) != j + 1) throw new RuntimeException();
+          latencies.record(System.nanoTime() - start);
+        }
+      }, "client" + i));
+    }
+
+    // A request without a reply channel stops a server
+    List<Thread> serverThreads = new ArrayList<Thread>();
+    for (int i = 0; i < servers; i++) {
+      Thread server = new Thread(() -> {
+        Request request;
+        while ((request = Command.receive(requestChannel)).reply != null)
+          Command.send(request.reply, request.value + 1);
+      }, "server" + i);
+      serverThreads.add(server);
+      server.start();
+    }
+
+    long elapsed = runThreads(threads);
+    for (int i = 0; i < servers; i++)
+      Command.send(requestChannel, new Request(0, null));
+    for (Thread server : serverThreads) server.join();
+    return new Result((long) clients * requests, elapsed, merge(histograms));
+  }
+}
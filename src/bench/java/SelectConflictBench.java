@@ -0,0 +1,48 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures the throughput of selects which conflict heavily: every selecting
+ * process selects over all channels, on each of which a sender is waiting, so that
+ * most lock downs a process receives are stale. Reports the number of messages
+ * discarded by the mailboxes of the selecting processes.
+ * <p>
+ * Usage: SelectConflictBench [processes] [rounds]
+ * </p>
+ */
+public class SelectConflictBench {
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    for (int run = 0; run < 3; run++) {
+      List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+      for (int i = 0; i < n; i++) channels.add(new SynchronousChannel<Integer>());
+      List<Thread> threads = new ArrayList<Thread>();
+      long[] discarded = new long[n];
+      for (int i = 0; i < n; i++) {
+        SynchronousChannel<Integer> mine = channels.get(i);
+        int index = i;
+        threads.add(new Thread(() -> { for (int j = 0; j < rounds; j++) Command.send(mine, j); }, "sender" + i));
+        threads.add(new Thread(() -> {
+            List<Action<?,Integer>> actions = new ArrayList<Action<?,Integer>>();
+            for (SynchronousChannel<Integer> channel : channels) actions.add(Action.receive(channel));
+            for (int j = 0; j < rounds; j++) Command.select(actions);
+            discarded[index] = JMsgProcess.getQueue().getDiscarded();
+        }, "selector" + i));
+      }
+      long start = System.nanoTime();
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+      long elapsed = System.nanoTime() - start;
+      long total = 0;
+      for (long d : discarded) total += d;
+      System.out.println(String.format("%d processes: %.0f selects/s, %.1f discarded messages/select",
+                                       n, n * rounds / (elapsed / 1e9), (double) total / (n * rounds)));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures the throughput of many producers and consumers (MPMC) synchronizing over a
+ * single SynchronousChannel, compared with a ShardedChannel (by default with one shard per core).
+ * <p>
+ * Usage: ShardedBench [maxThreadsPerSide] [messagesPerProducer] [shards]
+ * </p>
+ */
+public class ShardedBench {
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int cores = Runtime.getRuntime().availableProcessors();
+    int shards = args.length > 2 ? Integer.parseInt(args[2]) : cores;
+
+    System.out.println("cores: " + cores);
+    for (int threads = 1; threads <= maxThreads; threads *= 4) {
+      report("SynchronousChannel", threads,
+             run(new SynchronousChannel<Integer>("single"), threads, messages), messages);
+      report("ShardedChannel(" + shards + ")", threads,
+             run(new ShardedChannel<Integer>("sharded", shards), threads, messages), messages);
+    }
+  }
+
+  static long run(SynchronousChannel<Integer> ch, int threads, int messages) throws InterruptedException {
+    List<Thread> all = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      all.add(new Thread(() -> { for (int j = 0; j < messages; j++) Command.send(ch, j); }, "producer" + i));
+      all.add(new Thread(() -> { for (int j = 0; j < messages; j++) Command.receive(ch); }, "consumer" + i));
+    }
+    long start = System.nanoTime();
+    for (Thread t : all) t.start();
+    for (Thread t : all) t.join();
+    return System.nanoTime() - start;
+  }
+
+  static void report(String name, int threads, long elapsed, int messages) {
+    double seconds = elapsed / 1e9;
+    System.out.println(String.format("%-24s %3d producers/%3d consumers: %.0f msgs/s",
+                                     name, threads, threads, threads * (double) messages / seconds));
+  }
+}
@@ -0,0 +1,66 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Measures the handoff latency of shared memory channels between two JVMs: this JVM
+ * starts a peer JVM, sends it pings over one channel, and receives its pongs over
+ * another. The handoff (from a send starting until the value is received in the other JVM)
+ * is half the round trip. Sub-microsecond handoffs need SPIN, and a core for each JVM.
+ * <p>
+ * Usage: SharedMemoryBench [roundTrips] [waitStrategy]
+ * </p>
+ */
+public class SharedMemoryBench {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("peer")) {
+      peer(Paths.get(args[1]), Paths.get(args[2]), Integer.parseInt(args[3]), WaitStrategy.valueOf(args[4]));
+      return;
+    }
+    int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    WaitStrategy strategy = args.length > 1 ? WaitStrategy.valueOf(args[1]) : WaitStrategy.SPIN;
+
+    File shm = new File("/dev/shm");
+    Path dir = shm.isDirectory() ? shm.toPath() : Paths.get(System.getProperty("java.io.tmpdir"));
+    Path pingFile = Files.createTempFile(dir, "jmsg-ping", ".channel");
+    Path pongFile = Files.createTempFile(dir, "jmsg-pong", ".channel");
+    try {
+      SharedMemoryChannel<Long> ping = SharedMemoryChannel.open(pingFile, 64, 8, Codec.longs());
+      SharedMemoryChannel<Long> pong = SharedMemoryChannel.open(pongFile, 64, 8, Codec.longs());
+      Process peer = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                                        "-cp", System.getProperty("java.class.path"),
+                                        SharedMemoryBench.class.getName(), "peer",
+                                        pingFile.toString(), pongFile.toString(),
+                                        Integer.toString(roundTrips), strategy.name())
+        .inheritIO().start();
+
+      WaitStrategy.setForCurrentProcess(strategy);
+      Latencies latencies = new Latencies();
+      for (long i = 0; i < roundTrips; i++) {
+        long start = System.nanoTime();
+        Command.send(ping, i);
+        Command.receive(pong);
+        latencies.record((System.nanoTime() - start) / 2);
+      }
+      peer.waitFor();
+      System.out.println("shared memory handoff (" + strategy + "): p50=" + Latencies.micros(latencies.percentile(50))
+                         + "us p99=" + Latencies.micros(latencies.percentile(99))
+                         + "us max=" + Latencies.micros(latencies.max()) + "us");
+    } finally {
+      Files.delete(pingFile);
+      Files.delete(pongFile);
+    }
+  }
+
+  static void peer(Path pingFile, Path pongFile, int roundTrips, WaitStrategy strategy) throws Exception {
+    SharedMemoryChannel<Long> ping = SharedMemoryChannel.open(pingFile, 64, 8, Codec.longs());
+    SharedMemoryChannel<Long> pong = SharedMemoryChannel.open(pongFile, 64, 8, Codec.longs());
+    WaitStrategy.setForCurrentProcess(strategy);
+    for (int i = 0; i < roundTrips; i++) Command.send(pong, Command.receive(ping));
+  }
+}
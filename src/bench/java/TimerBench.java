@@ -0,0 +1,53 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Measures the cost of scheduling and cancelling timers of the timing wheel
+ * behind Channels.after and Channels.ticker, and how late they expire, with
+ * many timers active at the same time.
+ * <p>
+ * Usage: TimerBench [timers] [spreadMillis]
+ * </p>
+ */
+public class TimerBench {
+
+  public static void main(String[] args) throws Exception {
+    int timers = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int spread = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    TimingWheel wheel = TimingWheel.getInstance();
+
+    // Schedule and cancel timers which never expire during the benchmark
+    TimingWheel.Timer[] scheduled = new TimingWheel.Timer[timers];
+    long start = System.nanoTime();
+    for (int i = 0; i < timers; i++)
+      scheduled[i] = wheel.schedule(3600_000_000_000L + i, () -> { });
+    long scheduling = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < timers; i++) scheduled[i].cancel();
+    long cancelling = System.nanoTime() - start;
+    System.out.println(String.format("schedule: %.0f ns/timer, cancel: %.0f ns/timer",
+                                     (double) scheduling / timers, (double) cancelling / timers));
+
+    // Timers expiring within spread milliseconds
+    Latencies lateness = new Latencies();
+    CountDownLatch expired = new CountDownLatch(timers);
+    for (int i = 0; i < timers; i++) {
+      long delay = ThreadLocalRandom.current().nextLong(spread * 1_000_000L);
+      long deadline = System.nanoTime() + delay;
+      wheel.schedule(delay, () -> {
+          lateness.record(System.nanoTime() - deadline);
+          expired.countDown();
+        });
+    }
+    expired.await();
+    System.out.println(String.format("%d timers, lateness us: p50 %s p99 %s p99.9 %s max %s",
+                                     timers,
+                                     Latencies.micros(lateness.percentile(50)),
+                                     Latencies.micros(lateness.percentile(99)),
+                                     Latencies.micros(lateness.percentile(99.9)),
+                                     Latencies.micros(lateness.max())));
+  }
+}
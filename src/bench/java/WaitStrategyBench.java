@@ -0,0 +1,56 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Measures the round trip latency of a ping-pong between two processes
+ * over two synchronous channels, for each WaitStrategy.
+ * <p>
+ * Usage: WaitStrategyBench [roundTrips] [warmupRoundTrips]
+ * </p>
+ */
+public class WaitStrategyBench {
+
+  public static void main(String[] args) throws Exception {
+    int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+    System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+    for (WaitStrategy strategy : WaitStrategy.values())
+      report(strategy, run(strategy, roundTrips, warmup));
+  }
+
+  static Latencies run(WaitStrategy strategy, int roundTrips, int warmup) throws InterruptedException {
+    SynchronousChannel<Integer> ping = new SynchronousChannel<Integer>("ping");
+    SynchronousChannel<Integer> pong = new SynchronousChannel<Integer>("pong");
+    Latencies latencies = new Latencies();
+
+    Thread ponger = new Thread(() -> {
+        WaitStrategy.setForCurrentProcess(strategy);
+        for (int i = 0; i < warmup + roundTrips; i++)
+          Command.send(pong, Command.receive(ping));
+    }, "ponger");
+    Thread pinger = new Thread(() -> {
+        WaitStrategy.setForCurrentProcess(strategy);
+        for (int i = 0; i < warmup + roundTrips; i++) {
+          long start = System.nanoTime();
+          Command.send(ping, i);
+          Command.receive(pong);
+          if (i >= warmup) latencies.record(System.nanoTime() - start);
+        }
+    }, "pinger");
+    ponger.start();
+    pinger.start();
+    pinger.join();
+    ponger.join();
+    return latencies;
+  }
+
+  static void report(WaitStrategy strategy, Latencies latencies) {
+    System.out.println(String.format("%-16s round trip us: p50 %s p99 %s p99.9 %s max %s",
+                                     strategy,
+                                     Latencies.micros(latencies.percentile(50)),
+                                     Latencies.micros(latencies.percentile(99)),
+                                     Latencies.micros(latencies.percentile(99.9)),
+                                     Latencies.micros(latencies.max())));
+  }
+}
@@ -0,0 +1,140 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * A workload of the WorkloadSuite. A workload reads its parameters from
+ * the options (prefixed with the workload name, e.g., pipeline.stages=8),
+ * runs to completion, and reports the number of operations it completed, the
+ * elapsed time, and the latency of every operation.
+ */
+abstract class Workload {
+  private final String name;
+
+  Workload(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public abstract Result run(Options options) throws InterruptedException;
+
+  // Starts the threads, waits for them to terminate, and returns the elapsed time
+  static long runThreads(List<Thread> threads) throws InterruptedException {
+    long start = System.nanoTime();
+    for (Thread t : threads) t.start();
+    for (Thread t : threads) t.join();
+    return System.nanoTime() - start;
+  }
+
+  static Histogram merge(List<Histogram> histograms) {
+    Histogram all = new Histogram();
+    for (Histogram h : histograms) all.add(h);
+    return all;
+  }
+
+  /**
+   * The options of a suite run: key=value arguments, a global scale factor
+   * for the number of operations, and a seed for every random choice.
+   */
+  static class Options {
+    private final Map<String,String> values;
+    private final Map<String,Object> used = new LinkedHashMap<String,Object>();
+    private String prefix = "";
+
+    Options(Map<String,String> values) {
+      this.values = values;
+    }
+
+    Options forWorkload(String name) {
+      Options options = new Options(values);
+      options.prefix = name + ".";
+      return options;
+    }
+
+    public int getInt(String key, int defaultValue) {
+      String value = values.get(prefix + key);
+      int result = value == null ? defaultValue : Integer.parseInt(value);
+      used.put(key, result);
+      return result;
+    }
+
+    // A number of operations, multiplied by the scale option
+    public int getScaled(String key, int defaultValue) {
+      double scale = Double.parseDouble(values.getOrDefault("scale", "1"));
+      int result = Math.max(1, (int) (getInt(key, defaultValue) * scale));
+      used.put(key, result);
+      return result;
+    }
+
+    public long getSeed() {
+      long seed = Long.parseLong(values.getOrDefault("seed", "42"));
+      used.put("seed", seed);
+      return seed;
+    }
+
+    public String get(String key, String defaultValue) {
+      return values.getOrDefault(key, defaultValue);
+    }
+
+    // The parameters the workload actually used, for the report
+    Map<String,Object> used() {
+      return used;
+    }
+  }
+
+  /**
+   * The outcome of a workload run.
+   */
+  static class Result {
+    final long operations;
+    final long elapsedNanos;
+    final Histogram latencies;
+
+    Result(long operations, long elapsedNanos, Histogram latencies) {
+      this.operations = operations;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+    }
+
+    public double throughput() {
+      return operations / (elapsedNanos / 1e9);
+    }
+
+    // One line of JSON
+    public String toJson(String workload, Map<String,Object> params) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"workload\":\"").append(workload).append("\"");
+      sb.append(",\"params\":{");
+      List<String> fields = new ArrayList<String>();
+      for (Map.Entry<String,Object> param : params.entrySet())
+        fields.add("\"" + param.getKey() + "\":" + param.getValue());
+      sb.append(String.join(",", fields)).append("}");
+      sb.append(",\"cores\":").append(Runtime.getRuntime().availableProcessors());
+      sb.append(",\"java\":\"").append(System.getProperty("java.version")).append("\"");
+      sb.append(",\"operations\":").append(operations);
+      sb.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", elapsedNanos / 1e9));
+      sb.append(",\"throughput\":").append(String.format(Locale.ROOT, "%.1f", throughput()));
+      sb.append(",\"latency_us\":{");
+      sb.append("\"min\":").append(micros(latencies.min()));
+      sb.append(",\"mean\":").append(String.format(Locale.ROOT, "%.1f", latencies.mean() / 1000.0));
+      for (double p : new double[] { 50, 90, 99, 99.9, 99.99 })
+        sb.append(",\"p").append(p == (long) p ? String.valueOf((long) p) : String.valueOf(p))
+          .append("\":").append(micros(latencies.percentile(p)));
+      sb.append(",\"max\":").append(micros(latencies.max()));
+      sb.append("}}");
+      return sb.toString();
+    }
+
+    private static String micros(long nanos) {
+      return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Runs realistic JMsg workloads and reports, for each, one line of JSON with its parameters,
+ * throughput and latency percentiles, so that the results of different
+ * releases (or machines) can be compared.
+ * <p>
+ * Usage: WorkloadSuite [key=value...], where the keys are
+ * <ul>
+ * <li>workloads: comma separated workloads to run
+ * (pipeline, philosophers, requestreply, guarded; default all)
+ * <li>scale: a factor for the number of operations of every workload (default 1)
+ * <li>seed: the seed of every random choice (default 42)
+ * <li>warmup: the number of discarded runs, at a fifth of the scale, before each measured run (default 1)
+ * <li>out: a file to which the JSON lines are also appended
+ * <li>workload.parameter: a parameter of a workload, e.g., pipeline.stages=8
+ * </ul>
+ * E.g., gradle workloads --args="workloads=pipeline,guarded scale=2 out=build/workloads.jsonl"
+ * </p>
+ */
+public class WorkloadSuite {
+  private static final List<Workload> WORKLOADS =
+    Arrays.asList(new PipelineWorkload(), new PhilosophersWorkload(),
+                  new RequestReplyWorkload(), new GuardedReceiversWorkload());
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> values = new HashMap<String,String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0) throw new IllegalArgumentException("expected key=value but got " + arg);
+      values.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    Workload.Options options = new Workload.Options(values);
+    List<String> selected = Arrays.asList(options.get("workloads", "pipeline,philosophers,requestreply,guarded").split(","));
+    int warmups = Integer.parseInt(options.get("warmup", "1"));
+    String out = options.get("out", null);
+
+    for (String name : selected) {
+      Workload workload = find(name);
+      for (int i = 0; i < warmups; i++) {
+        Map<String,String> warmupValues = new HashMap<String,String>(values);
+        warmupValues.put("scale", String.valueOf(Double.parseDouble(options.get("scale", "1")) / 5));
+        workload.run(new Workload.Options(warmupValues).forWorkload(name));
+      }
+      Workload.Options workloadOptions = options.forWorkload(name);
+      Workload.Result result = workload.run(workloadOptions);
+      String json = result.toJson(name, new LinkedHashMap<String,Object>(workloadOptions.used()));
+      System.out.println(json);
+      if (out != null) append(out, json);
+    }
+  }
+
+  private static Workload find(String name) {
+    for (Workload workload : WORKLOADS)
+      if (workload.getName().equals(name)) return workload;
+    throw new IllegalArgumentException("unknown workload " + name);
+  }
+
+  private static void append(String file, String line) throws IOException {
+    File parent = new File(file).getAbsoluteFile().getParentFile();
+    if (parent != null) parent.mkdirs();
+    try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+      writer.println(line);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.time.Duration;
+
+
+/**
+ * Bounds the offers pending on a synchronous channel, so that a channel whose
+ * consumers fall behind rejects offers instead of letting them (and the time to
+ * match a new offer against them) pile up. The policy applies to the offers of
+ * each kind (sends and receives) separately, and is set on a channel with
+ * {@link SynchronousChannel#setAdmissionPolicy}:
+ * <code>
+ * jobs.setAdmissionPolicy(AdmissionPolicy.rejectNewest(1000))
+ * </code>
+ * <p>
+ * The policies are:
+ * <ul>
+ * <li>unbounded: every offer is admitted (the default).
+ * <li>rejectNewest(max): an offer arriving when max offers of its kind are pending is rejected.
+ * <li>rejectOldest(max): an offer arriving when max offers of its kind are pending is admitted,
+ * and the oldest of them is rejected.
+ * <li>latencyTarget(target): an offer arriving when offers of its kind have been pending
+ * for longer than target is admitted, and those offers are rejected.
+ * </ul>
+ * </p>
+ * <p>
+ * A rejected send or receive throws {@link ChannelOverloadedException}. A select
+ * no longer considers its actions over a channel which rejected one of its offers,
+ * and throws ChannelOverloadedException only if all its actions are no longer
+ * considered (over channels closed, or which rejected it), and at least one was rejected.
+ * </p>
+ */
+public final class AdmissionPolicy {
+  enum Mode { UNBOUNDED, REJECT_NEWEST, REJECT_OLDEST, LATENCY_TARGET }
+
+  private static final AdmissionPolicy UNBOUNDED = new AdmissionPolicy(Mode.UNBOUNDED,Integer.MAX_VALUE,0);
+
+  private final Mode mode;
+  private final int maxPending;
+  private final long targetNanos;
+
+  private AdmissionPolicy(Mode mode, int maxPending, long targetNanos) {
+    this.mode = mode;
+    this.maxPending = maxPending;
+    this.targetNanos = targetNanos;
+  }
+
+  public static AdmissionPolicy unbounded() {
+    return UNBOUNDED;
+  }
+
+  public static AdmissionPolicy rejectNewest(int maxPending) {
+    if (maxPending < 1) throw new IllegalArgumentException("maxPending must be positive");
+    return new AdmissionPolicy(Mode.REJECT_NEWEST,maxPending,0);
+  }
+
+  public static AdmissionPolicy rejectOldest(int maxPending) {
+    if (maxPending < 1) throw new IllegalArgumentException("maxPending must be positive");
+    return new AdmissionPolicy(Mode.REJECT_OLDEST,maxPending,0);
+  }
+
+  public static AdmissionPolicy latencyTarget(Duration target) {
+    if (target.isNegative() || target.isZero()) throw new IllegalArgumentException("target must be positive");
+    return new AdmissionPolicy(Mode.LATENCY_TARGET,Integer.MAX_VALUE,target.toNanos());
+  }
+
+  Mode getMode() {
+    return mode;
+  }
+
+  int getMaxPending() {
+    return maxPending;
+  }
+
+  long getTargetNanos() {
+    return targetNanos;
+  }
+
+  public String toString() {
+    switch (mode) {
+    case REJECT_NEWEST:
+      return "rejectNewest("+maxPending+")";
+    case REJECT_OLDEST:
+      return "rejectOldest("+maxPending+")";
+    case LATENCY_TARGET:
+      return "latencyTarget("+Duration.ofNanos(targetNanos)+")";
+    default:
+      return "unbounded";
+    }
+  }
+}
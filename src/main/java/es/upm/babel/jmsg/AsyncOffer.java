@@ -0,0 +1,34 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.function.Consumer;
+
+
+// An offer made on behalf of a party without a thread (and mailbox)
+// of its own. Messages are passed to the handler instead, which may run
+// while the channel is locked, and so must only hand the message over.
+// Async offers never originate from a select, so the messages
+// delivered to them always concern a completed synchronization
+// (or the closing of the channel).
+class AsyncOffer<E,T> extends Offer<E,T> {
+  private Consumer<Message<E,T>> handler;
+
+  public AsyncOffer(Action<E,T> action, long originatingId, Consumer<Message<E,T>> handler) {
+    super(action,originatingId);
+    this.handler = handler;
+  }
+
+  @Override
+  public void deliver(Object sender, Message<?,?> msg) {
+    @SuppressWarnings("unchecked")
+    Message<E,T> myMsg = (Message<E,T>) msg;
+    handler.accept(myMsg);
+  }
+
+  public String toString() {
+    return getOriginatingId()+" -> asyncoffer("+getAction().toString()+")";
+  }
+
+  public static <E,T> AsyncOffer<E,T> newAsyncOffer(Action<E,T> action, long originatingId, Consumer<Message<E,T>> handler) {
+    return new AsyncOffer<E,T>(action,originatingId,handler);
+  }
+}
@@ -0,0 +1,43 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * A synchronous channel for passing pooled buffers (see {@link PooledBuffer})
+ * between processes without copying them: when a send and a receive synchronize,
+ * the ownership of the buffer sent passes from the sender to the receiver.
+ * The sender must not use the buffer afterwards, and the receiver releases it
+ * when done. A buffer whose send did not synchronize (e.g., the channel was
+ * closed, or a select chose another action) still belongs to the sender.
+ * <p>
+ * Example:<br>
+ * <code>
+ * PooledBuffer frame = pool.acquire();
+ * socket.read(frame.buffer());
+ * frame.buffer().flip();
+ * Command.send(frames, frame);
+ * ...
+ * PooledBuffer frame = Command.receive(frames);
+ * process(frame.buffer());
+ * frame.release();
+ * </code>
+ * </p>
+ */
+public class BufferChannel extends SynchronousChannel<PooledBuffer> {
+
+  public BufferChannel() {
+    super();
+  }
+
+  public BufferChannel(String nickName) {
+    super(nickName);
+  }
+
+  public BufferChannel(String nickName, Fairness fairness) {
+    super(nickName,fairness);
+  }
+
+  @Override
+  void committed(PooledBuffer value, long receiverId) {
+    if (value != null) value.transferTo(receiverId);
+  }
+}
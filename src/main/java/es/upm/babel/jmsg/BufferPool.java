@@ -0,0 +1,78 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of byte buffers of a fixed capacity (heap or direct), to be passed
+ * between processes over {@link BufferChannel}s (see {@link PooledBuffer}).
+ * <p>
+ * Every thread keeps the buffers it releases in a pool of its own, up to a
+ * maximum; further buffers are shared with the other threads, so that buffers
+ * released by the receivers become available to the senders. A buffer is
+ * allocated only when neither pool has one, i.e., in a steady state sending a buffer
+ * neither copies nor allocates.
+ * </p>
+ */
+public class BufferPool {
+  private final int capacity;
+  private final boolean direct;
+  private final int maxPerThread;
+  private final ThreadLocal<ArrayDeque<PooledBuffer>> local =
+    ThreadLocal.withInitial(() -> new ArrayDeque<PooledBuffer>());
+  private final Queue<PooledBuffer> shared = new ConcurrentLinkedQueue<PooledBuffer>();
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * Creates a pool of buffers of capacity bytes, which are direct buffers if direct is true.
+   */
+  public BufferPool(int capacity, boolean direct) {
+    this(capacity,direct,64);
+  }
+
+  /**
+   * Creates a pool of buffers of capacity bytes, which keeps at most
+   * maxPerThread released buffers per thread.
+   */
+  public BufferPool(int capacity, boolean direct, int maxPerThread) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+    this.capacity = capacity;
+    this.direct = direct;
+    this.maxPerThread = maxPerThread;
+  }
+
+  /**
+   * Returns a cleared buffer owned by the current process.
+   */
+  public PooledBuffer acquire() {
+    PooledBuffer buffer = local.get().pollLast();
+    if (buffer == null) buffer = shared.poll();
+    if (buffer == null) {
+      allocated.incrementAndGet();
+      buffer = new PooledBuffer(this,direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+    }
+    buffer.acquired();
+    return buffer;
+  }
+
+  void release(PooledBuffer buffer) {
+    ArrayDeque<PooledBuffer> buffers = local.get();
+    if (buffers.size() < maxPerThread) buffers.addLast(buffer);
+    else shared.add(buffer);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of buffers allocated by the pool.
+   */
+  public long getAllocated() {
+    return allocated.get();
+  }
+}
@@ -0,0 +1,25 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Thrown when a process attempts to synchronize over a closed channel,
+ * or when the channel is closed while the process waits to synchronize over it.
+ * A select throws the exception only when all the channels of its actions are closed.
+ * The cause of the exception is the cause the channel was closed with, if any
+ * (see {@link SynchronousChannel#close(Throwable)}).
+ */
+public class ChannelClosedException extends RuntimeException {
+  private final transient SynchronousChannel<?> channel;
+
+  public ChannelClosedException(SynchronousChannel<?> channel) {
+    super(channel+" is closed",channel != null ? channel.getCloseCause() : null);
+    this.channel = channel;
+  }
+
+  /**
+   * Returns the closed channel.
+   */
+  public SynchronousChannel<?> getChannel() {
+    return channel;
+  }
+}
@@ -6,10 +6,16 @@ import java.util.ArrayList;
 class ChannelOffers<E,T> {
   SynchronousChannel<E> channel;
   ArrayList<Offer<E,T>> offers;
+  // The channel has been closed, or has rejected an offer (see AdmissionPolicy);
+  // its offers are no longer made
+  boolean disabled;
+  boolean rejected;
   
   public ChannelOffers(SynchronousChannel<E> channel) {
     this.channel = channel;
     this.offers = new ArrayList<Offer<E,T>>();
+    this.disabled = false;
+    this.rejected = false;
   }
   
   public static <T,U> ChannelOffers<T,U> newChannelOffers(Offer<T,U> offer) {
@@ -25,6 +31,37 @@ class ChannelOffers<E,T> {
     return offers;
   }
 
+  public boolean contains(Offer<?,?> offer) {
+    for (int i=0; i<offers.size(); i++)
+      if (offers.get(i) == offer) return true;
+    return false;
+  }
+
+  public boolean isDisabled() {
+    return disabled;
+  }
+
+  public void disable() {
+    disabled = true;
+  }
+
+  public boolean isRejected() {
+    return rejected;
+  }
+
+  public void reject() {
+    disabled = true;
+    rejected = true;
+  }
+
+  // Replaces a retired offer by a fresh one for the same action
+  public void replace(Offer<?,?> retired, Offer<?,?> offer) {
+    @SuppressWarnings("unchecked")
+      Offer<E,T> myOffer = (Offer<E,T>) offer;
+    for (int i=0; i<offers.size(); i++)
+      if (offers.get(i) == retired) offers.set(i,myOffer);
+  }
+
   public void add(Offer<?,?> offer) {
     @SuppressWarnings("unchecked")
       Offer<E,T> myOffer = (Offer<E,T>) offer;
@@ -33,6 +70,7 @@ class ChannelOffers<E,T> {
 
   public void cancelOffers(Offer<?,?> remain) {
     boolean found = false;
+    if (disabled) return;
 
     for (int i=0; i<offers.size() && !found; i++)
       found = offers.get(i) != remain;
@@ -42,13 +80,7 @@ class ChannelOffers<E,T> {
   }
 
   public void offers() {
-    channel.offers(offers);
-  }
-
-  public void offers(long timestamp) {
-    for (int i=0; i<offers.size(); i++)
-      offers.get(i).setTimestamp(timestamp);    
-    channel.offers(offers);
+    if (!disabled) channel.offers(offers);
   }
 }
 
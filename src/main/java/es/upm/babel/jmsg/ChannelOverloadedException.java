@@ -0,0 +1,24 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Thrown when the admission policy of a channel (see {@link AdmissionPolicy})
+ * rejects the offer of a process attempting to synchronize over the channel,
+ * either when the offer is made or while the process waits to synchronize.
+ * A select throws the exception only when none of its actions can still synchronize.
+ */
+public class ChannelOverloadedException extends RuntimeException {
+  private final transient SynchronousChannel<?> channel;
+
+  public ChannelOverloadedException(SynchronousChannel<?> channel) {
+    super(channel+" is overloaded");
+    this.channel = channel;
+  }
+
+  /**
+   * Returns the channel which rejected the offer.
+   */
+  public SynchronousChannel<?> getChannel() {
+    return channel;
+  }
+}
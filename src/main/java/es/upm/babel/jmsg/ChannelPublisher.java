@@ -0,0 +1,175 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+
+/**
+ * A Flow.Publisher which publishes the values sent over a synchronous channel.
+ * <p>
+ * The demand signalled by a subscriber (using request(n)) is turned into receive
+ * offers registered on the channel, so a sender synchronizes only when
+ * a subscriber has asked for a value. No thread is blocked while waiting for
+ * senders; the subscriber is signalled using the executor.
+ * At most maxOffers receive offers are registered at any time per subscription.
+ * </p>
+ * <p>
+ * Every subscriber competes with the other receivers of the channel, i.e., each value
+ * sent over the channel is delivered to exactly one subscriber
+ * (or to some other receiver of the channel).
+ * The values a subscription has received but not yet delivered when it is cancelled,
+ * and those whose synchronization completes while it is cancelled, are sent over
+ * the channel again, to be received by some other receiver (unless the channel
+ * has been closed meanwhile, or rejects them). When the channel is closed the subscribers are completed
+ * (after receiving the values already synchronized).
+ * </p>
+ * <p>
+ * Example:<br>
+ * <code>
+ * new ChannelPublisher&lt;Integer&gt;(ch).subscribe(subscriber);
+ * </code>
+ * </p>
+ */
+public class ChannelPublisher<E> implements Flow.Publisher<E> {
+  private SynchronousChannel<E> channel;
+  private Executor executor;
+  private int maxOffers;
+
+  /**
+   * Creates a publisher of the values sent over channel, which signals
+   * subscribers using the common fork join pool.
+   */
+  public ChannelPublisher(SynchronousChannel<E> channel) {
+    this(channel,ForkJoinPool.commonPool(),Flow.defaultBufferSize());
+  }
+
+  /**
+   * Creates a publisher of the values sent over channel, which signals
+   * subscribers using executor, and registers at most maxOffers receive offers
+   * per subscription.
+   */
+  public ChannelPublisher(SynchronousChannel<E> channel, Executor executor, int maxOffers) {
+    if (maxOffers <= 0) throw new IllegalArgumentException("maxOffers must be positive");
+    this.channel = channel;
+    this.executor = executor;
+    this.maxOffers = maxOffers;
+  }
+
+  public void subscribe(Flow.Subscriber<? super E> subscriber) {
+    ChannelSubscription subscription = new ChannelSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+  }
+
+  public String toString() {
+    return "publisher("+channel+")";
+  }
+
+  private class ChannelSubscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super E> subscriber;
+    private final long id = JMsgProcess.newAsyncId();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Queue<E> received = new ConcurrentLinkedQueue<E>();
+    private final Set<AsyncOffer<E,E>> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+    private volatile Throwable error = null;
+
+    ChannelSubscription(Flow.Subscriber<? super E> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    public void request(long n) {
+      if (n <= 0) {
+        error = new IllegalArgumentException("non-positive request "+n);
+      } else {
+        long current, next;
+        do {
+          current = demand.get();
+          next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        } while (!demand.compareAndSet(current,next));
+      }
+      schedule();
+    }
+
+    public void cancel() {
+      cancelled = true;
+      schedule();
+    }
+
+    // Called by the channel when a receive offer synchronizes, or the channel is closed
+    private void committed(Message<E,E> msg) {
+      AsyncOffer<E,E> offer = (AsyncOffer<E,E>) msg.getOffer();
+      pending.remove(offer);
+      if (msg instanceof CommitMessage<?,?>)
+        received.add(offer.getResolvedValue());
+      schedule();
+    }
+
+    private void schedule() {
+      if (wip.getAndIncrement() == 0)
+        executor.execute(this::drain);
+    }
+
+    // Runs in at most one executor thread at any time
+    private void drain() {
+      int missed = 1;
+      do {
+        if (error != null && !cancelled) {
+          cancelled = true;
+          subscriber.onError(error);
+        }
+
+        if (cancelled) {
+          for (AsyncOffer<E,E> offer : pending) {
+            pending.remove(offer);
+            channel.cancelOffer(offer);
+          }
+          // The senders of these values have synchronized, so they cannot be rejected
+          E value;
+          while ((value = received.poll()) != null)
+            handBack(value);
+        } else {
+          E value;
+          while (!cancelled && (value = received.poll()) != null)
+            subscriber.onNext(value);
+
+          if (!cancelled && channel.isClosed() && pending.isEmpty() && received.isEmpty()) {
+            cancelled = true;
+            subscriber.onComplete();
+          }
+
+          // Turn demand into receive offers
+          while (!cancelled && !channel.isClosed() && pending.size() < maxOffers && demand.get() > 0) {
+            if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+            AsyncOffer<E,E> offer = AsyncOffer.newAsyncOffer(Action.receive(channel),id,this::committed);
+            pending.add(offer);
+            if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+              JMsgProcess.getLogger().log(Level.FINE,ChannelPublisher.this+": offer "+offer);
+            channel.offer(offer);
+          }
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    // Sends value over the channel again, without waiting for a receiver
+    private void handBack(E value) {
+      AsyncOffer<E,E> offer = AsyncOffer.newAsyncOffer(Action.send(channel,value),id,msg -> {
+          // A closed (or overloaded) channel takes no more values
+          if (!(msg instanceof CommitMessage<?,?>) && JMsgProcess.getLogger().isLoggable(Level.WARNING))
+            JMsgProcess.getLogger().log(Level.WARNING,ChannelPublisher.this+": dropped "+value+" on "+msg);
+        });
+      if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+        JMsgProcess.getLogger().log(Level.FINE,ChannelPublisher.this+": hand back "+offer);
+      channel.offer(offer);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * An (opt-in) registry of the live synchronous channels, for inspecting a running
+ * program, e.g., to periodically export the snapshots of all channels.
+ * Once the registry is enabled, every channel created is registered; the registry
+ * refers to the channels through weak references, so it does not keep them alive.
+ * <p>
+ * Example:<br>
+ * <code>
+ * ChannelRegistry.enable();
+ * ...
+ * for (ChannelStats stats : ChannelRegistry.snapshots())
+ *   if (stats.getOldestOfferAgeNanos() &gt; 1_000_000_000L) System.out.println(stats);
+ * </code>
+ * </p>
+ */
+public class ChannelRegistry {
+  private static volatile boolean enabled = false;
+  private static final Map<Long,ChannelReference> channels = new ConcurrentHashMap<Long,ChannelReference>();
+  private static final ReferenceQueue<SynchronousChannel<?>> collected = new ReferenceQueue<SynchronousChannel<?>>();
+
+  private ChannelRegistry() { }
+
+  /**
+   * Registers the channels created from now on.
+   */
+  public static void enable() {
+    enabled = true;
+  }
+
+  /**
+   * Stops registering channels, and forgets the channels registered.
+   */
+  public static void disable() {
+    enabled = false;
+    channels.clear();
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the registered channels which are still alive.
+   */
+  public static List<SynchronousChannel<?>> channels() {
+    expunge();
+    List<SynchronousChannel<?>> result = new ArrayList<SynchronousChannel<?>>(channels.size());
+    for (ChannelReference reference : channels.values()) {
+      SynchronousChannel<?> channel = reference.get();
+      if (channel != null) result.add(channel);
+    }
+    return result;
+  }
+
+  /**
+   * Returns snapshots of the registered channels which are still alive.
+   */
+  public static List<ChannelStats> snapshots() {
+    List<SynchronousChannel<?>> live = channels();
+    List<ChannelStats> result = new ArrayList<ChannelStats>(live.size());
+    for (SynchronousChannel<?> channel : live) result.add(channel.snapshot());
+    return result;
+  }
+
+  // Called by the channel constructor
+  static void register(SynchronousChannel<?> channel) {
+    if (!enabled) return;
+    expunge();
+    channels.put(channel.getId(),new ChannelReference(channel));
+  }
+
+  private static void expunge() {
+    ChannelReference reference;
+    while ((reference = (ChannelReference) collected.poll()) != null)
+      channels.remove(reference.id,reference);
+  }
+
+  private static class ChannelReference extends WeakReference<SynchronousChannel<?>> {
+    final long id;
+
+    ChannelReference(SynchronousChannel<?> channel) {
+      super(channel,collected);
+      this.id = channel.getId();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+
+/**
+ * Makes channels of this JVM available to the processes of other JVMs, which
+ * synchronize over them through remote channels (see {@link RemoteChannel}).
+ * The server makes the offers of the remote processes on the exported channel, on
+ * their behalf, and relays the messages of the synchronization protocol between the channel
+ * and the remote processes, so that remote processes can use the channel in selects
+ * (though not in joins), as the local processes do.
+ * <p>
+ * Example:
+ * <pre>
+ * <code>
+ * ChannelServer server = ChannelServer.start(new InetSocketAddress("localhost",7070));
+ * server.export("jobs", jobs, Codec.strings());
+ * </code>
+ * </pre>
+ * </p>
+ * <p>
+ * A single thread serves all connections, with non-blocking sockets.
+ * </p>
+ */
+public class ChannelServer {
+  private final ServerSocketChannel server;
+  private final RemoteLoop loop;
+  private final Map<String,Export<?>> exports = new ConcurrentHashMap<String,Export<?>>();
+  private final Set<ServerLink> links = ConcurrentHashMap.newKeySet();
+
+  private ChannelServer(ServerSocketChannel server, RemoteLoop loop) {
+    this.server = server;
+    this.loop = loop;
+  }
+
+  /**
+   * Starts a server accepting connections at address (port 0 chooses a free port,
+   * see {@link #getAddress()}).
+   */
+  public static ChannelServer start(InetSocketAddress address) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(address);
+    server.configureBlocking(false);
+    ChannelServer channelServer = new ChannelServer(server,new RemoteLoop("jmsg-server "+server.getLocalAddress()));
+    channelServer.loop.register(server,SelectionKey.OP_ACCEPT,channelServer,key -> { });
+    return channelServer;
+  }
+
+  /**
+   * Makes the channel available to remote processes under name, passing its values
+   * with the codec.
+   * @throws IllegalArgumentException if the channel is a remote, sharded or shared memory channel.
+   */
+  public <E> void export(String name, SynchronousChannel<E> channel, Codec<E> codec) {
+    if (channel instanceof RemoteChannel<?> || channel instanceof ShardedChannel<?>
+        || channel instanceof SharedMemoryChannel<?>)
+      throw new IllegalArgumentException("cannot export "+channel);
+    exports.put(name,new Export<E>(channel,codec));
+  }
+
+  /**
+   * Returns the address the server accepts connections at.
+   */
+  public InetSocketAddress getAddress() {
+    return (InetSocketAddress) server.socket().getLocalSocketAddress();
+  }
+
+  /**
+   * Stops the server: the connections are closed, and the offers of the remote
+   * processes withdrawn (so that the remote processes find their channels closed).
+   * The exported channels are not closed.
+   */
+  public void close() {
+    try {
+      server.close();
+    } catch (IOException exc) {
+      // Closed anyway
+    }
+    for (ServerLink link : links) link.close(null);
+    loop.stop();
+  }
+
+  // The client processes with offers pending, over all connections
+  int remoteProcesses() {
+    int count = 0;
+    for (ServerLink link : links) count += link.processes.size();
+    return count;
+  }
+
+  // Called in the loop thread
+  void accept() {
+    try {
+      SocketChannel socket;
+      while ((socket = server.accept()) != null)
+        links.add(new ServerLink(socket));
+    } catch (IOException exc) {
+      if (JMsgProcess.getLogger().isLoggable(Level.WARNING))
+        JMsgProcess.getLogger().log(Level.WARNING,"channel server "+getAddress()+": accept failed with "+exc);
+    }
+  }
+
+  private static class Export<E> {
+    final SynchronousChannel<E> channel;
+    final Codec<E> codec;
+
+    Export(SynchronousChannel<E> channel, Codec<E> codec) {
+      this.channel = channel;
+      this.codec = codec;
+    }
+
+    RemoteOffer<E> newOffer(ServerLink link, long id, RemoteProcess process, DataInputStream in) throws IOException {
+      long timestamp = in.readLong();
+      int selectIndex = in.readInt();
+      Action<E,E> action = in.readBoolean()
+        ? Action.send(channel,RemoteLink.readValue(in,codec))
+        : Action.receive(channel);
+      return new RemoteOffer<E>(action,process,timestamp,selectIndex,link,id,codec);
+    }
+  }
+
+  // A client process, standing for it on the channels while it has offers pending
+  private static class RemoteProcess {
+    final long remoteId;
+    final long id = JMsgProcess.newAsyncId();
+    int offers = 0;
+
+    RemoteProcess(long remoteId) {
+      this.remoteId = remoteId;
+    }
+  }
+
+  // The connection of a client. The records are read, and the offers made, in the loop thread.
+  private class ServerLink extends RemoteLink {
+    // The channels opened by the client (null if not exported); only used by the loop thread
+    private final Map<Integer,Export<?>> channels = new HashMap<Integer,Export<?>>();
+    // The client processes with offers pending, forgotten with their last offer
+    private final Map<Long,RemoteProcess> processes = new ConcurrentHashMap<Long,RemoteProcess>();
+    // The offers pending on the channels
+    private final Map<Long,RemoteOffer<?>> offers = new ConcurrentHashMap<Long,RemoteOffer<?>>();
+
+    ServerLink(SocketChannel socket) throws IOException {
+      super(socket,ChannelServer.this.loop);
+    }
+
+    void received(byte type, DataInputStream in) throws IOException {
+      long id = in.readLong();
+      RemoteOffer<?> offer;
+      switch (type) {
+      case OPEN:
+        channels.put((int) id,exports.get(in.readUTF()));
+        break;
+      case OFFER:
+        Export<?> export = channels.get(in.readInt());
+        long remoteId = in.readLong();
+        if (export == null) {
+          // Not exported; the channel is as good as closed
+          in.readLong();
+          in.readInt();
+          if (in.readBoolean()) RemoteLink.skipValue(in);
+          send(new Record(CLOSED,id));
+        } else {
+          RemoteProcess process = processes.compute(remoteId,(key,known) -> {
+              RemoteProcess added = known != null ? known : new RemoteProcess(remoteId);
+              added.offers++;
+              return added;
+            });
+          offer = export.newOffer(this,id,process,in);
+          offers.put(id,offer);
+          try {
+            offer.offer();
+          } catch (RuntimeException exc) {
+            // The offer fails alone; the link carries the offers of other channels
+            if (JMsgProcess.getLogger().isLoggable(Level.WARNING))
+              JMsgProcess.getLogger().log(Level.WARNING,this+": "+offer+" failed with "+exc);
+            remove(id);
+            send(new Record(CLOSED,id));
+          }
+        }
+        break;
+      case ACCEPT:
+        offer = offers.get(id);
+        if (offer != null) offer.acceptLockDown();
+        break;
+      case CANCEL:
+        offer = remove(id);
+        if (offer != null) offer.cancel();
+        break;
+      case WITHDRAW:
+        offer = remove(id);
+        Record withdrawn = new Record(WITHDRAWN,id);
+        withdrawn.flag = offer != null && offer.withdraw();
+        send(withdrawn);
+        break;
+      case CLOSE:
+        Export<?> closed = channels.get((int) id);
+        if (closed != null) closed.channel.close();
+        break;
+      default:
+        throw new IOException("unexpected record type "+type);
+      }
+    }
+
+    // The offer is no longer pending (it has been committed, aborted, rejected,
+    // cancelled or withdrawn); its process is forgotten with its last offer
+    RemoteOffer<?> remove(long id) {
+      RemoteOffer<?> offer = offers.remove(id);
+      if (offer != null)
+        processes.computeIfPresent(offer.process.remoteId,(key,process) -> --process.offers == 0 ? null : process);
+      return offer;
+    }
+
+    void closed() {
+      links.remove(this);
+      for (RemoteOffer<?> offer : offers.values()) offer.withdraw();
+      offers.clear();
+      processes.clear();
+    }
+  }
+
+  // An offer made on behalf of a remote process; the messages delivered to it
+  // are queued on the link of the process (as the channel may be locked)
+  private static class RemoteOffer<E> extends Offer<E,E> {
+    private final RemoteProcess process;
+    private final ServerLink link;
+    private final long id;
+    private final Codec<E> codec;
+
+    RemoteOffer(Action<E,E> action, RemoteProcess process, long timestamp, int selectIndex,
+                ServerLink link, long id, Codec<E> codec) {
+      super(action,process.id,timestamp,selectIndex);
+      this.process = process;
+      this.link = link;
+      this.id = id;
+      this.codec = codec;
+    }
+
+    SynchronousChannel<E> channel() {
+      return getAction().getBasicAction().getChannel();
+    }
+
+    void offer() {
+      channel().offer(this);
+    }
+
+    void acceptLockDown() {
+      channel().acceptLockDown(this);
+    }
+
+    void cancel() {
+      channel().cancelOffer(this);
+    }
+
+    boolean withdraw() {
+      return channel().withdrawOffer(this);
+    }
+
+    @Override
+    public void deliver(Object sender, Message<?,?> msg) {
+      RemoteLink.Record record;
+      if (msg instanceof LockDownMessage<?,?>) {
+        record = new RemoteLink.Record(RemoteLink.LOCKDOWN,id);
+      } else {
+        link.remove(id);
+        if (msg instanceof CommitMessage<?,?>) {
+          record = new RemoteLink.Record(RemoteLink.COMMIT,id);
+          if (!isSendOffer()) {
+            record.flag = true;
+            record.value = getResolvedValue();
+            record.codec = codec;
+          }
+        } else if (msg instanceof AbortMessage<?,?>) {
+          record = new RemoteLink.Record(RemoteLink.ABORT,id);
+        } else if (msg instanceof RejectedMessage<?,?>) {
+          record = new RemoteLink.Record(RemoteLink.REJECTED,id);
+        } else {
+          record = new RemoteLink.Record(RemoteLink.CLOSED,id);
+        }
+      }
+      link.send(record);
+    }
+
+    public String toString() {
+      return getOriginatingId()+" -> remoteoffer#"+id+"("+getAction()+" @"+getTimestamp()+")";
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+
+// A spliterator which receives its elements over a channel. Splitting it
+// yields another spliterator receiving over the same channel, so that
+// several threads receive concurrently. If a poison predicate is given,
+// the spliterator receiving a poisoned value stops all the others too.
+// All spliterators stop when the channel is closed.
+class ChannelSpliterator<T> implements Spliterator<T> {
+  private static final Object STOP = new Object();
+
+  private final SynchronousChannel<T> channel;
+  private final Predicate<T> guard;
+  private final Predicate<T> poison;
+  private final State state;
+  private final List<Action<?,Object>> selectArgs;
+
+  public ChannelSpliterator(SynchronousChannel<T> channel, Predicate<T> guard, Predicate<T> poison) {
+    this(channel,guard,poison,new State(poison != null ? channel : null));
+  }
+
+  private ChannelSpliterator(SynchronousChannel<T> channel, Predicate<T> guard, Predicate<T> poison, State state) {
+    this.channel = channel;
+    this.poison = poison;
+    this.state = state;
+    if (poison != null && guard != null)
+      this.guard = value -> poison.test(value) || guard.test(value);
+    else
+      this.guard = guard;
+    if (poison != null)
+      this.selectArgs = Arrays.asList(Action.receiveWithGuard(channel,this.guard,value -> (Object) value),
+                                      Action.receive(state.stopChannel,value -> STOP));
+    else
+      this.selectArgs = null;
+    state.splits++;
+  }
+
+  public boolean tryAdvance(Consumer<? super T> action) {
+    if (state.done) return false;
+
+    T value;
+    try {
+      if (poison == null) {
+        value = guard == null ? Command.receive(channel) : Command.receiveWithGuard(channel,guard);
+        action.accept(value);
+        return true;
+      }
+      Object result = Command.select(selectArgs);
+      if (result == STOP) return false;
+      @SuppressWarnings("unchecked")
+      T received = (T) result;
+      if (poison.test(received)) {
+        state.stop();
+        return false;
+      }
+      value = received;
+    } catch (ChannelClosedException exc) {
+      return false;
+    }
+    action.accept(value);
+    return true;
+  }
+
+  public Spliterator<T> trySplit() {
+    synchronized (state) {
+      if (state.done || state.splits >= maxSplits()) return null;
+      return new ChannelSpliterator<T>(channel,guard,poison,state);
+    }
+  }
+
+  // At most one receiving spliterator per thread of the pool executing the stream
+  private static int maxSplits() {
+    if (ForkJoinTask.inForkJoinPool())
+      return ForkJoinTask.getPool().getParallelism();
+    else
+      return ForkJoinPool.getCommonPoolParallelism();
+  }
+
+  public long estimateSize() {
+    return Long.MAX_VALUE;
+  }
+
+  public int characteristics() {
+    return 0;
+  }
+
+  // Shared by a spliterator and all its splits
+  private static class State {
+    volatile boolean done = false;
+    int splits = 0;
+    final SynchronousChannel<Boolean> stopChannel = new SynchronousChannel<Boolean>("stop");
+    final SynchronousChannel<?> channel;
+    // Closing the channel closes the stop channel too, so that selects over both fail
+    final Runnable closeStop = stopChannel::close;
+
+    State(SynchronousChannel<?> channel) {
+      this.channel = channel;
+      if (channel != null) channel.addCloseListener(closeStop);
+    }
+
+    // Offers a stop value for every spliterator; the values not received
+    // remain on the private stop channel, and are discarded with it
+    synchronized void stop() {
+      if (done) return;
+      done = true;
+      if (channel != null) channel.removeCloseListener(closeStop);
+      long id = JMsgProcess.newAsyncId();
+      if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+        JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" stopping "+splits+" receivers");
+      for (int i=0; i<splits; i++)
+        stopChannel.offer(AsyncOffer.newAsyncOffer(Action.send(stopChannel,true),id,msg -> { }));
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Arrays;
+
+
+/**
+ * A snapshot of the state of a synchronous channel (see {@link SynchronousChannel#snapshot()}):
+ * the offers pending on the channel, and the synchronization attempt in progress, if any.
+ * <p>
+ * Offers are identified by the id of the thread which made them; offers
+ * made without a thread of their own (e.g., by a ChannelPublisher) have negative ids.
+ * </p>
+ */
+public class ChannelStats {
+  private final String channelName;
+  private final long channelId;
+  private final long timeNanos;
+  private final boolean closed;
+  private final long[] senderIds;
+  private final long[] receiverIds;
+  private final long oldestOfferNanos;
+  private final long lockDownSenderId;
+  private final long lockDownReceiverId;
+  private final boolean lockDownInProgress;
+  private final long rejected;
+
+  ChannelStats(String channelName, long channelId, long timeNanos, boolean closed,
+               long[] senderIds, long[] receiverIds, long oldestOfferNanos,
+               boolean lockDownInProgress, long lockDownSenderId, long lockDownReceiverId,
+               long rejected) {
+    this.channelName = channelName;
+    this.channelId = channelId;
+    this.timeNanos = timeNanos;
+    this.closed = closed;
+    this.senderIds = senderIds;
+    this.receiverIds = receiverIds;
+    this.oldestOfferNanos = oldestOfferNanos;
+    this.lockDownInProgress = lockDownInProgress;
+    this.lockDownSenderId = lockDownSenderId;
+    this.lockDownReceiverId = lockDownReceiverId;
+    this.rejected = rejected;
+  }
+
+  public String getChannelName() {
+    return channelName;
+  }
+
+  public long getChannelId() {
+    return channelId;
+  }
+
+  /**
+   * Returns the time (System.nanoTime()) at which the snapshot was taken.
+   */
+  public long getTimeNanos() {
+    return timeNanos;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns the number of send offers waiting for a matching receive offer.
+   */
+  public int getPendingSenders() {
+    return senderIds.length;
+  }
+
+  /**
+   * Returns the number of receive offers waiting for a matching send offer.
+   */
+  public int getPendingReceivers() {
+    return receiverIds.length;
+  }
+
+  /**
+   * Returns the ids of the processes of the pending send offers, oldest first (for a FIFO channel).
+   */
+  public long[] getSenderIds() {
+    return senderIds.clone();
+  }
+
+  /**
+   * Returns the ids of the processes of the pending receive offers, oldest first (for a FIFO channel).
+   */
+  public long[] getReceiverIds() {
+    return receiverIds.clone();
+  }
+
+  /**
+   * Returns how long the oldest offer on the channel had been waiting when
+   * the snapshot was taken, or 0 if there were no offers.
+   */
+  public long getOldestOfferAgeNanos() {
+    return oldestOfferNanos == 0 ? 0 : timeNanos - oldestOfferNanos;
+  }
+
+  /**
+   * Returns true if the channel was trying to synchronize a pair of offers,
+   * of which at least one originates from a select, i.e., the channel
+   * was waiting for the select(s) to lock down.
+   */
+  public boolean isLockDownInProgress() {
+    return lockDownInProgress;
+  }
+
+  /**
+   * Returns the id of the process of the send offer being synchronized, or 0.
+   */
+  public long getLockDownSenderId() {
+    return lockDownSenderId;
+  }
+
+  /**
+   * Returns the id of the process of the receive offer being synchronized, or 0.
+   */
+  public long getLockDownReceiverId() {
+    return lockDownReceiverId;
+  }
+
+  /**
+   * Returns the number of offers the channel has rejected so far, according
+   * to its admission policy (see {@link AdmissionPolicy}).
+   */
+  public long getRejectedOffers() {
+    return rejected;
+  }
+
+  public String toString() {
+    return channelName+"(id="+channelId+(closed ? ", closed" : "")
+      +", senders="+Arrays.toString(senderIds)
+      +", receivers="+Arrays.toString(receiverIds)
+      +", oldest="+getOldestOfferAgeNanos()/1000+"us"
+      +(rejected > 0 ? ", rejected="+rejected : "")
+      +(lockDownInProgress ? ", lockdown "+lockDownSenderId+" -> "+lockDownReceiverId : "")+")";
+  }
+}
@@ -0,0 +1,112 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+
+/**
+ * A Flow.Subscriber which sends the values it receives over a synchronous channel.
+ * <p>
+ * Every value received is offered over the channel, and a new value is requested
+ * from the publisher only when an offered value has been received by some
+ * receiver of the channel. Thus the rate of the publisher is governed by the receivers
+ * of the channel, without blocking a thread while waiting for them.
+ * At most maxOffers values are offered over the channel at any time.
+ * </p>
+ * <p>
+ * When the publisher completes (or fails) the channel is closed, once all values
+ * offered have been received; if the publisher fails, the channel is closed with
+ * its error as cause, which the receivers get as the cause of the
+ * {@link ChannelClosedException} thrown to them.
+ * If the channel is closed the subscription is cancelled.
+ * </p>
+ * <p>
+ * Example:<br>
+ * <code>
+ * publisher.subscribe(new ChannelSubscriber&lt;Integer&gt;(ch));
+ * </code>
+ * </p>
+ */
+public class ChannelSubscriber<E> implements Flow.Subscriber<E> {
+  private SynchronousChannel<E> channel;
+  private Executor executor;
+  private int maxOffers;
+  private final long id = JMsgProcess.newAsyncId();
+  private volatile Flow.Subscription subscription = null;
+  private final AtomicInteger offered = new AtomicInteger();
+  private volatile boolean completed = false;
+  private volatile Throwable error = null;
+
+  /**
+   * Creates a subscriber which sends the received values over channel, one at a time.
+   */
+  public ChannelSubscriber(SynchronousChannel<E> channel) {
+    this(channel,ForkJoinPool.commonPool(),1);
+  }
+
+  /**
+   * Creates a subscriber which sends the received values over channel,
+   * with at most maxOffers values offered at the same time. The executor
+   * is used to request more values from the publisher.
+   */
+  public ChannelSubscriber(SynchronousChannel<E> channel, Executor executor, int maxOffers) {
+    if (maxOffers <= 0) throw new IllegalArgumentException("maxOffers must be positive");
+    this.channel = channel;
+    this.executor = executor;
+    this.maxOffers = maxOffers;
+  }
+
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+    } else {
+      this.subscription = subscription;
+      subscription.request(maxOffers);
+    }
+  }
+
+  public void onNext(E item) {
+    offered.incrementAndGet();
+    AsyncOffer<E,E> offer = AsyncOffer.newAsyncOffer(Action.send(channel,item),id,this::committed);
+    if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+      JMsgProcess.getLogger().log(Level.FINE,this+": offer "+offer);
+    channel.offer(offer);
+  }
+
+  public void onError(Throwable throwable) {
+    if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+      JMsgProcess.getLogger().log(Level.FINE,this+": publisher failed with "+throwable);
+    error = throwable;
+    onComplete();
+  }
+
+  public void onComplete() {
+    completed = true;
+    if (offered.get() == 0) close();
+  }
+
+  private void close() {
+    if (error != null) channel.close(error);
+    else channel.close();
+  }
+
+  // Called by the channel when a value has been received, or the channel is closed.
+  // The publisher may call onNext directly from request, so
+  // the request is made by the executor.
+  private void committed(Message<E,E> msg) {
+    if (msg instanceof ClosedMessage<?,?>) {
+      executor.execute(() -> subscription.cancel());
+    } else if (offered.decrementAndGet() == 0 && completed) {
+      executor.execute(this::close);
+    } else if (!completed) {
+      executor.execute(() -> subscription.request(1));
+    }
+  }
+
+  public String toString() {
+    return "subscriber("+channel+")";
+  }
+}
@@ -0,0 +1,85 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * Provides utility methods for working with synchronous channels.
+ * <p>
+ * Examples:<br>
+ * <ul>
+ * <li>
+ * Sums, in parallel, the values received over ch until -1 is received:
+ * <code>
+ * Channels.receiveStream(ch, null, value -&gt; value == -1).parallel().mapToInt(v -&gt; v).sum()
+ * </code>
+ * <li>
+ * Waits at most one second for a value over ch:
+ * <code>
+ * Command.select(Arrays.asList(Action.receive(ch), Action.receive(Channels.after(Duration.ofSeconds(1)), t -&gt; null)))
+ * </code>
+ * </ul>
+ * </p>
+ */
+public class Channels {
+
+  private Channels() { }
+
+  /**
+   * Returns an (infinite) stream of the values received over the channel.
+   * Each element of the stream is obtained by receiving a value over the channel.
+   * The stream ends when the channel is closed.
+   * A parallel stream receives over the channel concurrently in several threads,
+   * at most one per thread of the fork join pool executing the stream.
+   */
+  public static <T> Stream<T> receiveStream(SynchronousChannel<T> channel) {
+    return receiveStream(channel,null);
+  }
+
+  /**
+   * Returns an (infinite) stream of the values, satisfying the guard predicate,
+   * received over the channel, which ends when the channel is closed.
+   */
+  public static <T> Stream<T> receiveStream(SynchronousChannel<T> channel, Predicate<T> guard) {
+    return StreamSupport.stream(new ChannelSpliterator<T>(channel,guard,null),false);
+  }
+
+  /**
+   * Returns a stream of the values, satisfying the guard predicate (null accepts any value),
+   * received over the channel. The stream ends when a value satisfying the poison
+   * predicate is received; the poisoned value is not part of the stream.
+   * A single poisoned value ends a parallel stream, i.e., all threads
+   * receiving for the stream stop. The stream also ends when the channel is closed.
+   */
+  public static <T> Stream<T> receiveStream(SynchronousChannel<T> channel, Predicate<T> guard, Predicate<T> poison) {
+    return StreamSupport.stream(new ChannelSpliterator<T>(channel,guard,poison),false);
+  }
+
+  /**
+   * Returns a channel over which the current time is sent once, when the delay has elapsed.
+   * The channel can be used in a select to implement a timeout: if another
+   * action is chosen, the select withdraws its receive offer on the channel as usual,
+   * and the timer is cancelled as no process waits on the channel any longer
+   * (the timer only runs while some process waits to receive from the channel).
+   * A later receive from the channel resumes the timer, so the value is still
+   * received once the delay has elapsed. Closing the channel cancels the timer.
+   * All timers (and tickers) are driven by a single thread.
+   */
+  public static SynchronousChannel<Instant> after(Duration delay) {
+    return TimerChannel.after(delay);
+  }
+
+  /**
+   * Returns a channel over which the current time is sent every period.
+   * A tick is dropped if the previous one has not yet been received,
+   * i.e., a slow receiver sees fewer ticks rather than a backlog.
+   * Closing the channel stops the ticker.
+   */
+  public static SynchronousChannel<Instant> ticker(Duration period) {
+    return TimerChannel.ticker(period);
+  }
+}
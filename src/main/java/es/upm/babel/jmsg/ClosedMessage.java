@@ -0,0 +1,16 @@
+package es.upm.babel.cclib.jmsg;
+
+
+class ClosedMessage<E,T> extends Message<E,T> {
+  public ClosedMessage(Offer<E,T> offer) {
+    super(offer);
+  }
+
+  public String toString() {
+    return "ClosedMessage("+getOffer()+")";
+  }
+
+  public static <E,T> ClosedMessage<E,T> newClosedMessage(Offer<E,T> offer) {
+    return new ClosedMessage<E,T>(offer);
+  }
+}
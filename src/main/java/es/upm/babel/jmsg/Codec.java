@@ -0,0 +1,101 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+
+/**
+ * Encodes the values passed over a remote channel (see {@link RemoteChannel}).
+ * A codec must decode exactly the bytes it encodes; null values are handled
+ * by the channel, and never passed to a codec. The channel frames every encoded
+ * value with its length: decode is passed a DataInputStream holding the bytes
+ * of one value, so a codec of variable length values can read them to its end.
+ */
+public interface Codec<E> {
+
+  void encode(E value, DataOutput out) throws IOException;
+
+  E decode(DataInput in) throws IOException;
+
+  static Codec<Integer> integers() {
+    return new Codec<Integer>() {
+      public void encode(Integer value, DataOutput out) throws IOException {
+        out.writeInt(value);
+      }
+      public Integer decode(DataInput in) throws IOException {
+        return in.readInt();
+      }
+    };
+  }
+
+  static Codec<Long> longs() {
+    return new Codec<Long>() {
+      public void encode(Long value, DataOutput out) throws IOException {
+        out.writeLong(value);
+      }
+      public Long decode(DataInput in) throws IOException {
+        return in.readLong();
+      }
+    };
+  }
+
+  static Codec<String> strings() {
+    return new Codec<String>() {
+      public void encode(String value, DataOutput out) throws IOException {
+        out.writeUTF(value);
+      }
+      public String decode(DataInput in) throws IOException {
+        return in.readUTF();
+      }
+    };
+  }
+
+  static Codec<byte[]> bytes() {
+    return new Codec<byte[]>() {
+      public void encode(byte[] value, DataOutput out) throws IOException {
+        out.write(value);
+      }
+      public byte[] decode(DataInput in) throws IOException {
+        return ((InputStream) in).readAllBytes();
+      }
+    };
+  }
+
+  /**
+   * Encodes the values with Java serialization. As the values come from other
+   * processes (e.g., over an unauthenticated connection), only the classes accepted by
+   * filter are deserialized, e.g.:
+   * <code>
+   * Codec.serializable(ObjectInputFilter.Config.createFilter("com.example.Job;java.base/*;!*"))
+   * </code>
+   * A value of a class rejected by the filter cannot be decoded.
+   */
+  static <E extends Serializable> Codec<E> serializable(ObjectInputFilter filter) {
+    if (filter == null) throw new NullPointerException("filter");
+    return new Codec<E>() {
+      public void encode(E value, DataOutput out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+          objects.writeObject(value);
+        }
+        out.write(bytes.toByteArray());
+      }
+      @SuppressWarnings("unchecked")
+      public E decode(DataInput in) throws IOException {
+        try (ObjectInputStream objects = new ObjectInputStream((InputStream) in)) {
+          objects.setObjectInputFilter(filter);
+          return (E) objects.readObject();
+        } catch (ClassNotFoundException exc) {
+          throw new IOException(exc);
+        }
+      }
+    };
+  }
+}
@@ -1,12 +1,15 @@
 package es.upm.babel.cclib.jmsg;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Predicate;
 import java.util.function.Function;
 import java.util.function.Consumer;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.Random;
@@ -49,9 +52,18 @@ import java.util.Random;
  * succeeded), or an integer>10 which was returned by the receive statement.
  * </ul>
  * </p>
+ * <p>
+ * If a thread is interrupted while waiting in execute or select, its offers are
+ * withdrawn from the channels and a RuntimeException (wrapping an InterruptedException)
+ * is thrown. The executeInterruptibly and selectInterruptibly variants throw the
+ * InterruptedException instead, e.g., for tasks of a thread pool which can be cancelled.
+ * </p>
  */
 public class Command {
 
+  // How to choose between select actions that can be synchronized at the same time
+  enum Preference { ARRIVAL, PRIORITY, RANDOM }
+
   /**
    * Sends value over the channel parameter. Returns when the value has been received.
    * @return The sent value
@@ -79,21 +91,67 @@ public class Command {
   /**
    * Executes an action.
    * @return The value returned by executing the action.
+   * @throws ChannelClosedException if the channel of the action is (or becomes) closed.
+   * @throws ChannelOverloadedException if the channel rejects the offer of the action
+   * (see {@link AdmissionPolicy}).
    */
   public static <T,U> U execute(Action<T,U> action) {
+    try {
+      return executeInterruptibly(action);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(exc);
+    }
+  }
+
+  /**
+   * Executes an action. If the thread is interrupted while waiting for the action to
+   * synchronize, the action is withdrawn and InterruptedException is thrown.
+   * If the action had already synchronized when the thread was interrupted,
+   * its value is returned (and the interrupt status of the thread is set).
+   * @return The value returned by executing the action.
+   * @throws ChannelClosedException if the channel of the action is (or becomes) closed.
+   * @throws ChannelOverloadedException if the channel rejects the offer of the action
+   * (see {@link AdmissionPolicy}).
+   */
+  public static <T,U> U executeInterruptibly(Action<T,U> action) throws InterruptedException {
+    SynchronousChannel<T> channel = action.getBasicAction().getChannel();
+    if (channel.isClosed())
+      throw new ChannelClosedException(channel);
+    if (channel instanceof ShardedChannel<?>)
+      return ((ShardedChannel<T>) channel).execute(action);
+    if (channel instanceof SharedMemoryChannel<?>)
+      return ((SharedMemoryChannel<T>) channel).execute(action);
+
     Offer<T,U> offer = new Offer<T,U>(action);
+    boolean interrupted = false;
     offer(offer);
     while (true) {
-      Message<?,?> msg = JMsgProcess.receive();
+      Message<?,?> msg;
+      try {
+        msg = JMsgProcess.receiveInterruptibly();
+      } catch (InterruptedException exc) {
+        if (channel.withdrawOffer(offer)) throw exc;
+        // Too late; the outcome of the offer is already in our mailbox
+        interrupted = true;
+        continue;
+      }
       if (msg instanceof CommitMessage<?,?>) {
         CommitMessage<?,?> cm = (CommitMessage<?,?>) msg;
         if (cm.getOffer() == offer) {
+          if (interrupted) Thread.currentThread().interrupt();
           return offer.accept();
         } else {
           if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
             JMsgProcess.getLogger().log(Level.SEVERE,Thread.currentThread().getName()+": got offer "+msg+" was waiting for "+offer);
           throw new RuntimeException();
         }
+      } else if (msg instanceof ClosedMessage<?,?> && msg.getOffer() == offer) {
+        if (interrupted) Thread.currentThread().interrupt();
+        throw new ChannelClosedException(channel);
+      } else if (msg instanceof RejectedMessage<?,?> && msg.getOffer() == offer) {
+        if (interrupted) Thread.currentThread().interrupt();
+        throw new ChannelOverloadedException(channel);
       }
     }
   }
@@ -103,56 +161,293 @@ public class Command {
    * is executed. Note that all actions in the parameter list must return a value
    * of the same type T, but they may attempt to synchronize over channels
    * of different types. 
+   * Actions over closed channels, or over channels which rejected them
+   * (see {@link AdmissionPolicy}), are not considered.
    * @return the value returned by executing the action.
+   * @throws ChannelClosedException if the channels of all the actions are (or become) closed.
+   * @throws ChannelOverloadedException if no action can be considered, and the last
+   * channel to be no longer considered rejected its action.
    */
   public static <T> T select(List<Action<?,T>> actions) {
-    SortedMap<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers =
-      new TreeMap<SynchronousChannel<?>,ChannelOffers<?,T>>();
-    long timestamp = 0;
+    return uninterruptibly(actions,Preference.ARRIVAL);
+  }
+
+  /**
+   * As select, but if the thread is interrupted while waiting for an action to
+   * synchronize, all the actions are withdrawn and InterruptedException is thrown.
+   * If an action had already synchronized when the thread was interrupted,
+   * its value is returned (and the interrupt status of the thread is set).
+   * @return the value returned by executing the action.
+   */
+  public static <T> T selectInterruptibly(List<Action<?,T>> actions) throws InterruptedException {
+    return select(actions,Preference.ARRIVAL);
+  }
+
+  /**
+   * As select, but if several of the actions in the parameter list can be
+   * synchronized at the same time, the action appearing first in the list
+   * is executed. This permits e.g. a control channel to be preferred
+   * over a busy data channel:
+   * <pre>
+   * <code>
+   * List&lt;Action&lt;?,Integer&gt;&gt; selectArgs =
+   *   Arrays.asList(Action.receive(controlCh),
+   *                 Action.receive(dataCh));
+   * Integer result = Command.prioritySelect(selectArgs);
+   * </code>
+   * </pre>
+   * Actions are compared only when they can synchronize when the select
+   * is made, or when their channels have asked to synchronize before the
+   * select answers; the select does not wait for a preferred action.
+   * @return the value returned by executing the action.
+   */
+  public static <T> T prioritySelect(List<Action<?,T>> actions) {
+    return uninterruptibly(actions,Preference.PRIORITY);
+  }
+
+  /**
+   * As select, but if several of the actions in the parameter list can be
+   * synchronized at the same time, one of them is chosen at random.
+   * Thus no action is systematically preferred over another, regardless of
+   * its position in the list or of the channel it synchronizes over.
+   * @return the value returned by executing the action.
+   */
+  public static <T> T fairSelect(List<Action<?,T>> actions) {
+    return uninterruptibly(actions,Preference.RANDOM);
+  }
+
+  private static <T> T uninterruptibly(List<Action<?,T>> actions, Preference preference) {
+    try {
+      return select(actions,preference);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(exc);
+    }
+  }
+
+  /**
+   * Executes all the actions in the parameter list atomically, as a join pattern:
+   * the command returns when every action can synchronize, and no action
+   * synchronizes before all of them can. E.g., taking an order, a matching quote
+   * and a credit token at once:
+   * <pre>
+   * <code>
+   * List&lt;Object&gt; taken =
+   *   Command.join(Arrays.asList(Action.receive(orders),
+   *                              Action.receiveWithGuard(quotes, quote -&gt; ...),
+   *                              Action.receive(credits)));
+   * </code>
+   * </pre>
+   * The actions must be over distinct channels. The actions of a join synchronize with sends,
+   * receives and selects, but not with the actions of other joins.
+   * @return the values returned by executing the actions, in the order of the parameter list.
+   * @throws ChannelClosedException if the channel of an action is (or becomes) closed,
+   * in which case no action has been executed.
+   * @throws ChannelOverloadedException if the channel of an action rejects its offer,
+   * in which case no action has been executed.
+   */
+  public static <T> List<T> join(List<Action<?,T>> actions) {
+    try {
+      return joinInterruptibly(actions);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(exc);
+    }
+  }
+
+  /**
+   * As join, but if the thread is interrupted while waiting for the actions
+   * to synchronize, the actions are withdrawn and InterruptedException is thrown.
+   * @return the values returned by executing the actions, in the order of the parameter list.
+   */
+  public static <T> List<T> joinInterruptibly(List<Action<?,T>> actions) throws InterruptedException {
+    // The offers are made in channel order, and an offer is kept locked down
+    // until all offers are, as locks acquired in a global order: a join waiting
+    // for a channel only holds lower channels, so joins cannot deadlock.
+    // A join is informed of a lock down only when the other offer has locked down,
+    // so a locked down offer of a join stays committable (unless the other process is
+    // interrupted); the join finally commits all its offers at once, with all its channels locked.
+    List<Offer<?,T>> offers = new ArrayList<Offer<?,T>>();
+    for (int i=0; i<actions.size(); i++) {
+      if (actions.get(i).getBasicAction().getChannel() instanceof ShardedChannel<?>)
+        throw new IllegalArgumentException("joins over sharded channels are not supported");
+      if (actions.get(i).getBasicAction().getChannel() instanceof RemoteChannel<?>)
+        throw new IllegalArgumentException("joins over remote channels are not supported");
+      if (actions.get(i).getBasicAction().getChannel() instanceof SharedMemoryChannel<?>)
+        throw new IllegalArgumentException("joins over shared memory channels are not supported");
+      offers.add(newOffer(actions.get(i),0,i));
+    }
+    offers.sort((o1,o2) -> compare(channel(o1),channel(o2)));
+    for (int i=1; i<offers.size(); i++)
+      if (channel(offers.get(i-1)) == channel(offers.get(i)))
+        throw new IllegalArgumentException("the actions of a join must be over distinct channels");
+
+    Mailbox mailbox = JMsgProcess.getQueue();
+    long timestamp = mailbox.nextSelectTimestamp();
+    // offers 0..next-1 are locked down, offer next (if any) is waiting
+    int next = 0;
+    if (!offers.isEmpty()) offers.set(0,joinOffer(offers.get(0),timestamp));
+
+    while (next < offers.size() || !commitJoin(offers,0)) {
+      Message<?,?> msg;
+      try {
+        msg = JMsgProcess.receiveInterruptibly();
+      } catch (InterruptedException exc) {
+        releaseJoin(offers,0,next);
+        throw exc;
+      }
+      int index = offers.indexOf(msg.getOffer());
+      // A message concerning an earlier offer is stale
+      if (index < 0 || index > next) continue;
+
+      if (msg instanceof LockDownMessage<?,?> && index == next) {
+        if (++next < offers.size()) offers.set(next,joinOffer(offers.get(next),timestamp));
+      } else if (msg instanceof AbortMessage<?,?>) {
+        // The other process withdrew; the offer is no longer on the channel, and the
+        // higher channels are released before it is made again
+        releaseJoin(offers,index+1,next);
+        next = index;
+        offers.set(next,joinOffer(offers.get(next),timestamp));
+      } else if (msg instanceof ClosedMessage<?,?>) {
+        releaseJoin(offers,0,next);
+        throw new ChannelClosedException(channel(offers.get(index)));
+      } else if (msg instanceof RejectedMessage<?,?>) {
+        releaseJoin(offers,0,next);
+        throw new ChannelOverloadedException(channel(offers.get(index)));
+      }
+    }
+
+    // The commits have been delivered while the channels were locked
+    int commits = 0;
+    while (commits < offers.size()) {
+      Message<?,?> msg = JMsgProcess.receive();
+      if (msg instanceof CommitMessage<?,?> && offers.contains(msg.getOffer())) commits++;
+    }
+    @SuppressWarnings("unchecked")
+    T[] results = (T[]) new Object[offers.size()];
+    for (Offer<?,T> offer : offers) results[offer.getSelectIndex()] = offer.accept();
+    return Arrays.asList(results);
+  }
+
+  // A fresh offer (so that messages about earlier offers are recognized as stale)
+  private static <E,T> Offer<E,T> joinOffer(Offer<E,T> previous, long timestamp) {
+    Offer<E,T> offer = new Offer<E,T>(previous.getAction(),timestamp,previous.getSelectIndex());
+    offer.setJoin();
+    offer(offer);
+    return offer;
+  }
+
+  // Cancels offers from..to (inclusive, if there are that many)
+  private static <T> void releaseJoin(List<Offer<?,T>> offers, int from, int to) {
+    for (int i=from; i<=to && i<offers.size(); i++) cancelOffer(offers.get(i));
+  }
+
+  // Locks the channels from index on, in channel order, and commits all
+  // offers if all of them can commit
+  private static <T> boolean commitJoin(List<Offer<?,T>> offers, int index) {
+    if (index < offers.size()) {
+      synchronized (channel(offers.get(index))) {
+        return commitJoin(offers,index+1);
+      }
+    }
+    for (Offer<?,T> offer : offers)
+      if (!channel(offer).isReadyToJoin(offer)) return false;
+    for (Offer<?,T> offer : offers) acceptLockDown(offer);
+    return true;
+  }
+
+  private static SynchronousChannel<?> channel(Offer<?,?> offer) {
+    return offer.getAction().getBasicAction().getChannel();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compare(SynchronousChannel<?> channel1, SynchronousChannel<?> channel2) {
+    return ((SynchronousChannel<Object>) channel1).compareTo((SynchronousChannel<Object>) channel2);
+  }
+
+  static <T> T select(List<Action<?,T>> actions, Preference preference) throws InterruptedException {
+    actions = expandShards(actions);
+    // The offers are grouped by channel, and made one channel at a time
+    Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers =
+      new LinkedHashMap<SynchronousChannel<?>,ChannelOffers<?,T>>();
+    Mailbox mailbox = JMsgProcess.getQueue();
+    mailbox.nextSelectTimestamp();
+    SelectState state = new SelectState(mailbox);
+    Offer<?,T> committed = null;
+    try {
+      committed = select(actions,preference,selectOffers,mailbox,state);
+    } finally {
+      abandon(state,selectOffers,committed);
+      // Lock downs of our offers still on their way are now stale
+      mailbox.nextSelectTimestamp();
+    }
+    return committed.accept();
+  }
+
+  // The offers of a select stay on their channels while the select synchronizes
+  // over one of them: a lock down from another channel meanwhile is answered by
+  // cancelling just that offer, which is retired and made again (afresh) if the
+  // synchronization aborts. Thus re-arming a select only touches the channels which
+  // tried to synchronize with it. When the select ends, its offers are abandoned
+  // rather than cancelled on every channel (see SelectState).
+  // Returns the offer committed.
+  private static <T> Offer<?,T> select(List<Action<?,T>> actions, Preference preference,
+                                       Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers,
+                                       Mailbox mailbox, SelectState state) throws InterruptedException {
+    boolean interrupted = false;
+    // The offers cancelled while synchronizing
+    List<Offer<?,T>> retired = new ArrayList<Offer<?,T>>();
     
-    // Inform all channels of the select offers
+    // Construct the select offers
+    List<Offer<?,T>> offers = new ArrayList<Offer<?,T>>(actions.size());
     for (int i=0; i<actions.size(); i++) {
       Action<?,T> action = actions.get(i);
-      
-      if (action != null) {
-        // Construct a select offer
-        Offer<?,T> offer = newOffer(action,timestamp,i);
-	ChannelOffers<?,T> chanOffers = selectOffers.get(action.getBasicAction().getChannel());
-	if (chanOffers == null) {
-	  chanOffers = ChannelOffers.newChannelOffers(offer);
-	  selectOffers.put(action.getBasicAction().getChannel(),chanOffers);
-	}
-	chanOffers.add(offer);
+      if (action != null) offers.add(newOffer(action,state,i));
+    }
+
+    // An offer whose channel has a plain offer waiting for it synchronizes at once
+    Offer<?,T> claimed = claim(offers,preference);
+    if (claimed != null) return claimed;
+
+    // Inform all channels of the select offers
+    for (Offer<?,T> offer : offers) {
+      ChannelOffers<?,T> chanOffers = selectOffers.get(channel(offer));
+      if (chanOffers == null) {
+        chanOffers = ChannelOffers.newChannelOffers(offer);
+        selectOffers.put(channel(offer),chanOffers);
       }
+      chanOffers.add(offer);
     }
     
     for (ChannelOffers<?,?> chOffers : selectOffers.values()) {
       chOffers.offers();
     }
     
-    boolean resolvedSelect = false;
-    
     while (true) {
       if (JMsgProcess.getLogger().isLoggable(Level.FINE))
         JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" WAITING for message while idle");
       
-      Message<?,?> msg = JMsgProcess.receive();
+      Message<?,?> msg;
+      try {
+        msg = JMsgProcess.receiveInterruptibly();
+      } catch (InterruptedException exc) {
+        // No offer can have synchronized, as we have not accepted a lock down;
+        // lock downs already sent to us become stale
+        throw exc;
+      }
       
       if (msg instanceof LockDownMessage<?,?>) {
         @SuppressWarnings("unchecked")
         LockDownMessage<?,T> ld = (LockDownMessage<?,T>) msg;
         Offer<?,T> offer = ld.getOffer();
         
-        if (offer.getTimestamp() == timestamp) {
+        if (offer.belongsTo(state) && preference != Preference.ARRIVAL)
+          offer = preferredOffer(offer,state,preference,selectOffers,retired);
+
+        if (offer != null && offer.belongsTo(state)) {
           
           // We are in LOCKDOWN mode!
-          // First cancel all synchronization offers, excepting offer
-	  for (ChannelOffers<?,?> chOffers : selectOffers.values()) {
-	    chOffers.cancelOffers(offer);
-	  }
-          
           // Signal that we accept lockdown
-	  ++timestamp;
           acceptLockDown(offer);
           boolean synchronization_aborted = false;
           
@@ -160,15 +455,31 @@ public class Command {
             if (JMsgProcess.getLogger().isLoggable(Level.FINE))
               JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" WAITING for message while synchronizing on "+offer);
             // Next wait until channel commits, or we are aborted
-            msg = JMsgProcess.receive();
+            try {
+              msg = JMsgProcess.receiveInterruptibly();
+            } catch (InterruptedException exc) {
+              if (withdrawOffer(offer)) throw exc;
+              // Too late; the outcome of the synchronization is already in our mailbox
+              interrupted = true;
+              continue;
+            }
             
             if (msg instanceof AbortMessage<?,?>) {
               // Other process cancelled some synchronization involving us
               AbortMessage<?,?> ad = (AbortMessage<?,?>) msg;
               if (ad.getOffer() == offer) synchronization_aborted=true;
+            } else if (msg instanceof ClosedMessage<?,?>) {
+              // A channel was closed, perhaps the one we are synchronizing on
+              closed(msg.getOffer(),selectOffers);
+              if (msg.getOffer() == offer) synchronization_aborted=true;
+            } else if (msg instanceof RejectedMessage<?,?>) {
+              // A channel rejected another of our offers (ours is no longer pending)
+              rejected(msg.getOffer(),offer,state,selectOffers);
             } else if (msg instanceof LockDownMessage<?,?>) {
-              // Some other channel wants to lock us down; we do nothing
-              // since presumably the channel has already got a cancelOffer
+              // Some other channel wants to lock us down; it waits for our answer
+              @SuppressWarnings("unchecked")
+              Offer<?,T> other = (Offer<?,T>) msg.getOffer();
+              if (other != offer && other.belongsTo(state)) retire(other,retired);
             } else if (msg instanceof CommitMessage<?,?>) {
               // Other process also wants to continue
               CommitMessage<?,?> cm = (CommitMessage<?,?>) msg;
@@ -177,7 +488,8 @@ public class Command {
               if (cmOffer == offer) {
                 if (JMsgProcess.getLogger().isLoggable(Level.FINE))
                   JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" got COMMIT on offer "+offer);
-                return offer.accept();
+                if (interrupted) Thread.currentThread().interrupt();
+                return offer;
               } else {
                 if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
                   JMsgProcess.getLogger().log(Level.SEVERE,Thread.currentThread().getName()+": got offer "+cm+" was waiting for "+offer);
@@ -189,14 +501,39 @@ public class Command {
           if (JMsgProcess.getLogger().isLoggable(Level.FINE))
             JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" REOFFERING");
           
-          // Synchronization was aborted; we reoffer our cancelled offers
-	  for (ChannelOffers<?,?> chOffers : selectOffers.values()) {
-	    chOffers.offers(timestamp);
-	  }
+          // Synchronization was aborted; we reoffer the aborted offer, and
+          // the offers cancelled meanwhile
+          if (interrupted)
+            throw new InterruptedException();
+          if (allClosed(selectOffers))
+            throw disabled(channel(offer),selectOffers);
+          mailbox.nextSelectTimestamp();
+          if (!isDisabled(offer,selectOffers)) offer(offer);
+          for (Offer<?,T> old : retired) {
+            if (isDisabled(old,selectOffers)) continue;
+            Offer<?,T> fresh = newOffer(old.getAction(),state,old.getSelectIndex());
+            selectOffers.get(channel(old)).replace(old,fresh);
+            offer(fresh);
+          }
+          retired.clear();
           
-        } else {
-	  JMsgProcess.getLogger().log(Level.FINE,Thread.currentThread().getName()+": got lockdown "+offer+" but timestamp is "+timestamp+"; skipping");
+        } else if (offer != null) {
+	  JMsgProcess.getLogger().log(Level.FINE,Thread.currentThread().getName()+": got lockdown "+offer+" but timestamp is "+state.getTimestamp()+"; skipping");
 	}
+      } else if (msg instanceof AbortMessage<?,?>) {
+        // An abort always follows the lock down of the same offer, so it is stale:
+        // the lock down was abandoned by an earlier (interrupted) select, or the
+        // offer was retired
+        if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+          JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" got stale "+msg+"; skipping");
+      } else if (msg instanceof ClosedMessage<?,?>) {
+        // The actions over a closed channel are no longer considered
+        if (closed(msg.getOffer(),selectOffers) && allClosed(selectOffers))
+          throw new ChannelClosedException(msg.getOffer().getAction().getBasicAction().getChannel());
+      } else if (msg instanceof RejectedMessage<?,?>) {
+        // As are the actions over a channel which rejected an offer
+        if (rejected(msg.getOffer(),null,state,selectOffers) && allClosed(selectOffers))
+          throw new ChannelOverloadedException(channel(msg.getOffer()));
       } else {
 	if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
 	  JMsgProcess.getLogger().log(Level.SEVERE,Thread.currentThread().getName()+": got message "+msg+" was waiting for lock_down message");
@@ -204,15 +541,203 @@ public class Command {
       }
     }
   }
+
+  // Probes the channels of the offers, in the order of the actions (from a random
+  // action on for a fair select), for an offer waiting which needs no lock down
+  // (see SynchronousChannel.claim). The offer claiming it is committed without
+  // having been made, and so without registering or cancelling the other offers;
+  // its commit is already in our mailbox. Returns null if no offer can be claimed.
+  private static <T> Offer<?,T> claim(List<Offer<?,T>> offers, Preference preference) {
+    // An interrupted select is withdrawn rather than synchronized
+    if (offers.isEmpty() || Thread.currentThread().isInterrupted()) return null;
+    int first = preference == Preference.RANDOM ? ThreadLocalRandom.current().nextInt(offers.size()) : 0;
+    for (int i=0; i<offers.size(); i++) {
+      Offer<?,T> offer = offers.get((first + i) % offers.size());
+      if (!claim(offer)) continue;
+      takeCommit(offer);
+      return offer;
+    }
+    return null;
+  }
+
+  // Synchronizes the action at once with an offer waiting on its channel which needs
+  // no lock down, as a select does (see claim), without making an offer. Returns the
+  // offer committed, or null if there is none (see ShardedChannel).
+  static <E,T> Offer<E,T> claim(Action<E,T> action) {
+    if (Thread.currentThread().isInterrupted()) return null;
+    Offer<E,T> offer = new Offer<E,T>(action);
+    if (!claim(offer)) return null;
+    takeCommit(offer);
+    return offer;
+  }
+
+  // Takes the commit of a claimed offer from our mailbox, skipping the messages
+  // left by earlier operations
+  private static void takeCommit(Offer<?,?> offer) {
+    Message<?,?> msg;
+    while ((msg = JMsgProcess.poll()) != null)
+      if (msg instanceof CommitMessage<?,?> && msg.getOffer() == offer) return;
+    throw new IllegalStateException(JMsgProcess.threadName()+": no commit for claimed "+offer);
+  }
+
+  // Cancels an offer whose channel waits for our lock down, while we are
+  // locked down on another channel (or chose another lock down)
+  private static <T> void retire(Offer<?,T> offer, List<Offer<?,T>> retired) {
+    offer.retire();
+    cancelOffer(offer);
+    retired.add(offer);
+  }
+
+  // Ends the select: the offers which channels have contacted (and may be waiting
+  // for our lock down) are cancelled, as are the offers over channels which do not
+  // purge abandoned offers; the rest are counted on their channels, which drop them lazily
+  private static <T> void abandon(SelectState state, Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers,
+                                  Offer<?,T> committed) {
+    for (Offer<?,?> offer : state.finish())
+      if (offer != committed && offer.belongsTo(state)) cancelOffer(offer);
+    for (ChannelOffers<?,T> chOffers : selectOffers.values()) {
+      if (!chOffers.getChannel().purgesAbandonedOffers()) chOffers.cancelOffers(committed);
+      else if (!chOffers.isDisabled()) chOffers.getChannel().abandoned(chOffers.getOffers().size());
+    }
+  }
+
+  private static <T> boolean isDisabled(Offer<?,?> offer, Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers) {
+    return selectOffers.get(channel(offer)).isDisabled();
+  }
+  
+  // Replaces the actions on sharded channels by actions on their shards,
+  // keeping the order of the actions
+  private static <T> List<Action<?,T>> expandShards(List<Action<?,T>> actions) {
+    boolean sharded = false;
+    for (Action<?,T> action : actions) {
+      if (action != null && action.getBasicAction().getChannel() instanceof SharedMemoryChannel<?>)
+        throw new IllegalArgumentException("selects over shared memory channels are not supported");
+      sharded = sharded || (action != null && action.getBasicAction().getChannel() instanceof ShardedChannel<?>);
+    }
+    if (!sharded) return actions;
+
+    List<Action<?,T>> expanded = new ArrayList<Action<?,T>>();
+    for (Action<?,T> action : actions)
+      if (action != null) expand(action,expanded);
+    return expanded;
+  }
+
+  private static <E,T> void expand(Action<E,T> action, List<Action<?,T>> actions) {
+    SynchronousChannel<E> channel = action.getBasicAction().getChannel();
+    if (channel instanceof ShardedChannel<?>)
+      ((ShardedChannel<E>) channel).expand(action,actions);
+    else
+      actions.add(action);
+  }
+
+  // Disables the actions of the select over the channel of a closed offer.
+  // Returns false if the offer is not one of the select (i.e., it is stale).
+  private static <T> boolean closed(Offer<?,?> offer, Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers) {
+    ChannelOffers<?,T> chOffers = selectOffers.get(offer.getAction().getBasicAction().getChannel());
+    if (chOffers == null || !chOffers.contains(offer)) return false;
+    if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+      JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" disabling closed "+chOffers.getChannel());
+    chOffers.disable();
+    return true;
+  }
+
+  // Disables the actions of the select over the channel of a rejected offer (see
+  // AdmissionPolicy). The other offers of the select still on the channel, but
+  // remain (being synchronized), are retired and cancelled.
+  // Returns false if the offer is not one of the select (i.e., it is stale).
+  private static <T> boolean rejected(Offer<?,?> offer, Offer<?,?> remain, SelectState state,
+                                      Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers) {
+    ChannelOffers<?,T> chOffers = selectOffers.get(channel(offer));
+    if (chOffers == null || !chOffers.contains(offer)) return false;
+    if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+      JMsgProcess.getLogger().log(Level.FINE,JMsgProcess.threadName()+" disabling overloaded "+chOffers.getChannel());
+    chOffers.reject();
+    for (Offer<?,T> other : chOffers.getOffers()) {
+      if (other != offer && other != remain && other.belongsTo(state)) {
+        other.retire();
+        cancelOffer(other);
+      }
+    }
+    return true;
+  }
+
+  // The exception thrown by a select none of whose actions can synchronize any longer
+  private static <T> RuntimeException disabled(SynchronousChannel<?> channel,
+                                               Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers) {
+    ChannelOffers<?,T> chOffers = selectOffers.get(channel);
+    if (chOffers != null && chOffers.isRejected()) return new ChannelOverloadedException(channel);
+    return new ChannelClosedException(channel);
+  }
+
+  private static <T> boolean allClosed(Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers) {
+    for (ChannelOffers<?,T> chOffers : selectOffers.values())
+      if (!chOffers.isDisabled()) return false;
+    return true;
+  }
+
+  // Inspects the lock down messages which have already arrived, and returns
+  // the offer with the lowest select index (PRIORITY), or an offer chosen
+  // uniformly at random (RANDOM). The offers of the lock downs not chosen
+  // are cancelled and retired, to be made again if the synchronization aborts.
+  // A lock down which has since been aborted, or whose channel has been closed,
+  // is not chosen; if no lock down remains null is returned.
+  private static <T> Offer<?,T> preferredOffer(Offer<?,T> offer, SelectState state, Preference preference,
+                                               Map<SynchronousChannel<?>,ChannelOffers<?,T>> selectOffers,
+                                               List<Offer<?,T>> retired) {
+    Random random = ThreadLocalRandom.current();
+    List<Offer<?,T>> candidates = new ArrayList<Offer<?,T>>();
+    candidates.add(offer);
+    Message<?,?> msg;
+    while ((msg = JMsgProcess.poll()) != null) {
+      if (msg instanceof LockDownMessage<?,?>) {
+        @SuppressWarnings("unchecked")
+        Offer<?,T> other = ((LockDownMessage<?,T>) msg).getOffer();
+        if (other.belongsTo(state)) candidates.add(other);
+      } else if (msg instanceof AbortMessage<?,?>) {
+        // The channel has dropped the aborted offer; it is still one of ours
+        if (candidates.remove(msg.getOffer())) offer(msg.getOffer());
+      } else if (msg instanceof ClosedMessage<?,?>) {
+        closed(msg.getOffer(),selectOffers);
+      } else if (msg instanceof RejectedMessage<?,?>) {
+        rejected(msg.getOffer(),null,state,selectOffers);
+      } else {
+        if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
+          JMsgProcess.getLogger().log(Level.SEVERE,Thread.currentThread().getName()+": got message "+msg+" was waiting for lock_down message");
+        throw new RuntimeException();
+      }
+    }
+
+    offer = null;
+    int enabled = 0;
+    for (Offer<?,T> candidate : candidates) {
+      if (selectOffers.get(candidate.getAction().getBasicAction().getChannel()).isDisabled()) continue;
+      if (preference == Preference.PRIORITY) {
+        if (offer == null || candidate.getSelectIndex() < offer.getSelectIndex()) offer = candidate;
+      } else if (random.nextInt(++enabled) == 0) offer = candidate;
+    }
+    for (Offer<?,T> candidate : candidates)
+      if (candidate != offer && !selectOffers.get(channel(candidate)).isDisabled()) retire(candidate,retired);
+    if (offer == null && allClosed(selectOffers))
+      throw disabled(selectOffers.keySet().iterator().next(),selectOffers);
+    return offer;
+  }
   
   private static <T,U> Offer<T,U> newOffer(Action<T,U> action, long timestamp, int i) {
     return new Offer<T,U>(action,timestamp,i);
   }
+
+  private static <T,U> Offer<T,U> newOffer(Action<T,U> action, SelectState state, int i) {
+    return new Offer<T,U>(action,state,i);
+  }
   
   private static <T,U> void offer(Offer<T,U> offer) {
     offer.getAction().getBasicAction().getChannel().offer(offer);
   }
   
+  private static <T,U> boolean claim(Offer<T,U> offer) {
+    return offer.getAction().getBasicAction().getChannel().claim(offer);
+  }
+
   private static <T,U> void acceptLockDown(Offer<T,U> offer) {
     offer.getAction().getBasicAction().getChannel().acceptLockDown(offer);
   }
@@ -220,4 +745,8 @@ public class Command {
   private static <T,U> void cancelOffer(Offer<T,U> offer) {
     offer.getAction().getBasicAction().getChannel().cancelOffer(offer);
   }
+
+  private static <T,U> boolean withdrawOffer(Offer<T,U> offer) {
+    return offer.getAction().getBasicAction().getChannel().withdrawOffer(offer);
+  }
 }
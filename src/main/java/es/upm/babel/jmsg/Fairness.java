@@ -0,0 +1,16 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Determines how a synchronous channel chooses between several send and receive
+ * offers that could synchronize at the same time.
+ * <ul>
+ * <li>FIFO: the oldest matching offers are preferred (the default).
+ * <li>RANDOM: the search for a matching pair starts at a random sender and receiver.
+ * <li>ROUND_ROBIN: the search for a matching pair starts one position further
+ * along the pending senders and receivers after each synchronization.
+ * </ul>
+ */
+public enum Fairness {
+  FIFO, RANDOM, ROUND_ROBIN
+}
@@ -0,0 +1,72 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.function.Predicate;
+
+
+/**
+ * Provides guards for receive actions which accept the values in a range.
+ * Unlike an arbitrary predicate, a channel knows which values such a guard
+ * accepts: once a receive with a range guard has been offered over a channel, the channel
+ * keeps its pending sends sorted by value, so that a receiver finds a matching sender
+ * in logarithmic time, rather than by testing the guard against every sender.
+ * If several senders match, the one with the smallest value is chosen
+ * (and between equal values, the oldest one).
+ * <p>
+ * Example:
+ * <code>
+ * Command.receiveWithGuard(ch, Guards.between(10, 20))
+ * </code>
+ * </p>
+ * <p>
+ * The values sent over the channel must be mutually comparable, and not null;
+ * otherwise the channel falls back to testing the guard against every sender.
+ * </p>
+ */
+public class Guards {
+
+  private Guards() { }
+
+  /**
+   * Accepts the values greater than bound.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> greaterThan(T bound) {
+    return new RangeGuard<T>(bound,false,null,false);
+  }
+
+  /**
+   * Accepts the values greater than or equal to bound.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> atLeast(T bound) {
+    return new RangeGuard<T>(bound,true,null,false);
+  }
+
+  /**
+   * Accepts the values less than bound.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> lessThan(T bound) {
+    return new RangeGuard<T>(null,false,bound,false);
+  }
+
+  /**
+   * Accepts the values less than or equal to bound.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> atMost(T bound) {
+    return new RangeGuard<T>(null,false,bound,true);
+  }
+
+  /**
+   * Accepts the values between low and high, both included.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> between(T low, T high) {
+    if (low.compareTo(high) > 0)
+      throw new IllegalArgumentException("empty range "+low+".."+high);
+    return new RangeGuard<T>(low,true,high,true);
+  }
+
+  /**
+   * Accepts the values equal to value.
+   */
+  public static <T extends Comparable<? super T>> Predicate<T> equalTo(T value) {
+    return new RangeGuard<T>(value,true,value,true);
+  }
+}
@@ -0,0 +1,88 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+
+// The helper processes which synchronize on behalf of the offers of parties without
+// a process of their own (e.g., the Flow adapters), over channels which cannot hold
+// such an offer themselves: a ShardedChannel receiving over all its shards, or a
+// SharedMemoryChannel waiting on its ring. The outcome of the synchronization is
+// delivered to the offer as a commit (with the value), closed or rejected message.
+//
+// A helper is blocked while it synchronizes, so the helpers are bounded: when
+// MAX_HELPERS synchronize at once, a further offer is rejected (as by an overloaded
+// channel, see AdmissionPolicy). Every synchronization runs with a mailbox of its
+// own, registered only while it runs (as that of a Proc), so that the pooled threads
+// leave no mailboxes behind.
+final class Helpers {
+  static final int MAX_HELPERS = 256;
+
+  private static final ThreadPoolExecutor pool =
+    new ThreadPoolExecutor(0,MAX_HELPERS,60,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),task -> {
+        Thread thread = new Thread(task,"jmsg-helper");
+        thread.setDaemon(true);
+        return thread;
+      });
+  // The synchronizations in progress, by the offer they are made for
+  private static final Map<Offer<?,?>,Future<?>> running = new ConcurrentHashMap<Offer<?,?>,Future<?>>();
+
+  private Helpers() {
+  }
+
+  // Synchronizes over channel on behalf of offer, by calling synchronization
+  // (which returns the value passed, and is interrupted if the offer is cancelled)
+  static <E> void synchronize(SynchronousChannel<E> channel, Offer<E,?> offer, Callable<E> synchronization) {
+    FutureTask<Void> task = new FutureTask<Void>(() -> {
+        Mailbox mailbox = new Mailbox(JMsgProcess.newAsyncId());
+        Mailbox previous = JMsgProcess.enter(mailbox);
+        try {
+          E value = synchronization.call();
+          offer.setResolvedValue(value);
+          offer.deliver(channel,CommitMessage.newCommitMessage(offer));
+        } catch (ChannelClosedException exc) {
+          offer.deliver(channel,ClosedMessage.newClosedMessage(offer));
+        } catch (ChannelOverloadedException exc) {
+          offer.deliver(channel,RejectedMessage.newRejectedMessage(offer));
+        } catch (InterruptedException exc) {
+          // The offer has been cancelled
+        } catch (Exception exc) {
+          // E.g., a value which cannot be encoded; the channel is as good as closed to the offer
+          if (JMsgProcess.getLogger().isLoggable(Level.WARNING))
+            JMsgProcess.getLogger().log(Level.WARNING,channel+": "+offer+" failed with "+exc);
+          offer.deliver(channel,ClosedMessage.newClosedMessage(offer));
+        } finally {
+          running.remove(offer);
+          JMsgProcess.leave(mailbox,previous);
+        }
+      },null);
+    running.put(offer,task);
+    try {
+      pool.execute(task);
+    } catch (RejectedExecutionException exc) {
+      running.remove(offer);
+      if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+        JMsgProcess.getLogger().log(Level.FINE,channel+": no helper for "+offer);
+      offer.deliver(channel,RejectedMessage.newRejectedMessage(offer));
+    }
+  }
+
+  // Interrupts the synchronization made on behalf of offer, if still in progress
+  static void cancel(Offer<?,?> offer) {
+    Future<?> task = running.remove(offer);
+    if (task != null) task.cancel(true);
+  }
+
+  // The number of synchronizations in progress
+  static int running() {
+    return running.size();
+  }
+}
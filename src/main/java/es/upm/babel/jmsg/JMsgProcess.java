@@ -1,10 +1,8 @@
 package es.upm.babel.cclib.jmsg;
 
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.ConsoleHandler;
@@ -15,59 +13,110 @@ import java.util.logging.LogRecord;
 
 class JMsgProcess {
 
-  private final static Map<Long,BlockingQueue<Message<?,?>>> queues =
-    Collections.synchronizedMap(new HashMap<Long,BlockingQueue<Message<?,?>>>());
+  private final static Map<Long,Mailbox> queues = new ConcurrentHashMap<Long,Mailbox>();
+  // The mailbox of the current process: that of the thread, or of the Proc the thread
+  // is running (see enter); kept here to avoid a map lookup on every receive
+  private final static ThreadLocal<Mailbox> myQueues = new ThreadLocal<Mailbox>();
   private static volatile Logger logger = Logger.getLogger("es.upm.babel.cclib.JMsgLogger");
-  private static ConsoleHandler consoleHandler = null;
+  private static volatile ConsoleHandler consoleHandler = null;
+  private final static AtomicLong asyncIds = new AtomicLong();
 
-  public static BlockingQueue<Message<?,?>> getQueue() {
-    return getQueue(Thread.currentThread().getId());
+  public static Mailbox getQueue() {
+    Mailbox queue = myQueues.get();
+    if (queue == null) {
+      queue = getQueue(Thread.currentThread().getId());
+      myQueues.set(queue);
+    }
+    return queue;
   }
 
-  public static BlockingQueue<Message<?,?>> getQueue(long threadId) {
-    synchronized (queues) {
-      BlockingQueue<Message<?,?>> queue = queues.get(threadId);
-      if (queue == null) {
-        queue = new LinkedBlockingQueue<Message<?,?>>();
-        queues.put(threadId,queue);
-      }
-      return queue;
-    }
+  public static Mailbox getQueue(long threadId) {
+    Mailbox queue = queues.get(threadId);
+    if (queue == null) queue = queues.computeIfAbsent(threadId, id -> new Mailbox(id));
+    return queue;
+  }
+
+  // The id of the current process: its thread id, or the id of the Proc it is running
+  public static long currentId() {
+    return getQueue().getId();
+  }
+
+  // Makes mailbox (of a Proc) the mailbox of the current thread, until leave is called;
+  // returns the mailbox to restore (null if the thread itself has not synchronized, so
+  // that the threads of a pool do not register mailboxes of their own)
+  static Mailbox enter(Mailbox mailbox) {
+    Mailbox previous = myQueues.get();
+    queues.put(mailbox.getId(),mailbox);
+    myQueues.set(mailbox);
+    return previous;
+  }
+
+  static void leave(Mailbox mailbox, Mailbox previous) {
+    queues.remove(mailbox.getId(),mailbox);
+    if (previous != null) myQueues.set(previous);
+    else myQueues.remove();
+  }
+
+  // The number of mailboxes registered (those of the threads which have synchronized,
+  // and of the running Procs)
+  static int getQueues() {
+    return queues.size();
+  }
+
+  // Identifies a party which synchronizes without a thread of its own.
+  // Thread ids are positive, so these never clash with a thread.
+  public static long newAsyncId() {
+    return asyncIds.decrementAndGet();
   }
 
   public static String threadName() {
+    Proc proc = getQueue().getOwner();
+    if (proc != null) return "process "+proc.getName()+"("+proc.getId()+")";
     return "thread "+Thread.currentThread().getName()+"("+Thread.currentThread().getId()+")";
   }
 
   public static Message<?,?> receive() {
-    BlockingQueue<Message<?,?>> myQueue = getQueue();
     try {
-      Message<?,?> msg = myQueue.take();
-      if (logger.isLoggable(Level.FINE))
-        logger.log(Level.FINE,threadName()+" got message "+msg);
-      return msg;
+      return receiveInterruptibly();
     } catch (InterruptedException sexc) {
       Thread.currentThread().interrupt();
       throw new RuntimeException(sexc);
     }
   }
 
+  public static Message<?,?> receiveInterruptibly() throws InterruptedException {
+    Message<?,?> msg = getQueue().take();
+    if (logger.isLoggable(Level.FINE))
+      logger.log(Level.FINE,threadName()+" got message "+msg);
+    return msg;
+  }
+
+  public static Message<?,?> poll() {
+    Message<?,?> msg = getQueue().poll();
+    if (msg != null && logger.isLoggable(Level.FINE))
+      logger.log(Level.FINE,threadName()+" got message "+msg);
+    return msg;
+  }
+
   public static void send(Object sender, long threadId, Message<?,?> msg) {
-    try {
-      if (logger.isLoggable(Level.FINE))
-        logger.log(Level.FINE,sender+": "+msg+" => "+threadId);
-      getQueue(threadId).put(msg);
-    } catch (InterruptedException rexc) {
-      Thread.currentThread().interrupt();
-      throw new RuntimeException(rexc);
-    }
+    if (logger.isLoggable(Level.FINE))
+      logger.log(Level.FINE,sender+": "+msg+" => "+threadId);
+    getQueue(threadId).put(msg);
+  }
+
+  public static void send(Object sender, Mailbox mailbox, Message<?,?> msg) {
+    if (logger.isLoggable(Level.FINE))
+      logger.log(Level.FINE,sender+": "+msg+" => "+mailbox.getId());
+    mailbox.put(msg);
   }
 
   public static Logger getLogger() {
     Level logLevel = logger.getLevel();
-    if (logLevel != null) {
+    // Called before every log (in isLoggable guards), so the handler is installed once
+    if (logLevel != null && (consoleHandler == null || consoleHandler.getLevel() != logLevel)) {
       synchronized (logger) {
-        if (consoleHandler == null) {
+        if (consoleHandler != null) consoleHandler.setLevel(logLevel);
+        else {
           for (Handler handler : logger.getHandlers()) {  logger.removeHandler(handler);}
           ConsoleHandler consoleHandler = new ConsoleHandler();
           consoleHandler.setFormatter(new SimpleFormatter() {
@@ -83,6 +132,7 @@ class JMsgProcess {
             });
           consoleHandler.setLevel(logLevel);
           logger.addHandler(consoleHandler);
+          JMsgProcess.consoleHandler = consoleHandler;
         }
       }
     }
@@ -0,0 +1,436 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A journal of the synchronizations of a program: a compact binary record of every
+ * commit (the channel, the sending and receiving processes, their select indexes,
+ * the time, and optionally the hash code of the value), written to a memory-mapped
+ * file, for reconstructing afterwards what happened (see {@link #read}), and for
+ * replaying it (see {@link #replay}).
+ * <p>
+ * The file is a ring: when it is full the oldest records are overwritten.
+ * Every thread writes its records into a chunk (4KB) of the file reserved for it,
+ * so that writing a record does not synchronize with other threads; the file should
+ * be large enough for many chunks per thread.
+ * Processes and channels are identified in the journal by their names, so
+ * threads and channels should be named to replay a journal. The names of the
+ * processes and channel of a commit are written in the chunk of the commit, so
+ * that they are overwritten only with it.
+ * </p>
+ * <p>
+ * Example:<br>
+ * <pre>
+ * <code>
+ * Journal journal = Journal.start(Paths.get("run.journal"), 64 &lt;&lt; 20, true);
+ * ...
+ * journal.close();
+ * for (Journal.Record record : Journal.read(Paths.get("run.journal")))
+ *   System.out.println(record);
+ * </code>
+ * </pre>
+ * The records of a journal can also be printed with
+ * <code>java es.upm.babel.cclib.jmsg.Journal file</code>.
+ * </p>
+ */
+public class Journal implements Closeable {
+  private static final int MAGIC = 0x4a4d534a;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 64;
+  private static final int RECORD_SIZE = 64;
+  private static final int CHUNK_RECORDS = 64;
+  private static final int MAX_NAME = 38;
+  private static final byte COMMIT = 1;
+  private static final byte THREAD = 2;
+  private static final byte CHANNEL = 3;
+  // The first record of a chunk is its header: the generation of the chunk (the number
+  // of the reservation of the chunk, from 1), and whether a record is being written
+  // into it. The records of a chunk are stamped with its generation; a thread reserving
+  // the chunk again (when the ring wraps around) takes it only if no record is being
+  // written, and a thread whose chunk has been taken writes into a chunk of its own,
+  // so that no two threads write into a chunk at once. The sequence number of a record
+  // is written last, and with release semantics, so a record with a sequence number,
+  // stamped with the generation of its chunk, is complete.
+  private static final long WRITING = 1;
+  private static final VarHandle LONGS =
+    MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+  // The journal being written, and the journal being replayed, if any
+  static volatile Journal recording = null;
+  static volatile JournalReplay replaying = null;
+
+  private final FileChannel file;
+  private final MappedByteBuffer buffer;
+  private final long chunks;
+  private final boolean hashValues;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong nextChunk = new AtomicLong();
+  private final ThreadLocal<Chunk> chunk = new ThreadLocal<Chunk>();
+
+  private Journal(FileChannel file, MappedByteBuffer buffer, long chunks, boolean hashValues) {
+    this.file = file;
+    this.buffer = buffer;
+    this.chunks = chunks;
+    this.hashValues = hashValues;
+  }
+
+  /**
+   * Starts journaling the commits of all channels into file, of (about) capacity bytes.
+   * If hashValues is true the hash codes of the values passed are recorded as well.
+   * @throws IllegalStateException if a journal is already being written.
+   */
+  public static Journal start(Path path, long capacity, boolean hashValues) throws IOException {
+    long chunks = Math.max(1,capacity / ((long) RECORD_SIZE * CHUNK_RECORDS));
+    long size = HEADER_SIZE + chunks * RECORD_SIZE * CHUNK_RECORDS;
+    if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("capacity too large: "+capacity);
+
+    synchronized (Journal.class) {
+      if (recording != null) throw new IllegalStateException("a journal is already being written");
+      FileChannel file = FileChannel.open(path,StandardOpenOption.CREATE,StandardOpenOption.READ,
+                                          StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+      MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE,0,size);
+      buffer.order(ByteOrder.nativeOrder());
+      buffer.putInt(0,MAGIC);
+      buffer.putInt(4,VERSION);
+      buffer.putInt(8,RECORD_SIZE);
+      buffer.putInt(12,CHUNK_RECORDS);
+      buffer.putLong(16,chunks);
+      buffer.put(24,(byte) (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0));
+      recording = new Journal(file,buffer,chunks,hashValues);
+      return recording;
+    }
+  }
+
+  /**
+   * Stops journaling, and writes the journal to its file.
+   */
+  public void close() throws IOException {
+    synchronized (Journal.class) {
+      if (recording == this) recording = null;
+    }
+    buffer.force();
+    file.close();
+  }
+
+  /**
+   * Returns the number of records written (including those overwritten).
+   */
+  public long getRecords() {
+    return sequence.get();
+  }
+
+  // Called by the channel (locked) committing sendOffer and receiveOffer
+  void committed(SynchronousChannel<?> channel, Offer<?,?> sendOffer, Offer<?,?> receiveOffer, Object value) {
+    long senderId = sendOffer.getOriginatingId();
+    long receiverId = receiveOffer.getOriginatingId();
+    Chunk current = acquire(senderId,receiverId,channel.getId());
+    if (current.threads.add(senderId)) writeName(current,THREAD,senderId,sendOffer.getOriginatingName());
+    if (current.threads.add(receiverId)) writeName(current,THREAD,receiverId,receiveOffer.getOriginatingName());
+    if (current.channels.add(channel.getId())) writeName(current,CHANNEL,channel.getId(),channel.toString());
+
+    int index = current.next();
+    buffer.put(index+8,COMMIT);
+    buffer.putLong(index+16,System.nanoTime());
+    buffer.putLong(index+24,channel.getId());
+    buffer.putLong(index+32,senderId);
+    buffer.putLong(index+40,receiverId);
+    buffer.putInt(index+48,sendOffer.getSelectIndex());
+    buffer.putInt(index+52,receiveOffer.getSelectIndex());
+    buffer.putInt(index+56,hashValues ? Objects.hashCode(value) : 0);
+    publish(current,index);
+    LONGS.setRelease(buffer,current.header,current.generation << 1);
+  }
+
+  private void writeName(Chunk current, byte type, long id, String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length,MAX_NAME);
+    int index = current.next();
+    buffer.put(index+8,type);
+    buffer.putLong(index+16,id);
+    buffer.putShort(index+24,(short) length);
+    for (int i=0; i<length; i++) buffer.put(index+26+i,bytes[i]);
+    publish(current,index);
+  }
+
+  private void publish(Chunk current, int index) {
+    buffer.putInt(index+12,(int) current.generation);
+    LONGS.setRelease(buffer,index,sequence.incrementAndGet());
+  }
+
+  // Returns the chunk of the current thread, marked as being written, with room
+  // for a commit and the names of its processes and channel not yet in the chunk;
+  // reserves a new chunk when it is full, or has been taken by another thread
+  private Chunk acquire(long senderId, long receiverId, long channelId) {
+    Chunk current = chunk.get();
+    if (current != null) {
+      int needed = 1 + (current.threads.contains(senderId) ? 0 : 1)
+        + (current.threads.contains(receiverId) || receiverId == senderId ? 0 : 1)
+        + (current.channels.contains(channelId) ? 0 : 1);
+      if (current.free() >= needed
+          && LONGS.compareAndSet(buffer,current.header,current.generation << 1,(current.generation << 1) | WRITING))
+        return current;
+    }
+    current = reserve();
+    chunk.set(current);
+    return current;
+  }
+
+  // Reserves the next chunk of the ring which no thread is writing into,
+  // and returns it marked as being written
+  private Chunk reserve() {
+    while (true) {
+      long next = nextChunk.getAndIncrement();
+      if (next == chunks) buffer.put(25,(byte) 1);
+      int header = (int) (HEADER_SIZE + (next % chunks) * RECORD_SIZE * CHUNK_RECORDS);
+      long state = (long) LONGS.getVolatile(buffer,header);
+      if ((state & WRITING) != 0 || !LONGS.compareAndSet(buffer,header,state,((next + 1) << 1) | WRITING))
+        continue;
+      // The records of an earlier round of the ring are no longer valid
+      for (int offset = header + RECORD_SIZE; offset < header + RECORD_SIZE * CHUNK_RECORDS; offset += RECORD_SIZE)
+        LONGS.setRelease(buffer,offset,0L);
+      return new Chunk(header,next + 1);
+    }
+  }
+
+  // The chunk of a thread, and the names written into it
+  private static class Chunk {
+    final int header;
+    final long generation;
+    private int next;
+    final Set<Long> threads = new HashSet<Long>();
+    final Set<Long> channels = new HashSet<Long>();
+
+    Chunk(int header, long generation) {
+      this.header = header;
+      this.generation = generation;
+      this.next = header + RECORD_SIZE;
+    }
+
+    int free() {
+      return (header + RECORD_SIZE * CHUNK_RECORDS - next) / RECORD_SIZE;
+    }
+
+    int next() {
+      int index = next;
+      next += RECORD_SIZE;
+      return index;
+    }
+  }
+
+  /**
+   * Returns the commits recorded in the journal file, in the order in which they happened.
+   */
+  public static List<Record> read(Path path) throws IOException {
+    try (FileChannel file = FileChannel.open(path,StandardOpenOption.READ)) {
+      ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY,0,file.size());
+      if (buffer.limit() < HEADER_SIZE) throw new IOException(path+" is not a journal");
+      // The journal is written in the byte order of the recording machine
+      buffer.order(buffer.get(24) == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+        throw new IOException(path+" is not a journal");
+      long chunks = buffer.getLong(16);
+      int chunkRecords = buffer.getInt(12);
+      int recordSize = buffer.getInt(8);
+
+      Map<Long,String> threadNames = new HashMap<Long,String>();
+      Map<Long,String> channelNames = new HashMap<Long,String>();
+      List<Record> records = new ArrayList<Record>();
+      for (long slot = 0; slot < chunks * chunkRecords; slot++) {
+        int index = (int) (HEADER_SIZE + slot * recordSize);
+        if (slot % chunkRecords == 0) continue;
+        // A record of an earlier generation of its chunk is being overwritten
+        int header = (int) (HEADER_SIZE + (slot - slot % chunkRecords) * recordSize);
+        long seq = buffer.getLong(index);
+        if (seq == 0 || buffer.getInt(index+12) != (int) (buffer.getLong(header) >>> 1)) continue;
+        byte type = buffer.get(index+8);
+        if (type == COMMIT) {
+          records.add(new Record(seq,buffer.getLong(index+16),buffer.getLong(index+24),
+                                 buffer.getLong(index+32),buffer.getLong(index+40),
+                                 buffer.getInt(index+48),buffer.getInt(index+52),buffer.getInt(index+56)));
+        } else {
+          byte[] bytes = new byte[buffer.getShort(index+24)];
+          for (int i=0; i<bytes.length; i++) bytes[i] = buffer.get(index+26+i);
+          (type == THREAD ? threadNames : channelNames)
+            .put(buffer.getLong(index+16),new String(bytes,StandardCharsets.UTF_8));
+        }
+      }
+
+      Collections.sort(records,(r1,r2) -> Long.compare(r1.sequence,r2.sequence));
+      for (Record record : records) {
+        record.channelName = channelNames.getOrDefault(record.channelId,"channel "+record.channelId);
+        record.senderName = threadNames.getOrDefault(record.senderId,"thread "+record.senderId);
+        record.receiverName = threadNames.getOrDefault(record.receiverId,"thread "+record.receiverId);
+      }
+      return records;
+    }
+  }
+
+  /**
+   * Replays the commits of the journal file: from now on, the channels whose names
+   * appear in the journal only commit the next recorded commit, i.e., the recorded
+   * pair of processes (identified by their thread names) and select indexes, in the recorded
+   * order. Running the same process code as the recorded run then repeats the
+   * recorded synchronizations. Once all recorded commits have been replayed the
+   * channels commit freely again. A commit whose value hash differs from the recorded
+   * one is counted as a divergence (see {@link #getDivergences}).
+   * @throws IOException if the journal has been overwritten in part (it has wrapped around).
+   */
+  public static void replay(Path path) throws IOException {
+    try (FileChannel file = FileChannel.open(path,StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      file.read(header,0);
+      if (header.get(25) != 0) throw new IOException(path+" has wrapped around; it cannot be replayed");
+    }
+    replaying = new JournalReplay(read(path));
+  }
+
+  /**
+   * Stops replaying; channels commit freely again.
+   */
+  public static void stopReplay() {
+    JournalReplay replay = replaying;
+    replaying = null;
+    if (replay != null) replay.stop();
+  }
+
+  /**
+   * Returns true if all commits of the journal being replayed have been replayed.
+   */
+  public static boolean isReplayComplete() {
+    JournalReplay replay = replaying;
+    return replay == null || replay.isComplete();
+  }
+
+  /**
+   * Returns the number of replayed commits whose value differed (by hash code) from the recorded one.
+   */
+  public static long getDivergences() {
+    JournalReplay replay = replaying;
+    return replay == null ? 0 : replay.getDivergences();
+  }
+
+  // The name as read back from a journal
+  static String truncate(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    return bytes.length <= MAX_NAME ? name : new String(bytes,0,MAX_NAME,StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("usage: Journal file");
+      System.exit(1);
+    }
+    for (Record record : read(Paths.get(args[0]))) System.out.println(record);
+  }
+
+  /**
+   * A recorded commit.
+   */
+  public static class Record {
+    private final long sequence;
+    private final long nanoTime;
+    private final long channelId;
+    private final long senderId;
+    private final long receiverId;
+    private final int sendIndex;
+    private final int receiveIndex;
+    private final int valueHash;
+    private String channelName;
+    private String senderName;
+    private String receiverName;
+
+    Record(long sequence, long nanoTime, long channelId, long senderId, long receiverId,
+           int sendIndex, int receiveIndex, int valueHash) {
+      this.sequence = sequence;
+      this.nanoTime = nanoTime;
+      this.channelId = channelId;
+      this.senderId = senderId;
+      this.receiverId = receiverId;
+      this.sendIndex = sendIndex;
+      this.receiveIndex = receiveIndex;
+      this.valueHash = valueHash;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * Returns the time of the commit (System.nanoTime() of the recording JVM).
+     */
+    public long getNanoTime() {
+      return nanoTime;
+    }
+
+    public long getChannelId() {
+      return channelId;
+    }
+
+    public String getChannelName() {
+      return channelName;
+    }
+
+    public long getSenderId() {
+      return senderId;
+    }
+
+    public String getSenderName() {
+      return senderName;
+    }
+
+    public long getReceiverId() {
+      return receiverId;
+    }
+
+    public String getReceiverName() {
+      return receiverName;
+    }
+
+    /**
+     * Returns the index of the send action in the select of the sender, or -1 if it did not select.
+     */
+    public int getSendIndex() {
+      return sendIndex;
+    }
+
+    /**
+     * Returns the index of the receive action in the select of the receiver, or -1 if it did not select.
+     */
+    public int getReceiveIndex() {
+      return receiveIndex;
+    }
+
+    /**
+     * Returns the hash code of the value passed, or 0 if values were not hashed.
+     */
+    public int getValueHash() {
+      return valueHash;
+    }
+
+    public String toString() {
+      return sequence+" "+nanoTime+" "+channelName+": "+senderName+"["+sendIndex+"] -> "
+        +receiverName+"["+receiveIndex+"] value#"+Integer.toHexString(valueHash);
+    }
+  }
+}
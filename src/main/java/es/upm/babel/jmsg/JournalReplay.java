@@ -0,0 +1,87 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+
+
+// Replays the commits of a journal in their recorded order: a channel of the
+// journal only commits the next recorded commit (see Journal.replay). A channel
+// which rejected a matching pair of offers is not informed when the pair becomes
+// the next commit, so after every commit the channel of the next commit is
+// asked to check its offers again; this is done by a thread of the replay,
+// as a channel must not call another channel while it is locked.
+class JournalReplay implements Runnable {
+  private final List<Journal.Record> records;
+  private final Map<String,SynchronousChannel<?>> channels = new HashMap<String,SynchronousChannel<?>>();
+  private final LinkedBlockingQueue<SynchronousChannel<?>> rechecks = new LinkedBlockingQueue<SynchronousChannel<?>>();
+  private final Thread thread;
+  private int next = 0;
+  private long divergences = 0;
+  private volatile boolean stopped = false;
+
+  JournalReplay(List<Journal.Record> records) {
+    this.records = records;
+    this.thread = new Thread(this,"jmsg-replay");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  synchronized boolean allows(SynchronousChannel<?> channel, Offer<?,?> sendOffer, Offer<?,?> receiveOffer) {
+    if (next >= records.size()) return true;
+    String name = Journal.truncate(channel.toString());
+    if (!channels.containsKey(name)) {
+      // A channel unknown to the journal commits freely
+      boolean known = false;
+      for (Journal.Record record : records) known = known || record.getChannelName().equals(name);
+      channels.put(name,known ? channel : null);
+    }
+    if (channels.get(name) == null) return true;
+    channels.put(name,channel);
+
+    Journal.Record record = records.get(next);
+    return record.getChannelName().equals(name)
+      && record.getSenderName().equals(Journal.truncate(sendOffer.getOriginatingName()))
+      && record.getReceiverName().equals(Journal.truncate(receiveOffer.getOriginatingName()))
+      && record.getSendIndex() == sendOffer.getSelectIndex()
+      && record.getReceiveIndex() == receiveOffer.getSelectIndex();
+  }
+
+  synchronized void committed(SynchronousChannel<?> channel, Object value) {
+    if (next >= records.size() || channels.get(Journal.truncate(channel.toString())) == null) return;
+    Journal.Record record = records.get(next++);
+    if (record.getValueHash() != 0 && record.getValueHash() != Objects.hashCode(value)) {
+      divergences++;
+      if (JMsgProcess.getLogger().isLoggable(Level.WARNING))
+        JMsgProcess.getLogger().log(Level.WARNING,"replay diverges at "+record+": value "+value);
+    }
+    if (next < records.size()) {
+      SynchronousChannel<?> nextChannel = channels.get(records.get(next).getChannelName());
+      if (nextChannel != null && nextChannel != channel) rechecks.add(nextChannel);
+    }
+  }
+
+  synchronized boolean isComplete() {
+    return next >= records.size();
+  }
+
+  synchronized long getDivergences() {
+    return divergences;
+  }
+
+  void stop() {
+    stopped = true;
+    thread.interrupt();
+  }
+
+  public void run() {
+    try {
+      while (!stopped) rechecks.take().recheckOffers();
+    } catch (InterruptedException exc) {
+      // The replay has been stopped
+    }
+  }
+}
@@ -2,8 +2,17 @@ package es.upm.babel.cclib.jmsg;
 
 
 class LockDownMessage<E,T> extends Message<E,T> {
+  // The timestamp of the offer when the lock down was sent; that of a select
+  // offer moves on as the select is re-armed
+  private final long timestamp;
+
   public LockDownMessage(Offer<E,T> offer) {
     super(offer);
+    this.timestamp = offer.getTimestamp();
+  }
+
+  public long getTimestamp() {
+    return timestamp;
   }
 
   public String toString() {
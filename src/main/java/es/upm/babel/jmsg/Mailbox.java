@@ -0,0 +1,202 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+// The queue of messages of a process, which the process waits on
+// according to its wait strategy.
+//
+// A select which has moved on (it accepted a lock down, or ended) ignores
+// the lock downs of its earlier offers; under select conflicts these can
+// outnumber all other messages. The mailbox therefore discards them: lock downs
+// arriving for a superseded select timestamp are dropped (without waking the
+// process), those already queued are purged when the timestamp moves on, and
+// a notification already queued for the same offer is not queued twice.
+// What remains is small (a few messages per offer of the current operation),
+// so the messages are kept in a ring buffer which only grows in the rare case
+// it fills up, and which is not allocated per message.
+class Mailbox {
+  private static final int SPINS = 1000;
+  private static final int YIELDS = 100;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private Message<?,?>[] ring = new Message<?,?>[INITIAL_CAPACITY];
+  private int head = 0;
+  private volatile int count = 0;
+  private volatile Thread waiter = null;
+  private volatile WaitStrategy waitStrategy = null;
+  // Select offers are stamped with a per-process sequence number, so that lock downs
+  // of earlier selects (or earlier attempts of a select) are recognized as stale.
+  // Only updated by the process owning the mailbox.
+  private volatile long selectTimestamp = 0;
+  private long discarded = 0;
+  private final long id;
+  // The Proc owning the mailbox (null for the mailbox of a plain thread)
+  private final Proc owner;
+  private volatile long commits = 0;
+
+  public Mailbox() {
+    this(0,null);
+  }
+
+  public Mailbox(long id) {
+    this(id,null);
+  }
+
+  public Mailbox(long id, Proc owner) {
+    this.id = id;
+    this.owner = owner;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public Proc getOwner() {
+    return owner;
+  }
+
+  // The number of synchronizations of the process (commits delivered)
+  public long getCommits() {
+    return commits;
+  }
+
+  public void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    WaitStrategy strategy = waitStrategy;
+    return strategy != null ? strategy : WaitStrategy.getDefault();
+  }
+
+  public long getSelectTimestamp() {
+    return selectTimestamp;
+  }
+
+  public long nextSelectTimestamp() {
+    long timestamp = selectTimestamp + 1;
+    selectTimestamp = timestamp;
+    if (count > 0) purge();
+    return timestamp;
+  }
+
+  // Never blocks, and so cannot be interrupted:
+  // a process delivering a message to another must not abort halfway
+  public void put(Message<?,?> msg) {
+    synchronized (this) {
+      if (isStale(msg) || isQueued(msg)) {
+        discarded++;
+        return;
+      }
+      if (count == ring.length) grow();
+      ring[(head + count) & (ring.length - 1)] = msg;
+      count++;
+      if (msg instanceof CommitMessage<?,?>) commits++;
+    }
+    Thread thread = waiter;
+    if (thread != null) LockSupport.unpark(thread);
+  }
+
+  public synchronized Message<?,?> poll() {
+    if (count == 0) return null;
+    Message<?,?> msg = ring[head];
+    ring[head] = null;
+    head = (head + 1) & (ring.length - 1);
+    count--;
+    return msg;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  // The number of messages discarded as stale or duplicate
+  synchronized long getDiscarded() {
+    return discarded;
+  }
+
+  public Message<?,?> take() throws InterruptedException {
+    switch (getWaitStrategy()) {
+    case SPIN:
+      while (true) {
+        if (count > 0) {
+          Message<?,?> msg = poll();
+          if (msg != null) return msg;
+        }
+        if (Thread.interrupted()) throw new InterruptedException();
+        Thread.onSpinWait();
+      }
+    case SPIN_YIELD_PARK:
+      for (int i=0; i<SPINS+YIELDS; i++) {
+        if (count > 0) {
+          Message<?,?> msg = poll();
+          if (msg != null) return msg;
+        }
+        if (i < SPINS) Thread.onSpinWait();
+        else Thread.yield();
+      }
+      return park();
+    default:
+      return park();
+    }
+  }
+
+  private Message<?,?> park() throws InterruptedException {
+    if (Thread.interrupted()) throw new InterruptedException();
+    while (true) {
+      Message<?,?> msg = poll();
+      if (msg != null) return msg;
+      // A put after the check of count sees the waiter, and unparks it
+      waiter = Thread.currentThread();
+      if (count == 0) LockSupport.park(this);
+      waiter = null;
+      if (Thread.interrupted()) throw new InterruptedException();
+    }
+  }
+
+  private boolean isStale(Message<?,?> msg) {
+    return msg instanceof LockDownMessage<?,?> && msg.getOffer().getTimestamp() < selectTimestamp;
+  }
+
+  // A lock down of the same offer is a duplicate only if sent for the same
+  // arming of its select
+  private boolean isQueued(Message<?,?> msg) {
+    for (int i=0; i<count; i++) {
+      Message<?,?> queued = ring[(head + i) & (ring.length - 1)];
+      if (queued.getOffer() == msg.getOffer() && queued.getClass() == msg.getClass()
+          && (!(msg instanceof LockDownMessage<?,?>)
+              || ((LockDownMessage<?,?>) queued).getTimestamp() == ((LockDownMessage<?,?>) msg).getTimestamp()))
+        return true;
+    }
+    return false;
+  }
+
+  private synchronized void purge() {
+    int kept = 0;
+    int mask = ring.length - 1;
+    for (int i=0; i<count; i++) {
+      Message<?,?> msg = ring[(head + i) & mask];
+      if (isStale(msg)) discarded++;
+      else ring[(head + kept++) & mask] = msg;
+    }
+    for (int i=kept; i<count; i++) ring[(head + i) & mask] = null;
+    count = kept;
+  }
+
+  private void grow() {
+    Message<?,?>[] larger = new Message<?,?>[ring.length * 2];
+    for (int i=0; i<count; i++) larger[i] = ring[(head + i) & (ring.length - 1)];
+    ring = larger;
+    head = 0;
+  }
+
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder("mailbox[");
+    for (int i=0; i<count; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(ring[(head + i) & (ring.length - 1)]);
+    }
+    return sb.append("]").toString();
+  }
+}
@@ -0,0 +1,188 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+
+// The built-in matching strategies. Their queues are array lists, iterated
+// from a start position which depends on the strategy.
+class MatchingStrategies {
+  static final MatchingStrategy FIFO = new MatchingStrategy() {
+      public <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders) {
+        return new ListQueue<O>() {
+          // A failed offer keeps its place in the queue
+          public void retry(O offer) {
+            offers.add(0,offer);
+          }
+        };
+      }
+      public String toString() {
+        return "fifo";
+      }
+    };
+
+  static final MatchingStrategy LIFO = new MatchingStrategy() {
+      public <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders) {
+        return new ListQueue<O>() {
+          public Iterator<O> iterator() {
+            return new ListIterator<O>(offers,offers.size()-1,-1);
+          }
+        };
+      }
+      public String toString() {
+        return "lifo";
+      }
+    };
+
+  static final MatchingStrategy RANDOM = new MatchingStrategy() {
+      public <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders) {
+        return new ListQueue<O>() {
+          public Iterator<O> iterator() {
+            int size = offers.size();
+            return new ListIterator<O>(offers,size == 0 ? 0 : ThreadLocalRandom.current().nextInt(size),1);
+          }
+        };
+      }
+      public String toString() {
+        return "random";
+      }
+    };
+
+  static final MatchingStrategy ROUND_ROBIN = new MatchingStrategy() {
+      public <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders) {
+        return new ListQueue<O>() {
+          private int next = 0;
+
+          public Iterator<O> iterator() {
+            int size = offers.size();
+            return new ListIterator<O>(offers,size == 0 ? 0 : (next & Integer.MAX_VALUE) % size,1);
+          }
+
+          public void matched() {
+            next++;
+          }
+        };
+      }
+      public String toString() {
+        return "roundRobin";
+      }
+    };
+
+  static final MatchingStrategy PREFER_NON_SELECT = new MatchingStrategy() {
+      public <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders) {
+        return new PreferNonSelectQueue<O>();
+      }
+      public String toString() {
+        return "preferNonSelect";
+      }
+    };
+
+  private MatchingStrategies() { }
+
+  private static class ListQueue<O extends PendingOffer> implements OfferQueue<O> {
+    final ArrayList<O> offers = new ArrayList<O>();
+
+    public void add(O offer) {
+      offers.add(offer);
+    }
+
+    public boolean remove(O offer) {
+      return offers.remove(offer);
+    }
+
+    public int size() {
+      return offers.size();
+    }
+
+    public void purge(Predicate<? super O> filter) {
+      offers.removeIf(filter);
+    }
+
+    public Iterator<O> iterator() {
+      return offers.iterator();
+    }
+
+    public String toString() {
+      return offers.toString();
+    }
+  }
+
+  // Iterates over all elements of a list, from start onwards (step 1, wrapping around)
+  // or backwards (step -1)
+  private static class ListIterator<O> implements Iterator<O> {
+    private final ArrayList<O> offers;
+    private int index;
+    private final int step;
+    private int remaining;
+
+    ListIterator(ArrayList<O> offers, int start, int step) {
+      this.offers = offers;
+      this.index = start;
+      this.step = step;
+      this.remaining = offers.size();
+    }
+
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    public O next() {
+      if (remaining == 0) throw new NoSuchElementException();
+      O offer = offers.get(index);
+      index += step;
+      if (index == offers.size()) index = 0;
+      remaining--;
+      return offer;
+    }
+  }
+
+  // The plain offers (oldest first), and then the select offers (oldest first)
+  private static class PreferNonSelectQueue<O extends PendingOffer> implements OfferQueue<O> {
+    private final ArrayList<O> plain = new ArrayList<O>();
+    private final ArrayList<O> selects = new ArrayList<O>();
+
+    public void add(O offer) {
+      (offer.isSelect() ? selects : plain).add(offer);
+    }
+
+    public void retry(O offer) {
+      (offer.isSelect() ? selects : plain).add(0,offer);
+    }
+
+    public boolean remove(O offer) {
+      return (offer.isSelect() ? selects : plain).remove(offer);
+    }
+
+    public int size() {
+      return plain.size() + selects.size();
+    }
+
+    public void purge(Predicate<? super O> filter) {
+      plain.removeIf(filter);
+      selects.removeIf(filter);
+    }
+
+    public Iterator<O> iterator() {
+      return new Iterator<O>() {
+        private int index = 0;
+
+        public boolean hasNext() {
+          return index < plain.size() + selects.size();
+        }
+
+        public O next() {
+          if (!hasNext()) throw new NoSuchElementException();
+          int i = index++;
+          return i < plain.size() ? plain.get(i) : selects.get(i - plain.size());
+        }
+      };
+    }
+
+    public String toString() {
+      return plain+"+"+selects;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Determines how a synchronous channel chooses between several send and receive
+ * offers that could synchronize at the same time, by providing the data structure
+ * keeping the pending offers of the channel (see {@link OfferQueue}). The strategy
+ * of a channel is chosen when the channel is created:
+ * <code>
+ * new SynchronousChannel&lt;Job&gt;("jobs", MatchingStrategy.lifo())
+ * </code>
+ * <p>
+ * The built-in strategies are:
+ * <ul>
+ * <li>fifo: the oldest matching offers are preferred (the default).
+ * <li>lifo: the newest matching offers are preferred, e.g., to hand work to the
+ * worker which has waited the shortest time, and whose caches are still warm.
+ * <li>preferNonSelect: offers not made by a select are preferred (oldest first),
+ * as they synchronize without locking down a process.
+ * <li>random: the search for a matching pair starts at a random sender and receiver.
+ * <li>roundRobin: the search for a matching pair starts one position further
+ * along the pending senders and receivers after each synchronization.
+ * </ul>
+ * </p>
+ */
+public interface MatchingStrategy {
+
+  /**
+   * Returns an empty queue for the send offers (senders is true)
+   * or the receive offers of a channel.
+   */
+  <O extends PendingOffer> OfferQueue<O> newQueue(boolean senders);
+
+  static MatchingStrategy fifo() {
+    return MatchingStrategies.FIFO;
+  }
+
+  static MatchingStrategy lifo() {
+    return MatchingStrategies.LIFO;
+  }
+
+  static MatchingStrategy preferNonSelect() {
+    return MatchingStrategies.PREFER_NON_SELECT;
+  }
+
+  static MatchingStrategy random() {
+    return MatchingStrategies.RANDOM;
+  }
+
+  static MatchingStrategy roundRobin() {
+    return MatchingStrategies.ROUND_ROBIN;
+  }
+
+  /**
+   * Returns the strategy implementing the fairness policy.
+   */
+  static MatchingStrategy of(Fairness fairness) {
+    switch (fairness) {
+    case RANDOM:
+      return random();
+    case ROUND_ROBIN:
+      return roundRobin();
+    default:
+      return fifo();
+    }
+  }
+}
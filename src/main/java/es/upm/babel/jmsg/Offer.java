@@ -1,24 +1,69 @@
 package es.upm.babel.cclib.jmsg;
 
-class Offer<E,T> {
+class Offer<E,T> implements PendingOffer {
   private Action<E,T> action;
   private int selectIndex;
   private long threadId;
+  // The originating thread, and the mailbox of the originating process
+  // (null for a party without a thread of its own)
+  private final Thread thread;
+  private final Mailbox mailbox;
   private long timestamp;
+  // The select the offer belongs to, whose timestamp the offer shares
+  // (null once the offer has been retired, see retire)
+  private volatile SelectState select;
+  // A join offer is informed of a lock down only when the other offer has
+  // locked down (see Command.join)
+  private boolean join = false;
+  // When the offer was made, for the age reported in channel snapshots
+  private final long createdNanos = System.nanoTime();
   E resolvedValue;
   
   public Offer(Action<E,T> action) {
     this.action = action;
     this.selectIndex = -1;
-    this.threadId = Thread.currentThread().getId();
+    this.thread = Thread.currentThread();
+    this.mailbox = JMsgProcess.getQueue();
+    this.threadId = mailbox.getId();
     this.resolvedValue = null;
   }
 
+  public Offer(Action<E,T> action, long originatingId) {
+    this.action = action;
+    this.selectIndex = -1;
+    this.thread = null;
+    this.mailbox = null;
+    this.threadId = originatingId;
+    this.resolvedValue = null;
+  }
+
+  // An offer made on behalf of a process of another JVM (see ChannelServer)
+  public Offer(Action<E,T> action, long originatingId, long timestamp, int index) {
+    this.action = action;
+    this.timestamp = timestamp;
+    this.selectIndex = index;
+    this.thread = null;
+    this.mailbox = null;
+    this.threadId = originatingId;
+    this.resolvedValue = null;
+  }
+
+  public Offer(Action<E,T> action, SelectState select, int index) {
+    this(action,0,index,select.getMailbox());
+    this.select = select;
+  }
+
   public Offer(Action<E,T> action, long timestamp, int index) {
+    this(action,timestamp,index,JMsgProcess.getQueue());
+  }
+
+  private Offer(Action<E,T> action, long timestamp, int index, Mailbox mailbox) {
     this.action = action;
     this.timestamp = timestamp;
     this.selectIndex = index;
-    this.threadId = Thread.currentThread().getId();
+    this.thread = Thread.currentThread();
+    this.mailbox = mailbox;
+    this.threadId = mailbox.getId();
     this.resolvedValue = null;
   }
 
@@ -30,18 +75,63 @@ class Offer<E,T> {
     return action.getBasicAction() instanceof SendAction<?>;
   }
 
+  public void setJoin() {
+    join = true;
+  }
+
+  public boolean isJoin() {
+    return join;
+  }
+
   public boolean originatesFromSelect() {
     return selectIndex >= 0;
   }
 
+  public boolean isSelect() {
+    return originatesFromSelect();
+  }
+
   public void setTimestamp(long timestamp) {
     this.timestamp = timestamp;
   }
 
   public long getTimestamp() {
-    return timestamp;
+    SelectState select = this.select;
+    return select != null ? select.getTimestamp() : timestamp;
+  }
+
+  public boolean belongsTo(SelectState select) {
+    return select != null && this.select == select;
+  }
+
+  // True once the select of the offer has ended: the offer may still be on its
+  // channel, but it can no longer synchronize
+  public boolean isAbandoned() {
+    SelectState select = this.select;
+    return select != null && select.isFinished();
+  }
+
+  // Called by the channel (locked) before informing the process of a lock down
+  // of the offer; returns false if the offer has been abandoned
+  public boolean contact() {
+    SelectState select = this.select;
+    return select == null || select.contact(this);
+  }
+
+  // Detaches the offer from its select, keeping the current timestamp: the
+  // messages about the offer become stale when the select is re-armed
+  public void retire() {
+    SelectState select = this.select;
+    if (select != null) {
+      timestamp = select.getTimestamp();
+      this.select = null;
+    }
   }
   
+  public long getCreatedNanos() {
+    return createdNanos;
+  }
+
   public int getSelectIndex() {
     return selectIndex;
   }
@@ -50,6 +140,21 @@ class Offer<E,T> {
     return threadId;
   }
 
+  public long getProcessId() {
+    return threadId;
+  }
+
+  public String getOriginatingName() {
+    if (mailbox != null && mailbox.getOwner() != null) return mailbox.getOwner().getName();
+    return thread != null ? thread.getName() : "async";
+  }
+
+  // Informs the originator of the offer of the progress of a synchronization
+  public void deliver(Object sender, Message<?,?> msg) {
+    if (mailbox != null) JMsgProcess.send(sender,mailbox,msg);
+    else JMsgProcess.send(sender,threadId,msg);
+  }
+
   public void setResolvedValue(E value) {
     resolvedValue = value;
   }
@@ -0,0 +1,55 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+
+/**
+ * The offers of one kind (sends or receives) pending on a channel, kept by the
+ * data structure of a {@link MatchingStrategy}. To find a pair of offers to synchronize, the
+ * channel iterates over the senders and, for every sender, over the receivers;
+ * the first pair found which matches (i.e., whose guard accepts the value, and whose
+ * offers are from different processes) synchronizes. Thus the iteration order of the
+ * queue determines the pairing order.
+ * <p>
+ * The methods are called with the channel locked; the channel stops iterating as soon as
+ * it modifies the queue.
+ * </p>
+ */
+public interface OfferQueue<O extends PendingOffer> extends Iterable<O> {
+
+  void add(O offer);
+
+  /**
+   * Adds an offer which was removed for a synchronization attempt which
+   * failed (the other process chose another action of its select).
+   */
+  default void retry(O offer) {
+    add(offer);
+  }
+
+  /**
+   * Removes the offer; returns false if it is not in the queue.
+   */
+  boolean remove(O offer);
+
+  int size();
+
+  /**
+   * Removes the offers matching filter (e.g., the offers of a select which has
+   * ended, see {@link PendingOffer#isAbandoned}).
+   */
+  default void purge(Predicate<? super O> filter) {
+    List<O> purged = new ArrayList<O>();
+    for (O offer : this)
+      if (filter.test(offer)) purged.add(offer);
+    for (O offer : purged) remove(offer);
+  }
+
+  /**
+   * Called after each synchronization of the channel.
+   */
+  default void matched() {
+  }
+}
@@ -0,0 +1,32 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * The view of an offer pending on a channel given to a {@link MatchingStrategy}.
+ */
+public interface PendingOffer {
+
+  /**
+   * Returns true if the offer was made by a select (or join), so that synchronizing
+   * it requires the process to lock down, i.e., an additional exchange of messages.
+   */
+  boolean isSelect();
+
+  /**
+   * Returns the id of the process (thread) which made the offer; negative
+   * for a party without a thread of its own.
+   */
+  long getProcessId();
+
+  /**
+   * Returns when (System.nanoTime()) the offer was made.
+   */
+  long getCreatedNanos();
+
+  /**
+   * Returns true if the offer was made by a select which has ended (synchronizing
+   * over another channel): the offer is left on the channel, to be dropped lazily,
+   * and can no longer synchronize.
+   */
+  boolean isAbandoned();
+}
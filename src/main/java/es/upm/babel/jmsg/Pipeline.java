@@ -0,0 +1,391 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+
+/**
+ * A Pipeline is a chain of processes connected by synchronous channels:
+ * a source, a number of stages which each apply a function to the values
+ * received, and a sink. Every stage is executed by a configurable number of processes (its parallelism).
+ * <p>
+ * In ordered mode (the default) the sink receives the values in the order of the source,
+ * i.e., the values are numbered by the source and reordered before the sink.
+ * The values in flight are bounded by the parallelism of all stages together:
+ * the source waits until the sink has received the value that many values before
+ * the next one, so that one slow value holds up the source rather than letting
+ * the values after it pile up before the sink.
+ * In unordered mode the sink receives the values as soon as they are ready.
+ * </p>
+ * <p>
+ * The pipeline ends when the source is exhausted (or its channel closed):
+ * the end is propagated by closing the channels between the stages (see
+ * {@link SynchronousChannel#close()}). A source or sink may be a channel,
+ * so that a pipeline can be combined with other processes, e.g., processes
+ * using select.
+ * </p>
+ * <p>
+ * Example:<br>
+ * <pre>
+ * <code>
+ * Pipeline pipeline =
+ *   Pipeline.from(lines)
+ *     .stage("parse", line -&gt; parse(line), 4)
+ *     .stage("store", record -&gt; store(record), 1)
+ *     .to(result -&gt; System.out.println(result))
+ *     .start();
+ * pipeline.await();
+ * System.out.println(pipeline.metrics());
+ * </code>
+ * </pre>
+ * </p>
+ */
+public class Pipeline {
+  private final List<Thread> threads;
+  private final List<SynchronousChannel<?>> channels;
+  private final List<StageMetrics> metrics;
+  private volatile Throwable failure = null;
+
+  private Pipeline(Builder<?> builder) {
+    this.threads = new ArrayList<Thread>();
+    this.channels = new ArrayList<SynchronousChannel<?>>(builder.channels);
+    this.metrics = Collections.unmodifiableList(new ArrayList<StageMetrics>(builder.metrics));
+  }
+
+  /**
+   * Returns a pipeline builder whose source sends the values of source.
+   */
+  public static <T> Builder<T> from(Iterable<T> source) {
+    return new Builder<T>(source,null);
+  }
+
+  /**
+   * Returns a pipeline builder whose source receives the values sent over source,
+   * until the channel is closed.
+   */
+  public static <T> Builder<T> from(SynchronousChannel<T> source) {
+    return new Builder<T>(null,source);
+  }
+
+  /**
+   * Starts the processes of the pipeline.
+   */
+  public synchronized Pipeline start() {
+    for (Thread thread : threads) thread.start();
+    return this;
+  }
+
+  /**
+   * Waits until all values have reached the sink (or the pipeline has been cancelled).
+   * @throws RuntimeException if a stage (or the sink) failed, with the failure as its cause.
+   */
+  public void await() throws InterruptedException {
+    for (Thread thread : threads) thread.join();
+    if (failure != null) throw new RuntimeException(failure);
+  }
+
+  /**
+   * Stops the pipeline: the channels between the processes are closed, so the
+   * values not yet received by the sink are discarded.
+   */
+  public void cancel() {
+    for (SynchronousChannel<?> channel : channels) channel.close();
+    // The source and sink may be waiting on channels of their own
+    threads.get(0).interrupt();
+    threads.get(threads.size()-1).interrupt();
+  }
+
+  /**
+   * Returns the metrics of the stages, in pipeline order.
+   */
+  public List<StageMetrics> metrics() {
+    return metrics;
+  }
+
+  private void fail(Throwable exc) {
+    if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
+      JMsgProcess.getLogger().log(Level.SEVERE,JMsgProcess.threadName()+": pipeline failed with "+exc);
+    synchronized (this) {
+      if (failure == null) failure = exc;
+    }
+    cancel();
+  }
+
+  // A value travelling through the pipeline, with its position in the source.
+  // Only one process holds an item at any time, so the stages update it in place.
+  private static class Item {
+    final long seq;
+    Object value;
+
+    Item(long seq, Object value) {
+      this.seq = seq;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Builds a pipeline; T is the type of the values produced by the last stage.
+   */
+  public static class Builder<T> {
+    private final Iterable<?> source;
+    private final SynchronousChannel<?> sourceChannel;
+    private final List<SynchronousChannel<Item>> channels = new ArrayList<SynchronousChannel<Item>>();
+    private final List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+    private final List<Function<Object,Object>> functions = new ArrayList<Function<Object,Object>>();
+    private boolean ordered = true;
+
+    private Builder(Iterable<?> source, SynchronousChannel<?> sourceChannel) {
+      this.source = source;
+      this.sourceChannel = sourceChannel;
+      this.channels.add(new SynchronousChannel<Item>("pipeline source"));
+    }
+
+    /**
+     * Adds a stage which applies fn to the values, executed by parallelism processes.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Builder<R> stage(String name, Function<? super T,? extends R> fn, int parallelism) {
+      if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+      functions.add((Function<Object,Object>) fn);
+      metrics.add(new StageMetrics(name,parallelism));
+      channels.add(new SynchronousChannel<Item>("pipeline "+name));
+      return (Builder<R>) this;
+    }
+
+    /**
+     * Adds a stage which applies fn to the values, executed by a single process.
+     */
+    public <R> Builder<R> stage(Function<? super T,? extends R> fn) {
+      return stage("stage"+metrics.size(),fn,1);
+    }
+
+    /**
+     * Selects ordered (the default) or unordered mode.
+     */
+    public Builder<T> ordered(boolean ordered) {
+      this.ordered = ordered;
+      return this;
+    }
+
+    /**
+     * Returns the (not yet started) pipeline whose sink passes the values to sink.
+     */
+    public Pipeline to(Consumer<? super T> sink) {
+      return build(sink,null);
+    }
+
+    /**
+     * Returns the (not yet started) pipeline whose sink sends the values over sink,
+     * and closes sink at the end of the pipeline.
+     */
+    public Pipeline to(SynchronousChannel<T> sink) {
+      return build(null,sink);
+    }
+
+    private Pipeline build(Consumer<? super T> sink, SynchronousChannel<T> sinkChannel) {
+      Pipeline pipeline = new Pipeline(this);
+      // In ordered mode the source takes a credit for every value, which the sink returns
+      // once the value is output (in order); as many credits as stage processes keep
+      // every process busy
+      int window = 0;
+      for (StageMetrics stage : metrics) window += stage.getParallelism();
+      Semaphore credits = ordered ? new Semaphore(Math.max(window,1)) : null;
+      pipeline.threads.add(new Thread(() -> runSource(pipeline,credits),"pipeline source"));
+      for (int i=0; i<functions.size(); i++) {
+        StageMetrics stage = metrics.get(i);
+        AtomicInteger running = new AtomicInteger(stage.getParallelism());
+        for (int j=0; j<stage.getParallelism(); j++) {
+          int index = i;
+          pipeline.threads.add(new Thread(() -> runStage(pipeline,index,running),
+                                          "pipeline "+stage.getName()+"#"+j));
+        }
+      }
+      pipeline.threads.add(new Thread(() -> runSink(pipeline,sink,sinkChannel,credits),"pipeline sink"));
+      return pipeline;
+    }
+
+    private void runSource(Pipeline pipeline, Semaphore credits) {
+      SynchronousChannel<Item> out = channels.get(0);
+      long seq = 0;
+      try {
+        if (source != null) {
+          Iterator<?> values = source.iterator();
+          while (values.hasNext()) {
+            if (credits != null) credits.acquire();
+            Command.send(out,new Item(seq++,values.next()));
+          }
+        } else {
+          while (true) {
+            if (credits != null) credits.acquire();
+            Command.send(out,new Item(seq++,Command.executeInterruptibly(Action.receive(sourceChannel))));
+          }
+        }
+      } catch (ChannelClosedException | InterruptedException exc) {
+        // The source channel has been closed, or the pipeline cancelled
+      } catch (RuntimeException exc) {
+        pipeline.fail(exc);
+      } finally {
+        out.close();
+      }
+    }
+
+    private void runStage(Pipeline pipeline, int index, AtomicInteger running) {
+      SynchronousChannel<Item> in = channels.get(index);
+      SynchronousChannel<Item> out = channels.get(index+1);
+      Function<Object,Object> fn = functions.get(index);
+      StageMetrics stage = metrics.get(index);
+      stage.started();
+      try {
+        while (true) {
+          Item item = Command.receive(in);
+          long start = System.nanoTime();
+          item.value = fn.apply(item.value);
+          stage.processed(System.nanoTime() - start);
+          Command.send(out,item);
+        }
+      } catch (ChannelClosedException exc) {
+        // End of the values, or the pipeline has been cancelled
+      } catch (RuntimeException exc) {
+        pipeline.fail(exc);
+      } finally {
+        // The last process of the stage signals the end to the next stage
+        if (running.decrementAndGet() == 0) {
+          stage.finished();
+          out.close();
+        }
+      }
+    }
+
+    private void runSink(Pipeline pipeline, Consumer<? super T> sink, SynchronousChannel<T> sinkChannel,
+                         Semaphore credits) {
+      SynchronousChannel<Item> in = channels.get(channels.size()-1);
+      Map<Long,Object> pending = new HashMap<Long,Object>();
+      long next = 0;
+      try {
+        while (true) {
+          Item item = Command.receive(in);
+          if (!ordered) {
+            output(item.value,sink,sinkChannel);
+          } else if (item.seq != next) {
+            // Out of order; fewer values are pending than the credits of the source
+            pending.put(item.seq,item.value);
+          } else {
+            output(item.value,sink,sinkChannel);
+            credits.release();
+            while (pending.containsKey(++next)) {
+              output(pending.remove(next),sink,sinkChannel);
+              credits.release();
+            }
+          }
+        }
+      } catch (ChannelClosedException | InterruptedException exc) {
+        // End of the values, or the pipeline has been cancelled
+      } catch (RuntimeException exc) {
+        pipeline.fail(exc);
+      } finally {
+        if (sinkChannel != null) sinkChannel.close();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void output(Object value, Consumer<? super T> sink, SynchronousChannel<T> sinkChannel) throws InterruptedException {
+      if (sink != null) sink.accept((T) value);
+      else Command.executeInterruptibly(Action.send(sinkChannel,(T) value));
+    }
+  }
+
+  /**
+   * The throughput of a pipeline stage.
+   */
+  public static class StageMetrics {
+    private final String name;
+    private final int parallelism;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong startNanos = new AtomicLong();
+    private volatile long endNanos = 0;
+
+    StageMetrics(String name, int parallelism) {
+      this.name = name;
+      this.parallelism = parallelism;
+    }
+
+    void started() {
+      startNanos.compareAndSet(0,System.nanoTime());
+    }
+
+    void processed(long nanos) {
+      processed.incrementAndGet();
+      busyNanos.addAndGet(nanos);
+    }
+
+    void finished() {
+      endNanos = System.nanoTime();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getParallelism() {
+      return parallelism;
+    }
+
+    /**
+     * Returns the number of values processed by the stage.
+     */
+    public long getProcessed() {
+      return processed.get();
+    }
+
+    /**
+     * Returns the time spent applying the function of the stage, summed over its processes.
+     */
+    public long getBusyNanos() {
+      return busyNanos.get();
+    }
+
+    /**
+     * Returns the time since the stage started, until it finished (if it has).
+     */
+    public long getElapsedNanos() {
+      long start = startNanos.get();
+      if (start == 0) return 0;
+      long end = endNanos;
+      return (end != 0 ? end : System.nanoTime()) - start;
+    }
+
+    /**
+     * Returns the number of values processed per second.
+     */
+    public double getThroughput() {
+      long elapsed = getElapsedNanos();
+      return elapsed == 0 ? 0 : processed.get() / (elapsed / 1e9);
+    }
+
+    /**
+     * Returns the fraction of the time the processes of the stage spent applying its function,
+     * rather than waiting for values; a stage close to 1 is a bottleneck
+     * which may benefit from more parallelism.
+     */
+    public double getUtilization() {
+      long elapsed = getElapsedNanos();
+      return elapsed == 0 ? 0 : busyNanos.get() / ((double) elapsed * parallelism);
+    }
+
+    public String toString() {
+      return String.format("%s(x%d): %d values, %.0f values/s, %.0f%% busy",
+                           name,parallelism,getProcessed(),getThroughput(),100*getUtilization());
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A byte buffer obtained from a {@link BufferPool}, which is owned by one process
+ * (thread) at a time. Sending the buffer over a {@link BufferChannel} transfers its
+ * ownership to the receiver when the synchronization commits, without copying
+ * the buffer; the receiver eventually releases the buffer back to the pool.
+ * <p>
+ * Only the owner may access the buffer (buffer) and release it. The header
+ * of the buffer can however be read by anyone (peekInt etc), e.g., by the guard
+ * of a receive action, which may be evaluated by another process:
+ * <code>
+ * Action.receiveWithGuard(frames, frame -&gt; frame.peekShort(0) == TYPE_DATA)
+ * </code>
+ * The peek methods read at absolute indices, and do not change the position of the buffer.
+ * </p>
+ */
+public class PooledBuffer {
+  private static final long RELEASED = 0;
+
+  private final BufferPool pool;
+  private final ByteBuffer buffer;
+  private volatile long owner;
+
+  PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+    this.pool = pool;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Returns the underlying byte buffer.
+   * @throws IllegalStateException if the current process does not own the buffer.
+   */
+  public ByteBuffer buffer() {
+    checkOwner();
+    return buffer;
+  }
+
+  /**
+   * Returns the buffer to the pool (the pool of the current thread).
+   * The buffer must no longer be used after it has been released.
+   * @throws IllegalStateException if the current process does not own the buffer.
+   */
+  public void release() {
+    checkOwner();
+    owner = RELEASED;
+    buffer.clear();
+    pool.release(this);
+  }
+
+  public byte peek(int index) {
+    return buffer.get(index);
+  }
+
+  public short peekShort(int index) {
+    return buffer.getShort(index);
+  }
+
+  public int peekInt(int index) {
+    return buffer.getInt(index);
+  }
+
+  public long peekLong(int index) {
+    return buffer.getLong(index);
+  }
+
+  /**
+   * Returns true if the current process owns the buffer.
+   */
+  public boolean isOwned() {
+    // A buffer received by a party without a thread of its own (see
+    // JMsgProcess.newAsyncId) may be accessed by any thread
+    long id = owner;
+    return id < 0 || id == JMsgProcess.currentId();
+  }
+
+  void acquired() {
+    owner = JMsgProcess.currentId();
+  }
+
+  void transferTo(long id) {
+    owner = id;
+  }
+
+  private void checkOwner() {
+    if (!isOwned())
+      throw new IllegalStateException(owner == RELEASED ? "buffer released" : "buffer owned by "+owner);
+  }
+
+  public String toString() {
+    return "pooledbuffer(owner="+owner+","+buffer+")";
+  }
+}
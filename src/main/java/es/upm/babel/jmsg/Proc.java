@@ -0,0 +1,196 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+
+/**
+ * A process: a body run by some thread of its group (see ProcGroup), which
+ * owns its own mailbox. The synchronizations of the process are bound to the
+ * process, not to the thread running it, so the processes of a group may share
+ * a pool of threads (or run on virtual threads), and a thread may run many processes
+ * over its lifetime; the mailbox of a process is dropped when the process exits.
+ * <p>
+ * Example:
+ * <code>
+ * Proc p = Proc.spawn("producer", () -&gt; Command.send(ch, 42));
+ * p.join();
+ * </code>
+ * </p>
+ */
+public class Proc {
+  // Above thread ids (positive, but small) and async ids (negative)
+  private static final AtomicLong ids = new AtomicLong(1L << 40);
+  private static final ThreadLocal<Proc> current = new ThreadLocal<Proc>();
+
+  private final long id = ids.incrementAndGet();
+  private final String name;
+  private final ProcGroup group;
+  private final Runnable body;
+  private final Mailbox mailbox;
+  private final CountDownLatch exited = new CountDownLatch(1);
+  private final List<SynchronousChannel<Proc>> monitors = new CopyOnWriteArrayList<SynchronousChannel<Proc>>();
+  // The thread running the body (null before it starts, and after it ends);
+  // guarded by this, so that a pooled thread is not interrupted on behalf of
+  // a process which has exited
+  private Thread thread = null;
+  private boolean interrupted = false;
+  private boolean done = false;
+  private volatile Throwable failure = null;
+
+  Proc(String name, ProcGroup group, Runnable body) {
+    this.name = name != null ? name : "proc-"+id;
+    this.group = group;
+    this.body = body;
+    this.mailbox = new Mailbox(id,this);
+  }
+
+  /**
+   * Spawns a process running body, in a thread of its own.
+   */
+  public static Proc spawn(Runnable body) {
+    return ProcGroup.getDefault().spawn(body);
+  }
+
+  /**
+   * Spawns a process named name running body, in a thread of its own.
+   */
+  public static Proc spawn(String name, Runnable body) {
+    return ProcGroup.getDefault().spawn(name,body);
+  }
+
+  /**
+   * Returns the process running in the current thread, or null if the thread
+   * is not running a process.
+   */
+  public static Proc current() {
+    return current.get();
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public ProcGroup getGroup() {
+    return group;
+  }
+
+  /**
+   * Returns true if the process has not exited yet.
+   */
+  public boolean isAlive() {
+    return exited.getCount() > 0;
+  }
+
+  /**
+   * Returns the exception or error which ended the process, or null if the
+   * process is alive or its body completed normally.
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Returns the number of synchronizations (sends and receives) the process has completed.
+   */
+  public long getSynchronizations() {
+    return mailbox.getCommits();
+  }
+
+  /**
+   * Waits for the process to exit.
+   */
+  public void join() throws InterruptedException {
+    exited.await();
+  }
+
+  /**
+   * Waits at most timeout for the process to exit; returns false if it is still alive.
+   */
+  public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+    return exited.await(timeout,unit);
+  }
+
+  /**
+   * Interrupts the process: a blocking operation of the process throws InterruptedException
+   * (or, if the process has not started yet, its first one).
+   */
+  public synchronized void interrupt() {
+    if (done) return;
+    if (thread != null) thread.interrupt();
+    else interrupted = true;
+  }
+
+  /**
+   * Sends the process over channel when it exits. The send is performed on
+   * behalf of the exited process, without a thread: it waits on the channel until
+   * some process receives it. If the process has already exited, the send is
+   * offered at once.
+   */
+  public void monitor(SynchronousChannel<Proc> channel) {
+    monitors.add(channel);
+    if (!isAlive() && monitors.remove(channel)) signal(channel);
+  }
+
+  private void signal(SynchronousChannel<Proc> channel) {
+    channel.offer(AsyncOffer.newAsyncOffer(Action.send(channel,this),JMsgProcess.newAsyncId(),msg -> { }));
+  }
+
+  // Runs in a thread of the group
+  void run() {
+    // A group with a caller-runs executor may run a process inside another one
+    Proc previousProc = current.get();
+    current.set(this);
+    Mailbox previous = JMsgProcess.enter(mailbox);
+    try {
+      synchronized (this) {
+        thread = Thread.currentThread();
+        if (interrupted) thread.interrupt();
+      }
+      body.run();
+    } catch (Throwable exc) {
+      failure = exc;
+      if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
+        JMsgProcess.getLogger().log(Level.SEVERE,"process "+name+" failed",exc);
+    } finally {
+      synchronized (this) {
+        done = true;
+        thread = null;
+      }
+      // Do not leak the interrupt status into the next process of a pooled thread
+      Thread.interrupted();
+      JMsgProcess.leave(mailbox,previous);
+      if (previousProc != null) current.set(previousProc);
+      else current.remove();
+      group.exited(this);
+      exited.countDown();
+      for (SynchronousChannel<Proc> channel : monitors)
+        if (monitors.remove(channel)) signal(channel);
+    }
+  }
+
+  // For the thread factory of the group, which may name the thread after the process
+  Runnable task() {
+    return new Runnable() {
+      public void run() {
+        Proc.this.run();
+      }
+
+      public String toString() {
+        return name;
+      }
+    };
+  }
+
+  public String toString() {
+    return "proc "+name+"("+id+")";
+  }
+}
@@ -0,0 +1,192 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A group of processes, spawned on the same executor. The group
+ * keeps track of its live processes, so that they can be joined or interrupted
+ * together, and counts the processes spawned and exited, and their synchronizations.
+ * <ul>
+ * <li>platform: each process runs in a platform thread of its own, named after the process.
+ * <li>virtual: each process runs in a virtual thread of its own (Java 21 and later).
+ * <li>fixed: the processes share a fixed pool of (daemon) threads.
+ * </ul>
+ * <p>
+ * A process of a fixed pool holds its thread while blocked in a synchronization,
+ * so a pool of n threads runs at most n processes at once; processes waiting
+ * on each other must fit in the pool.
+ * </p>
+ */
+public class ProcGroup {
+  private static volatile ProcGroup defaultGroup = null;
+
+  private final String name;
+  private final Executor executor;
+  private final Set<Proc> processes = ConcurrentHashMap.newKeySet();
+  private final AtomicLong spawned = new AtomicLong();
+  private final AtomicLong exited = new AtomicLong();
+  // The synchronizations of the processes which have exited
+  private final AtomicLong synchronizations = new AtomicLong();
+
+  /**
+   * Creates a group whose processes run on executor.
+   */
+  public ProcGroup(String name, Executor executor) {
+    if (executor == null) throw new NullPointerException();
+    this.name = name;
+    this.executor = executor;
+  }
+
+  /**
+   * A group which runs each process in a platform thread of its own.
+   */
+  public static ProcGroup platform(String name) {
+    return new ProcGroup(name,task -> {
+        Thread thread = new Thread(task,task.toString());
+        thread.start();
+      });
+  }
+
+  /**
+   * A group which runs each process in a virtual thread of its own.
+   * Throws UnsupportedOperationException if the JVM has no virtual threads.
+   */
+  public static ProcGroup virtual(String name) {
+    ExecutorService executor;
+    try {
+      executor = (ExecutorService)
+        Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException exc) {
+      throw new UnsupportedOperationException("virtual threads are not available");
+    }
+    return new ProcGroup(name,executor);
+  }
+
+  /**
+   * A group whose processes share a pool of nThreads daemon threads.
+   */
+  public static ProcGroup fixed(String name, int nThreads) {
+    AtomicLong threads = new AtomicLong();
+    ThreadFactory factory = task -> {
+      Thread thread = new Thread(task,name+"-"+threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new ProcGroup(name,Executors.newFixedThreadPool(nThreads,factory));
+  }
+
+  // The group of Proc.spawn
+  static ProcGroup getDefault() {
+    ProcGroup group = defaultGroup;
+    if (group == null) {
+      synchronized (ProcGroup.class) {
+        if (defaultGroup == null) defaultGroup = platform("main");
+        group = defaultGroup;
+      }
+    }
+    return group;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Spawns a process of the group running body.
+   */
+  public Proc spawn(Runnable body) {
+    return spawn(null,body);
+  }
+
+  /**
+   * Spawns a process of the group, named name, running body.
+   */
+  public Proc spawn(String name, Runnable body) {
+    Proc proc = new Proc(name,this,body);
+    processes.add(proc);
+    spawned.incrementAndGet();
+    try {
+      executor.execute(proc.task());
+    } catch (RuntimeException exc) {
+      processes.remove(proc);
+      spawned.decrementAndGet();
+      throw exc;
+    }
+    return proc;
+  }
+
+  void exited(Proc proc) {
+    synchronizations.addAndGet(proc.getSynchronizations());
+    exited.incrementAndGet();
+    processes.remove(proc);
+  }
+
+  /**
+   * Returns the live processes of the group.
+   */
+  public List<Proc> processes() {
+    return new ArrayList<Proc>(processes);
+  }
+
+  /**
+   * Returns the number of live processes of the group.
+   */
+  public int size() {
+    return processes.size();
+  }
+
+  public long getSpawned() {
+    return spawned.get();
+  }
+
+  public long getExited() {
+    return exited.get();
+  }
+
+  /**
+   * Returns the number of synchronizations completed by the processes of the group,
+   * both live and exited.
+   */
+  public long getSynchronizations() {
+    long total = synchronizations.get();
+    for (Proc proc : processes) total += proc.getSynchronizations();
+    return total;
+  }
+
+  /**
+   * Waits for every live process of the group to exit, including those
+   * spawned meanwhile.
+   */
+  public void join() throws InterruptedException {
+    while (!processes.isEmpty())
+      for (Proc proc : processes) proc.join();
+  }
+
+  /**
+   * Interrupts every live process of the group.
+   */
+  public void interrupt() {
+    for (Proc proc : processes) proc.interrupt();
+  }
+
+  /**
+   * Stops the executor of the group, if it is an ExecutorService, once the
+   * processes already spawned have exited; no process can be spawned afterwards.
+   */
+  public void shutdown() {
+    if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdown();
+  }
+
+  public String toString() {
+    return "group "+name+" ("+processes.size()+" processes)";
+  }
+}
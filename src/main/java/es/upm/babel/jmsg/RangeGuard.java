@@ -0,0 +1,37 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.function.Predicate;
+
+
+// A guard accepting the values in a range (see Guards); a null bound is unbounded
+class RangeGuard<T extends Comparable<? super T>> implements Predicate<T> {
+  final T low;
+  final boolean lowInclusive;
+  final T high;
+  final boolean highInclusive;
+
+  RangeGuard(T low, boolean lowInclusive, T high, boolean highInclusive) {
+    this.low = low;
+    this.lowInclusive = lowInclusive;
+    this.high = high;
+    this.highInclusive = highInclusive;
+  }
+
+  public boolean test(T value) {
+    if (value == null) return false;
+    if (low != null) {
+      int cmp = value.compareTo(low);
+      if (cmp < 0 || (cmp == 0 && !lowInclusive)) return false;
+    }
+    if (high != null) {
+      int cmp = value.compareTo(high);
+      if (cmp > 0 || (cmp == 0 && !highInclusive)) return false;
+    }
+    return true;
+  }
+
+  public String toString() {
+    return (low == null ? "(*" : (lowInclusive ? "[" : "(") + low)
+      + ".." + (high == null ? "*)" : high + (highInclusive ? "]" : ")"));
+  }
+}
@@ -14,6 +14,10 @@ class ReceiveAction<E> extends BasicAction<E> {
 
   public ReceiveAction(SynchronousChannel<E> channel, Predicate<E> guard) {
     super(channel);
+    if (guard != null && channel instanceof RemoteChannel<?>)
+      throw new IllegalArgumentException("guards over remote channels are not supported");
+    if (guard != null && channel instanceof SharedMemoryChannel<?>)
+      throw new IllegalArgumentException("guards over shared memory channels are not supported");
     this.guard = guard;
   }
 
@@ -0,0 +1,16 @@
+package es.upm.babel.cclib.jmsg;
+
+
+class RejectedMessage<E,T> extends Message<E,T> {
+  public RejectedMessage(Offer<E,T> offer) {
+    super(offer);
+  }
+
+  public String toString() {
+    return "RejectedMessage("+getOffer()+")";
+  }
+
+  public static <E,T> RejectedMessage<E,T> newRejectedMessage(Offer<E,T> offer) {
+    return new RejectedMessage<E,T>(offer);
+  }
+}
@@ -0,0 +1,135 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+
+/**
+ * A channel of another JVM, exported by a {@link ChannelServer}. The processes of
+ * this JVM synchronize over a remote channel as over a local one, including in selects:
+ * their offers are made on the exported channel on their behalf, and the messages
+ * of the synchronization protocol (lock down, commit, abort) travel over the connection
+ * to the server. All remote channels of a server share one connection, over which the offers
+ * and messages are batched (when several are pending at once).
+ * <p>
+ * Example:
+ * <pre>
+ * <code>
+ * RemoteChannel&lt;String&gt; jobs =
+ *   RemoteChannel.connect(new InetSocketAddress("localhost",7070), "jobs", Codec.strings());
+ * String job = Command.receive(jobs);
+ * </code>
+ * </pre>
+ * </p>
+ * <p>
+ * Receive guards (which would have to be evaluated in the JVM of the channel) and
+ * joins are not supported over remote channels. Closing a remote channel closes the
+ * exported channel; the remote channel is also closed if the exported channel is closed,
+ * or the connection to the server is lost.
+ * </p>
+ */
+public class RemoteChannel<E> extends SynchronousChannel<E> {
+  private final RemoteConnection connection;
+  private final Codec<E> codec;
+  private final int remoteId;
+
+  private RemoteChannel(RemoteConnection connection, String name, Codec<E> codec) {
+    super(name+"@"+connection.socket.socket().getRemoteSocketAddress());
+    this.connection = connection;
+    this.codec = codec;
+    this.remoteId = connection.open(this,name);
+  }
+
+  /**
+   * Returns the channel exported under name by the server at address, whose values
+   * are passed with the codec. If the server has not exported the name, the channel is
+   * found closed when used.
+   */
+  public static <E> RemoteChannel<E> connect(InetSocketAddress address, String name, Codec<E> codec) throws IOException {
+    return new RemoteChannel<E>(RemoteConnection.get(address),name,codec);
+  }
+
+  /**
+   * Sets the largest encoded value, in bytes, which the remote channels and channel
+   * servers of this JVM accept from a connection (16 MB by default). A connection
+   * carrying a larger value is closed.
+   */
+  public static void setMaxValueSize(int bytes) {
+    RemoteLink.setMaxValueSize(bytes);
+  }
+
+  /**
+   * Returns the largest encoded value, in bytes, accepted from a connection.
+   */
+  public static int getMaxValueSize() {
+    return RemoteLink.getMaxValueSize();
+  }
+
+  Codec<E> getCodec() {
+    return codec;
+  }
+
+  int getRemoteId() {
+    return remoteId;
+  }
+
+  @Override
+  public void close() {
+    if (isClosed()) return;
+    connection.close(this);
+    super.close();
+  }
+
+  // The exported channel has been closed, or the connection lost
+  void closedRemotely() {
+    super.close();
+  }
+
+  @Override
+  void offer(Offer<E,?> offer) {
+    if (isClosed()) offer.deliver(this,ClosedMessage.newClosedMessage(offer));
+    else connection.offer(this,offer);
+  }
+
+  @Override
+  <T> void offers(ArrayList<Offer<E,T>> offers) {
+    for (Offer<E,T> offer : offers) offer(offer);
+  }
+
+  @Override
+  void acceptLockDown(Offer<E,?> offer) {
+    connection.acceptLockDown(offer);
+  }
+
+  // The server does not know when a select ends
+  @Override
+  boolean purgesAbandonedOffers() {
+    return false;
+  }
+
+  @Override
+  <T> void cancelOffer(Offer<E,T> offer) {
+    connection.cancel(offer);
+  }
+
+  @Override
+  <T> void cancelOffers(ArrayList<Offer<E,T>> offers, Offer<?,?> remain) {
+    for (Offer<E,T> offer : offers)
+      if (offer != remain) connection.cancel(offer);
+  }
+
+  @Override
+  boolean withdrawOffer(Offer<E,?> offer) {
+    return connection.withdraw(offer);
+  }
+
+  @Override
+  boolean isReadyToJoin(Offer<?,?> offer) {
+    return false;
+  }
+
+  @Override
+  void recheckOffers() {
+  }
+}
@@ -0,0 +1,199 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// The link of this JVM to a channel server, shared by all the remote channels
+// (and processes) using the server. The offers of the processes are numbered,
+// and the messages of the server delivered to the offers by number; a select
+// reoffers the same offer after an abort, under a new number. Messages for
+// offers no longer pending (e.g., the lock down of a cancelled offer) are
+// dropped, as the process would find them stale.
+class RemoteConnection extends RemoteLink {
+  private static final Map<InetSocketAddress,RemoteConnection> connections =
+    new ConcurrentHashMap<InetSocketAddress,RemoteConnection>();
+  private static RemoteLoop clientLoop = null;
+
+  private final InetSocketAddress address;
+  private final AtomicInteger channelIds = new AtomicInteger();
+  private final AtomicLong offerIds = new AtomicLong();
+  private final Map<Integer,RemoteChannel<?>> channels = new ConcurrentHashMap<Integer,RemoteChannel<?>>();
+  private final Map<Long,Offer<?,?>> offers = new ConcurrentHashMap<Long,Offer<?,?>>();
+  private final Map<Offer<?,?>,Long> ids = new ConcurrentHashMap<Offer<?,?>,Long>();
+  private final Map<Long,CompletableFuture<Boolean>> withdrawals = new ConcurrentHashMap<Long,CompletableFuture<Boolean>>();
+
+  private RemoteConnection(InetSocketAddress address, SocketChannel socket, RemoteLoop loop) throws IOException {
+    super(socket,loop);
+    this.address = address;
+  }
+
+  static RemoteConnection get(InetSocketAddress address) throws IOException {
+    synchronized (connections) {
+      RemoteConnection connection = connections.get(address);
+      if (connection == null || connection.isClosed()) {
+        if (clientLoop == null) clientLoop = new RemoteLoop("jmsg-remote");
+        connection = new RemoteConnection(address,SocketChannel.open(address),clientLoop);
+        connections.put(address,connection);
+      }
+      return connection;
+    }
+  }
+
+  int open(RemoteChannel<?> channel, String name) {
+    int id = channelIds.incrementAndGet();
+    channels.put(id,channel);
+    Record record = new Record(OPEN,id);
+    record.name = name;
+    send(record);
+    return id;
+  }
+
+  void close(RemoteChannel<?> channel) {
+    channels.remove(channel.getRemoteId());
+    send(new Record(CLOSE,channel.getRemoteId()));
+  }
+
+  <E> void offer(RemoteChannel<E> channel, Offer<E,?> offer) {
+    long id = offerIds.incrementAndGet();
+    offers.put(id,offer);
+    ids.put(offer,id);
+    Record record = new Record(OFFER,id);
+    record.channel = channel.getRemoteId();
+    record.processId = offer.getOriginatingId();
+    record.timestamp = offer.getTimestamp();
+    record.selectIndex = offer.getSelectIndex();
+    record.flag = offer.isSendOffer();
+    if (record.flag) {
+      @SuppressWarnings("unchecked")
+      SendAction<E> action = (SendAction<E>) offer.getAction().getBasicAction();
+      record.value = action.getValue();
+      record.codec = channel.getCodec();
+    }
+    send(record);
+    // The link may have been closed before the offer was registered
+    if (isClosed()) closed();
+  }
+
+  void acceptLockDown(Offer<?,?> offer) {
+    Long id = ids.get(offer);
+    if (id != null) send(new Record(ACCEPT,id));
+  }
+
+  void cancel(Offer<?,?> offer) {
+    Long id = ids.remove(offer);
+    if (id != null && offers.remove(id) != null) send(new Record(CANCEL,id));
+  }
+
+  // Waits for the server to withdraw the offer; returns false if the outcome
+  // of the offer has been, or is being, delivered
+  boolean withdraw(Offer<?,?> offer) {
+    Long id = ids.get(offer);
+    if (id == null) return false;
+    CompletableFuture<Boolean> withdrawn = new CompletableFuture<Boolean>();
+    withdrawals.put(id,withdrawn);
+    send(new Record(WITHDRAW,id));
+    if (isClosed()) withdrawn.complete(false);
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (withdrawn.get()) {
+            ids.remove(offer);
+            offers.remove(id);
+            return true;
+          }
+          return false;
+        } catch (InterruptedException exc) {
+          interrupted = true;
+        } catch (ExecutionException exc) {
+          return false;
+        }
+      }
+    } finally {
+      withdrawals.remove(id);
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  void received(byte type, DataInputStream in) throws IOException {
+    long id = in.readLong();
+    switch (type) {
+    case LOCKDOWN:
+      Offer<?,?> offer = offers.get(id);
+      if (offer != null) offer.deliver(channel(offer),LockDownMessage.newLockDownMessage(offer));
+      break;
+    case COMMIT:
+      committed(id,in.readBoolean(),in);
+      break;
+    case ABORT:
+      offer = remove(id);
+      if (offer != null) offer.deliver(channel(offer),AbortMessage.newAbortMessage(offer));
+      break;
+    case CLOSED:
+      offer = remove(id);
+      if (offer != null) {
+        channel(offer).closedRemotely();
+        offer.deliver(channel(offer),ClosedMessage.newClosedMessage(offer));
+      }
+      break;
+    case REJECTED:
+      offer = remove(id);
+      if (offer != null) offer.deliver(channel(offer),RejectedMessage.newRejectedMessage(offer));
+      break;
+    case WITHDRAWN:
+      boolean pending = in.readBoolean();
+      CompletableFuture<Boolean> withdrawn = withdrawals.get(id);
+      if (withdrawn != null) withdrawn.complete(pending);
+      break;
+    default:
+      throw new IOException("unexpected record type "+type);
+    }
+  }
+
+  private <E> void committed(long id, boolean hasValue, DataInputStream in) throws IOException {
+    @SuppressWarnings("unchecked")
+    Offer<E,?> offer = (Offer<E,?>) remove(id);
+    if (offer == null) {
+      // Withdrawn meanwhile (by a closing connection)
+      if (hasValue) skipValue(in);
+      return;
+    }
+    RemoteChannel<E> channel = channel(offer);
+    if (hasValue)
+      offer.setResolvedValue(readValue(in,channel.getCodec()));
+    else
+      offer.setResolvedValue(((SendAction<E>) offer.getAction().getBasicAction()).getValue());
+    offer.deliver(channel,CommitMessage.newCommitMessage(offer));
+  }
+
+  private Offer<?,?> remove(long id) {
+    Offer<?,?> offer = offers.remove(id);
+    if (offer != null) ids.remove(offer,id);
+    return offer;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> RemoteChannel<E> channel(Offer<E,?> offer) {
+    return (RemoteChannel<E>) offer.getAction().getBasicAction().getChannel();
+  }
+
+  // The server is gone: the channels are as good as closed
+  void closed() {
+    connections.remove(address,this);
+    for (RemoteChannel<?> channel : channels.values()) channel.closedRemotely();
+    for (Long id : offers.keySet()) {
+      Offer<?,?> offer = remove(id);
+      if (offer != null) offer.deliver(channel(offer),ClosedMessage.newClosedMessage(offer));
+    }
+    for (CompletableFuture<Boolean> withdrawn : withdrawals.values()) withdrawn.complete(false);
+  }
+}
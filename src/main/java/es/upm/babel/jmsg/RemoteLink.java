@@ -0,0 +1,283 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+
+// A connection between a remote channel client and a channel server, carrying
+// the offers of the client processes, and the messages of the synchronization
+// protocol (lock down, accept, commit, abort, cancel, closed).
+//
+// Any thread may queue a record on the link (e.g., a channel delivering a message
+// while locked), without blocking; the loop thread encodes all the records queued
+// into a single frame (an int length, and the records), so that under load many
+// offers and messages travel in one write. The link is not tied to a channel:
+// the offers of all channels of a client to a server share it, each record
+// carrying the id of its offer (or channel).
+//
+// The lengths read from the connection are checked before anything is allocated
+// for them: a value longer than maxValueSize, or a frame longer than the longest a
+// peer writes (records up to MAX_FRAME bytes, and a last record with a value),
+// closes the link.
+abstract class RemoteLink {
+  private static final int MAX_FRAME = 64 * 1024;
+  // The longest record, without its value
+  private static final int MAX_RECORD = 64;
+  private static volatile int maxValueSize = 16 * 1024 * 1024;
+
+  // Client to server
+  static final byte OPEN = 1;
+  static final byte OFFER = 2;
+  static final byte ACCEPT = 3;
+  static final byte CANCEL = 4;
+  static final byte WITHDRAW = 5;
+  static final byte CLOSE = 6;
+  // Server to client
+  static final byte LOCKDOWN = 7;
+  static final byte COMMIT = 8;
+  static final byte ABORT = 9;
+  static final byte CLOSED = 10;
+  static final byte WITHDRAWN = 11;
+  static final byte REJECTED = 12;
+
+  final SocketChannel socket;
+  final RemoteLoop loop;
+  private volatile SelectionKey key;
+  private final Queue<Record> outbox = new ConcurrentLinkedQueue<Record>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private volatile boolean closed = false;
+  // Only used by the loop thread
+  private ByteBuffer in = ByteBuffer.allocate(MAX_FRAME);
+  private ByteBuffer out = null;
+  private final ByteArrayOutputStream frame = new ByteArrayOutputStream(MAX_FRAME);
+  private final DataOutputStream frameData = new DataOutputStream(frame);
+  private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+  private final DataOutputStream valueData = new DataOutputStream(value);
+  private volatile long frames = 0;
+  private volatile long records = 0;
+
+  RemoteLink(SocketChannel socket, RemoteLoop loop) throws IOException {
+    this.socket = socket;
+    this.loop = loop;
+    socket.configureBlocking(false);
+    socket.socket().setTcpNoDelay(true);
+    loop.register(socket,SelectionKey.OP_READ,this,key -> this.key = key);
+  }
+
+  // A record of the protocol; id identifies the offer (or for OPEN and CLOSE, the channel)
+  static class Record {
+    final byte type;
+    final long id;
+    int channel;
+    long processId;
+    long timestamp;
+    int selectIndex;
+    boolean flag;
+    String name;
+    Object value;
+    Codec<?> codec;
+
+    Record(byte type, long id) {
+      this.type = type;
+      this.id = id;
+    }
+  }
+
+  static void setMaxValueSize(int bytes) {
+    if (bytes < 0 || bytes > Integer.MAX_VALUE - MAX_FRAME - MAX_RECORD)
+      throw new IllegalArgumentException("invalid value size "+bytes);
+    maxValueSize = bytes;
+  }
+
+  static int getMaxValueSize() {
+    return maxValueSize;
+  }
+
+  private static int maxFrame() {
+    return MAX_FRAME + MAX_RECORD + maxValueSize;
+  }
+
+  void send(Record record) {
+    if (closed) return;
+    outbox.add(record);
+    if (flushScheduled.compareAndSet(false,true)) loop.execute(this::flush);
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  // The number of frames and records written, for the average batch size
+  long getFrames() {
+    return frames;
+  }
+
+  long getRecords() {
+    return records;
+  }
+
+  // Called in the loop thread for every record read
+  abstract void received(byte type, DataInputStream in) throws IOException;
+
+  // Called (once) when the link is closed
+  abstract void closed();
+
+  void flush() {
+    flushScheduled.set(false);
+    if (closed || key == null) return;
+    try {
+      while (true) {
+        if (out != null) {
+          socket.write(out);
+          if (out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+          }
+          out = null;
+        }
+        if (outbox.isEmpty()) {
+          key.interestOps(SelectionKey.OP_READ);
+          return;
+        }
+        out = nextFrame();
+      }
+    } catch (IOException exc) {
+      close(exc);
+    }
+  }
+
+  private ByteBuffer nextFrame() throws IOException {
+    frame.reset();
+    frameData.writeInt(0);
+    int count = 0;
+    Record record;
+    while (frame.size() < MAX_FRAME && (record = outbox.poll()) != null) {
+      write(record);
+      count++;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(frame.toByteArray());
+    buffer.putInt(0,buffer.limit() - 4);
+    frames++;
+    records += count;
+    return buffer;
+  }
+
+  private void write(Record record) throws IOException {
+    DataOutputStream out = frameData;
+    out.writeByte(record.type);
+    out.writeLong(record.id);
+    switch (record.type) {
+    case OPEN:
+      out.writeUTF(record.name);
+      break;
+    case OFFER:
+      out.writeInt(record.channel);
+      out.writeLong(record.processId);
+      out.writeLong(record.timestamp);
+      out.writeInt(record.selectIndex);
+      out.writeBoolean(record.flag);
+      if (record.flag) writeValue(record.value,record.codec);
+      break;
+    case COMMIT:
+    case WITHDRAWN:
+      out.writeBoolean(record.flag);
+      if (record.type == COMMIT && record.flag) writeValue(record.value,record.codec);
+      break;
+    default:
+      break;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeValue(Object v, Codec<?> codec) throws IOException {
+    if (v == null) {
+      frameData.writeInt(-1);
+      return;
+    }
+    value.reset();
+    ((Codec<Object>) codec).encode(v,valueData);
+    frameData.writeInt(value.size());
+    value.writeTo(frameData);
+  }
+
+  static <E> E readValue(DataInputStream in, Codec<E> codec) throws IOException {
+    int length = readLength(in);
+    if (length < 0) return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  static void skipValue(DataInputStream in) throws IOException {
+    int length = readLength(in);
+    if (length > 0) in.skipBytes(length);
+  }
+
+  // The length of a value (-1 for null), within the limit and the rest of its frame
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < -1 || length > maxValueSize || length > in.available())
+      throw new IOException("invalid value length "+length);
+    return length;
+  }
+
+  void read() {
+    try {
+      if (socket.read(in) < 0) {
+        close(null);
+        return;
+      }
+      in.flip();
+      while (in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if (length < 0 || length > maxFrame()) throw new IOException("invalid frame length "+length);
+        if (in.remaining() < 4 + length) break;
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(bytes));
+        while (records.available() > 0) received(records.readByte(),records);
+      }
+      in.compact();
+      // A frame larger than the buffer (a large value), no larger than the longest frame
+      if (!in.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(in.capacity() * 2L,4L + maxFrame()));
+        in.flip();
+        larger.put(in);
+        in = larger;
+      }
+    } catch (IOException | RuntimeException exc) {
+      close(exc);
+    }
+  }
+
+  void close(Exception cause) {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+    }
+    if (cause != null && JMsgProcess.getLogger().isLoggable(Level.WARNING))
+      JMsgProcess.getLogger().log(Level.WARNING,this+": closed by "+cause);
+    if (key != null) key.cancel();
+    try {
+      socket.close();
+    } catch (IOException exc) {
+      // Closed anyway
+    }
+    outbox.clear();
+    closed();
+  }
+
+  public String toString() {
+    return "link "+socket.socket().getLocalSocketAddress()+"->"+socket.socket().getRemoteSocketAddress();
+  }
+}
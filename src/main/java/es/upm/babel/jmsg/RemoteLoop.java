@@ -0,0 +1,91 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+
+// A daemon thread serving non-blocking sockets with a selector: it accepts the
+// connections of a channel server, reads the frames arriving over the links,
+// and flushes the records queued on them. Other threads only queue tasks for
+// the loop, waking the selector at most once per batch of tasks.
+class RemoteLoop implements Runnable {
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicBoolean wakeup = new AtomicBoolean();
+  private volatile boolean stopped = false;
+
+  RemoteLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this,name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Runs task in the loop thread
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (Thread.currentThread() != thread && wakeup.compareAndSet(false,true))
+      selector.wakeup();
+  }
+
+  // Registers the socket, passing its key to registered (in the loop thread);
+  // the attachment is a ChannelServer (accepting) or a RemoteLink
+  void register(SelectableChannel socket, int ops, Object attachment, Consumer<SelectionKey> registered) {
+    execute(() -> {
+        try {
+          registered.accept(socket.register(selector,ops,attachment));
+        } catch (IOException exc) {
+          if (JMsgProcess.getLogger().isLoggable(Level.WARNING))
+            JMsgProcess.getLogger().log(Level.WARNING,thread.getName()+": cannot register "+socket+": "+exc);
+        }
+      });
+  }
+
+  void stop() {
+    stopped = true;
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (!stopped) {
+      // Tasks queued by the loop thread itself (which does not wake the selector)
+      // run before it selects again
+      Runnable task;
+      while ((task = tasks.poll()) != null) task.run();
+      try {
+        selector.select();
+      } catch (IOException exc) {
+        if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
+          JMsgProcess.getLogger().log(Level.SEVERE,thread.getName()+": select failed with "+exc);
+        return;
+      }
+      wakeup.set(false);
+
+      for (SelectionKey key : selector.selectedKeys()) {
+        if (!key.isValid()) continue;
+        Object attachment = key.attachment();
+        if (key.isAcceptable()) {
+          ((ChannelServer) attachment).accept();
+        } else {
+          RemoteLink link = (RemoteLink) attachment;
+          if (key.isReadable()) link.read();
+          if (key.isValid() && key.isWritable()) link.flush();
+        }
+      }
+      selector.selectedKeys().clear();
+    }
+    try {
+      selector.close();
+    } catch (IOException exc) {
+      // Nothing left to serve
+    }
+  }
+}
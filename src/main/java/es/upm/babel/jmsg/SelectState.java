@@ -0,0 +1,68 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+// The state a select shares with its offers. While the select runs, its offers
+// read their timestamp from the mailbox of the process, so re-arming the select
+// after an aborted synchronization (a new timestamp) does not touch its offers.
+//
+// When the select ends its offers are abandoned, but not cancelled on every
+// channel: the select counts them on their channels, which drop them (see
+// SynchronousChannel.purgeIfDue). A channel about to send a lock down to an offer
+// first records the offer here (contact), lock-free; once the select has ended
+// contact fails, so the select only has to cancel the offers it was contacted about.
+class SelectState {
+  private static final Contact FINISHED = new Contact(null,null);
+
+  private final Mailbox mailbox;
+  private volatile long frozen = -1;
+  private final AtomicReference<Contact> contacts = new AtomicReference<Contact>();
+
+  private static class Contact {
+    final Offer<?,?> offer;
+    final Contact next;
+
+    Contact(Offer<?,?> offer, Contact next) {
+      this.offer = offer;
+      this.next = next;
+    }
+  }
+
+  SelectState(Mailbox mailbox) {
+    this.mailbox = mailbox;
+  }
+
+  Mailbox getMailbox() {
+    return mailbox;
+  }
+
+  long getTimestamp() {
+    long timestamp = frozen;
+    return timestamp >= 0 ? timestamp : mailbox.getSelectTimestamp();
+  }
+
+  boolean isFinished() {
+    return contacts.get() == FINISHED;
+  }
+
+  // Returns false if the select has ended
+  boolean contact(Offer<?,?> offer) {
+    while (true) {
+      Contact head = contacts.get();
+      if (head == FINISHED) return false;
+      if (contacts.compareAndSet(head,new Contact(offer,head))) return true;
+    }
+  }
+
+  // Ends the select; returns the offers the channels have contacted
+  List<Offer<?,?>> finish() {
+    frozen = mailbox.getSelectTimestamp();
+    List<Offer<?,?>> contacted = new ArrayList<Offer<?,?>>();
+    for (Contact contact = contacts.getAndSet(FINISHED); contact != null; contact = contact.next)
+      contacted.add(contact.offer);
+    return contacted;
+  }
+}
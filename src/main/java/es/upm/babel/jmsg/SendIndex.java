@@ -0,0 +1,99 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+
+// The send offers of a channel, kept by the queue of its matching strategy, and
+// also indexed by value, for receivers with a range guard (see Guards).
+// Values equal by compareTo share an entry, in the order the offers arrived.
+// Once a value which cannot be indexed (null, or not comparable with the other
+// values) is sent, the index is dropped, and the receivers test every sender.
+class SendIndex<E> implements OfferQueue<Offer<E,?>> {
+  private final OfferQueue<Offer<E,?>> offers;
+  private TreeMap<Object,ArrayDeque<Offer<E,?>>> index = new TreeMap<Object,ArrayDeque<Offer<E,?>>>();
+
+  SendIndex(OfferQueue<Offer<E,?>> offers) {
+    this.offers = offers;
+    for (Offer<E,?> offer : offers) index(offer);
+  }
+
+  boolean isUsable() {
+    return index != null;
+  }
+
+  // The send offers whose values are in the range of the guard, smallest value first
+  Iterable<ArrayDeque<Offer<E,?>>> inRange(RangeGuard<?> guard) {
+    NavigableMap<Object,ArrayDeque<Offer<E,?>>> range = index;
+    try {
+      if (guard.low != null) range = range.tailMap(guard.low,guard.lowInclusive);
+      if (guard.high != null) range = range.headMap(guard.high,guard.highInclusive);
+    } catch (ClassCastException exc) {
+      // The bounds are not comparable with the values sent
+      return Collections.emptyList();
+    }
+    return range.values();
+  }
+
+  public void add(Offer<E,?> offer) {
+    offers.add(offer);
+    index(offer);
+  }
+
+  public void retry(Offer<E,?> offer) {
+    offers.retry(offer);
+    if (index != null) {
+      ArrayDeque<Offer<E,?>> equal = index.get(value(offer));
+      if (equal == null) index(offer);
+      else equal.addFirst(offer);
+    }
+  }
+
+  public boolean remove(Offer<E,?> offer) {
+    if (!offers.remove(offer)) return false;
+    if (index != null) {
+      Object value = value(offer);
+      ArrayDeque<Offer<E,?>> equal = index.get(value);
+      equal.remove(offer);
+      if (equal.isEmpty()) index.remove(value);
+    }
+    return true;
+  }
+
+  public int size() {
+    return offers.size();
+  }
+
+  public void matched() {
+    offers.matched();
+  }
+
+  public Iterator<Offer<E,?>> iterator() {
+    return offers.iterator();
+  }
+
+  private void index(Offer<E,?> offer) {
+    if (index == null) return;
+    Object value = value(offer);
+    try {
+      if (value instanceof Comparable<?>) {
+        index.computeIfAbsent(value,v -> new ArrayDeque<Offer<E,?>>()).add(offer);
+        return;
+      }
+    } catch (ClassCastException exc) {
+      // Not comparable with the values already indexed
+    }
+    index = null;
+  }
+
+  private static Object value(Offer<?,?> offer) {
+    return ((SendAction<?>) offer.getAction().getBasicAction()).getValue();
+  }
+
+  public String toString() {
+    return offers.toString();
+  }
+}
@@ -0,0 +1,159 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+
+/**
+ * A ShardedChannel is a synchronous channel whose offers are spread over a number
+ * of internal channels (shards), to reduce contention when many threads send and
+ * receive over the channel.
+ * <p>
+ * Every thread has a home shard. A send is offered on the home shard of the sending thread
+ * only, whereas a receive takes a sender waiting on the home shard of the receiving thread,
+ * or else one waiting on another shard (i.e., a receiver steals work from other shards
+ * when its own is empty), and is offered on all shards only if no sender is waiting.
+ * Thus, as for a SynchronousChannel, a sender and a receiver
+ * waiting on the channel always synchronize.
+ * </p>
+ * <p>
+ * A ShardedChannel can be used with the send, receive, execute and select methods
+ * of the Command class, with streams, with the Flow adapters, and by {@link Proc#monitor}.
+ * The offers of the Flow adapters and of monitors, made without a process of their own,
+ * are routed to the shards as well: a send to a shard chosen by its originating process,
+ * and a receive, which has to meet the senders of every shard, is made
+ * by a helper process on behalf of the offer (a bounded number of helpers serve
+ * all channels; a receive offer finding none free is rejected).
+ * </p>
+ */
+public class ShardedChannel<E> extends SynchronousChannel<E> {
+  private final List<SynchronousChannel<E>> shards;
+
+  /**
+   * Creates a new sharded channel with the given number of shards.
+   */
+  public ShardedChannel(int shards) {
+    this(null,shards);
+  }
+
+  /**
+   * Creates a new sharded channel with the associated nick name and the given number of shards.
+   */
+  public ShardedChannel(String nickName, int shards) {
+    super(nickName);
+    if (shards <= 0) throw new IllegalArgumentException("the number of shards must be positive");
+    this.shards = new ArrayList<SynchronousChannel<E>>(shards);
+    for (int i=0; i<shards; i++)
+      this.shards.add(new SynchronousChannel<E>(nickName == null ? null : nickName+"#"+i));
+  }
+
+  /**
+   * Returns the number of shards.
+   */
+  public int getShards() {
+    return shards.size();
+  }
+
+  private int homeShard() {
+    return (int) Math.floorMod(JMsgProcess.currentId(),(long) shards.size());
+  }
+
+  // Adds to actions the actions on the shards which replace action:
+  // a send on the home shard, or receives on all shards starting with the home shard
+  <F> void expand(Action<E,F> action, List<Action<?,F>> actions) {
+    BasicAction<E> basicAction = action.getBasicAction();
+    int home = homeShard();
+
+    if (basicAction instanceof SendAction<?>) {
+      E value = ((SendAction<E>) basicAction).getValue();
+      actions.add(new Action<E,F>(new SendAction<E>(shards.get(home),value),action.getFun()));
+    } else {
+      Predicate<E> guard = ((ReceiveAction<E>) basicAction).getGuard();
+      for (int i=0; i<shards.size(); i++) {
+        SynchronousChannel<E> shard = shards.get((home+i) % shards.size());
+        actions.add(new Action<E,F>(new ReceiveAction<E>(shard,guard),action.getFun()));
+      }
+    }
+  }
+
+  /**
+   * Closes the channel, i.e., all of its shards.
+   */
+  @Override
+  public void close() {
+    super.close();
+    for (SynchronousChannel<E> shard : shards) shard.close();
+  }
+
+  // A receive takes a sender waiting on its home shard, or else steals one waiting
+  // on another shard, probing the shards one at a time (see Command.claim); only when
+  // no sender is waiting does it wait on all shards, selecting over them
+  <F> F execute(Action<E,F> action) throws InterruptedException {
+    List<Action<?,F>> actions = new ArrayList<Action<?,F>>(shards.size());
+    expand(action,actions);
+    try {
+      if (actions.size() == 1) {
+        @SuppressWarnings("unchecked")
+        Action<E,F> shardAction = (Action<E,F>) actions.get(0);
+        return Command.executeInterruptibly(shardAction);
+      }
+      for (Action<?,F> shardAction : actions) {
+        Offer<?,F> claimed = Command.claim(shardAction);
+        if (claimed != null) return claimed.accept();
+      }
+      return Command.select(actions,Command.Preference.PRIORITY);
+    } catch (ChannelClosedException exc) {
+      throw new ChannelClosedException(this);
+    } catch (ChannelOverloadedException exc) {
+      throw new ChannelOverloadedException(this);
+    }
+  }
+
+  /**
+   * Sets the admission policy of every shard (the pending offers are bounded per shard).
+   */
+  @Override
+  public void setAdmissionPolicy(AdmissionPolicy policy) {
+    super.setAdmissionPolicy(policy);
+    for (SynchronousChannel<E> shard : shards) shard.setAdmissionPolicy(policy);
+  }
+
+  // The offers made on the channel itself (not on its shards, as the offers of
+  // execute and select are) come from parties without a process of their own,
+  // e.g., the Flow adapters. A send offer is made on the shard of its originating
+  // process, whereas a receive offer is synchronized by a helper process receiving
+  // over the channel, which passes on the outcome of its receive to the offer.
+  @Override
+  void offer(Offer<E,?> offer) {
+    if (offer.isSendOffer()) shard(offer).offer(offer);
+    else receiveFor(offer);
+  }
+
+  @Override
+  <T> void offers(ArrayList<Offer<E,T>> offers) {
+    for (Offer<E,T> offer : offers) offer(offer);
+  }
+
+  @Override
+  <T> void cancelOffer(Offer<E,T> offer) {
+    if (offer.isSendOffer()) shard(offer).cancelOffer(offer);
+    else Helpers.cancel(offer);
+  }
+
+  @Override
+  <T> void cancelOffers(ArrayList<Offer<E,T>> offers, Offer<?,?> remain) {
+    for (Offer<E,T> offer : offers)
+      if (offer != remain) cancelOffer(offer);
+  }
+
+  private SynchronousChannel<E> shard(Offer<E,?> offer) {
+    return shards.get((int) Math.floorMod(offer.getOriginatingId(),(long) shards.size()));
+  }
+
+  private void receiveFor(Offer<E,?> offer) {
+    Predicate<E> guard = ((ReceiveAction<E>) offer.getAction().getBasicAction()).getGuard();
+    Helpers.synchronize(this,offer,() -> Command.executeInterruptibly(Action.receiveWithGuard(this,guard)));
+  }
+
+}
@@ -0,0 +1,340 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A channel between the processes of several JVMs on the same machine, through
+ * a memory-mapped file. A process sending over the channel places the (encoded) value
+ * in a slot of a ring in the file, and waits until a process (of any of the JVMs)
+ * has taken it from the ring, so the send is a rendezvous as over any other channel;
+ * the slots are claimed and released with atomic operations on the mapped file,
+ * without locks or system calls.
+ * <p>
+ * As a process of another JVM cannot wake a waiting process, a waiting process
+ * polls the ring according to its wait strategy (see {@link WaitStrategy}): with SPIN,
+ * a value is handed over in well below a microsecond (if both processes have a core
+ * of their own); with PARK, the process parks for increasing periods (up to 100
+ * microseconds) between polls.
+ * </p>
+ * <p>
+ * Example (in every JVM):
+ * <pre>
+ * <code>
+ * SharedMemoryChannel&lt;Long&gt; ticks =
+ *   SharedMemoryChannel.open(Paths.get("/dev/shm/ticks"), 1024, 8, Codec.longs());
+ * </code>
+ * </pre>
+ * </p>
+ * <p>
+ * A shared memory channel supports send and receive (and execute), streams, the Flow
+ * adapters and {@link Proc#monitor}; selects, joins and receive guards are not supported,
+ * and the channel cannot be exported with a {@link ChannelServer}.
+ * Closing the channel closes it in all JVMs.
+ * The file outlives the processes; it should be removed to start afresh.
+ * </p>
+ */
+public class SharedMemoryChannel<E> extends SynchronousChannel<E> {
+  private static final int MAGIC = 0x4a4d5348;
+  private static final int VERSION = 1;
+  private static final int CLOSED = 16;
+  // The positions of the senders and the receivers, on their own cache lines
+  private static final int TAIL = 64;
+  private static final int HEAD = 128;
+  private static final int SLOTS = 192;
+  // A slot: its sequence number, its state, the length of the value, and the value
+  private static final int SEQUENCE = 0;
+  private static final int STATE = 8;
+  private static final int LENGTH = 16;
+  private static final int DATA = 24;
+  // The state of a slot holding a value, tagged with the position of the value
+  // (so that a late sender cannot withdraw a later value in the same slot)
+  private static final long FULL = 1;
+  private static final long TAKEN = 2;
+  private static final long WITHDRAWN = 3;
+  private static final int SPINS = 1000;
+  private static final int YIELDS = 100;
+  private static final long MIN_PARK_NANOS = 1000;
+  private static final long MAX_PARK_NANOS = 100000;
+
+  private static final VarHandle LONGS =
+    MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+  private static final VarHandle INTS =
+    MethodHandles.byteBufferViewVarHandle(int[].class,ByteOrder.nativeOrder());
+  // The values are copied between the slots and arrays a word at a time
+  private static final VarHandle ARRAY_LONGS =
+    MethodHandles.byteArrayViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final int slotSize;
+  private final int slotStride;
+  private final Codec<E> codec;
+  private final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+  private SharedMemoryChannel(Path path, MappedByteBuffer buffer, int capacity, int slotSize, Codec<E> codec) {
+    super(path.getFileName().toString());
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.slotSize = slotSize;
+    this.slotStride = stride(slotSize);
+    this.codec = codec;
+  }
+
+  /**
+   * Opens the channel in file path, creating it (with capacity slots, a power of two,
+   * of slotSize bytes for the encoded values) if the file does not exist.
+   * @throws IllegalArgumentException if the file holds a channel of a different capacity or slot size.
+   */
+  public static <E> SharedMemoryChannel<E> open(Path path, int capacity, int slotSize, Codec<E> codec) throws IOException {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("capacity must be a power of two: "+capacity);
+    long size = SLOTS + (long) capacity * stride(slotSize);
+    if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("channel too large");
+
+    try (FileChannel file = FileChannel.open(path,StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+         FileLock lock = file.lock()) {
+      boolean created = file.size() == 0;
+      // The header of an existing file is checked before the file is mapped
+      // (mapping a shorter file would extend it)
+      if (!created) {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+        while (header.hasRemaining() && file.read(header,header.position()) > 0);
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+          throw new IOException(path+" is not a shared memory channel");
+        if (header.getInt(8) != capacity || header.getInt(12) != slotSize)
+          throw new IllegalArgumentException(path+" holds a channel of capacity "+header.getInt(8)
+                                             +" and slot size "+header.getInt(12));
+        if (file.size() < size) throw new IOException(path+" is truncated");
+      }
+      MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE,0,size);
+      buffer.order(ByteOrder.nativeOrder());
+      if (created) {
+        buffer.putInt(4,VERSION);
+        buffer.putInt(8,capacity);
+        buffer.putInt(12,slotSize);
+        for (int i=0; i<capacity; i++)
+          buffer.putLong(SLOTS + i * stride(slotSize) + SEQUENCE,i);
+        INTS.setRelease(buffer,0,MAGIC);
+      }
+      return new SharedMemoryChannel<E>(path,buffer,capacity,slotSize,codec);
+    }
+  }
+
+  private static int stride(int slotSize) {
+    return (DATA + slotSize + 63) & ~63;
+  }
+
+  private int slot(long position) {
+    return SLOTS + (int) (position & (capacity - 1)) * slotStride;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return super.isClosed() || (int) INTS.getVolatile(buffer,CLOSED) != 0;
+  }
+
+  /**
+   * Closes the channel, in all JVMs.
+   */
+  @Override
+  public void close() {
+    INTS.setVolatile(buffer,CLOSED,1);
+    super.close();
+  }
+
+  // Called by Command for a send or receive over the channel
+  <F> F execute(Action<E,F> action) throws InterruptedException {
+    BasicAction<E> basic = action.getBasicAction();
+    E value = basic instanceof SendAction<?> ? send(((SendAction<E>) basic).getValue()) : receive();
+    return action.accept(value);
+  }
+
+  private E send(E value) throws InterruptedException {
+    Encoder encoder = encoders.get();
+    int length = encoder.encode(value);
+    Backoff backoff = new Backoff();
+    long position;
+    int slot;
+
+    // Claim the slot at the tail, waiting while the ring is full
+    while (true) {
+      if (isClosed()) throw new ChannelClosedException(this);
+      position = (long) LONGS.getVolatile(buffer,TAIL);
+      slot = slot(position);
+      long diff = (long) LONGS.getVolatile(buffer,slot + SEQUENCE) - position;
+      if (diff == 0) {
+        if (LONGS.compareAndSet(buffer,TAIL,position,position + 1)) break;
+      } else if (diff < 0) {
+        if (Thread.interrupted()) throw new InterruptedException();
+        backoff.await();
+      }
+    }
+    buffer.putInt(slot + LENGTH,length);
+    copyIn(encoder.bytes(),slot + DATA,length);
+    LONGS.setRelease(buffer,slot + STATE,(position << 2) | FULL);
+    LONGS.setRelease(buffer,slot + SEQUENCE,position + 1);
+
+    // Wait until a receiver has taken the value (the slot is then released)
+    backoff = new Backoff();
+    boolean interrupted = false;
+    while ((long) LONGS.getVolatile(buffer,slot + SEQUENCE) - (position + capacity) < 0) {
+      boolean closed = isClosed();
+      if ((closed || (!interrupted && Thread.interrupted()))) {
+        if (LONGS.compareAndSet(buffer,slot + STATE,(position << 2) | FULL,(position << 2) | WITHDRAWN)) {
+          if (closed) throw new ChannelClosedException(this);
+          throw new InterruptedException();
+        }
+        // Too late; a receiver is taking the value
+        interrupted = !closed;
+      }
+      backoff.await();
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    return value;
+  }
+
+  private E receive() throws InterruptedException {
+    Backoff backoff = new Backoff();
+    while (true) {
+      if (isClosed()) throw new ChannelClosedException(this);
+      long position = (long) LONGS.getVolatile(buffer,HEAD);
+      int slot = slot(position);
+      long diff = (long) LONGS.getVolatile(buffer,slot + SEQUENCE) - (position + 1);
+      if (diff == 0) {
+        if (LONGS.compareAndSet(buffer,HEAD,position,position + 1)) {
+          boolean taken = LONGS.compareAndSet(buffer,slot + STATE,(position << 2) | FULL,(position << 2) | TAKEN);
+          byte[] bytes = null;
+          int length = taken ? buffer.getInt(slot + LENGTH) : 0;
+          if (taken && length >= 0 && length <= slotSize) {
+            bytes = new byte[length];
+            copyOut(slot + DATA,bytes);
+          }
+          // Releases the slot (and the sender) for the next round of the ring
+          LONGS.setRelease(buffer,slot + SEQUENCE,position + capacity);
+          if (taken && bytes == null) throw new IllegalStateException(this+": corrupt slot (length "+length+")");
+          if (taken) return decode(bytes);
+          // Withdrawn by its sender; try the next slot
+        }
+      } else if (diff < 0) {
+        if (Thread.interrupted()) throw new InterruptedException();
+        backoff.await();
+      }
+    }
+  }
+
+  // The data of a slot is word aligned (see stride)
+  private void copyIn(byte[] bytes, int offset, int length) {
+    int i = 0;
+    for (; i + 8 <= length; i += 8) LONGS.set(buffer,offset + i,(long) ARRAY_LONGS.get(bytes,i));
+    for (; i < length; i++) buffer.put(offset + i,bytes[i]);
+  }
+
+  private void copyOut(int offset, byte[] bytes) {
+    int i = 0;
+    for (; i + 8 <= bytes.length; i += 8) ARRAY_LONGS.set(bytes,i,(long) LONGS.get(buffer,offset + i));
+    for (; i < bytes.length; i++) bytes[i] = buffer.get(offset + i);
+  }
+
+  private E decode(byte[] bytes) {
+    if (bytes.length == 0) return null;
+    try {
+      return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+    } catch (IOException exc) {
+      throw new IllegalStateException(this+": cannot decode value",exc);
+    }
+  }
+
+  // The offers made on the channel come from parties without a process of their own,
+  // e.g., the Flow adapters. As the ring has no room for offers, a helper process (see Helpers)
+  // sends or receives over the channel on behalf of the offer, and passes on the outcome.
+  // The offer is never locked down, so a select cannot make it (see Command.select).
+  @Override
+  void offer(Offer<E,?> offer) {
+    BasicAction<E> basic = offer.getAction().getBasicAction();
+    Helpers.synchronize(this,offer,() -> basic instanceof SendAction<?> ? send(((SendAction<E>) basic).getValue()) : receive());
+  }
+
+  @Override
+  <T> void offers(ArrayList<Offer<E,T>> offers) {
+    for (Offer<E,T> offer : offers) offer(offer);
+  }
+
+  // An interrupted send is withdrawn from the ring, unless a receiver is taking it
+  @Override
+  <T> void cancelOffer(Offer<E,T> offer) {
+    Helpers.cancel(offer);
+  }
+
+  @Override
+  <T> void cancelOffers(ArrayList<Offer<E,T>> offers, Offer<?,?> remain) {
+    for (Offer<E,T> offer : offers)
+      if (offer != remain) cancelOffer(offer);
+  }
+
+  // Encodes values into a buffer reused by the thread; an empty value stands for null
+  private class Encoder {
+    private final Bytes bytes = new Bytes();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    int encode(E value) {
+      bytes.reset();
+      if (value == null) return 0;
+      try {
+        codec.encode(value,out);
+        out.flush();
+      } catch (IOException exc) {
+        throw new IllegalArgumentException(SharedMemoryChannel.this+": cannot encode "+value,exc);
+      }
+      if (bytes.size() == 0 || bytes.size() > slotSize)
+        throw new IllegalArgumentException(SharedMemoryChannel.this+": encoded value of "+bytes.size()
+                                           +" bytes (the slots hold 1 to "+slotSize+")");
+      return bytes.size();
+    }
+
+    byte[] bytes() {
+      return bytes.array();
+    }
+  }
+
+  private static class Bytes extends ByteArrayOutputStream {
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  // Waits by polling, as a process of another JVM cannot unpark us
+  private static class Backoff {
+    private final WaitStrategy strategy = JMsgProcess.getQueue().getWaitStrategy();
+    private int waits = 0;
+    private long parkNanos = MIN_PARK_NANOS;
+
+    void await() {
+      if (strategy == WaitStrategy.SPIN || (strategy == WaitStrategy.SPIN_YIELD_PARK && waits < SPINS)) {
+        waits++;
+        Thread.onSpinWait();
+      } else if (strategy == WaitStrategy.SPIN_YIELD_PARK && waits < SPINS + YIELDS) {
+        waits++;
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(this,parkNanos);
+        parkNanos = Math.min(2 * parkNanos,MAX_PARK_NANOS);
+      }
+    }
+  }
+}
@@ -1,7 +1,15 @@
 package es.upm.babel.cclib.jmsg;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -10,25 +18,103 @@ import java.util.logging.Level;
  * A SynchronousChannel represents a communication channel for synchronizing between exactly two actions
  * (i.e., implementing binary synchronous message passing):
  * a sending action which transmits a value, and a receiveing action which receives the value.
+ * <p>
+ * A channel can be closed, after which no process can synchronize over it
+ * (see {@link #close()}).
+ * </p>
  */
 public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>> {
 
-  private volatile ArrayList<Offer<E,?>> senders;
-  private volatile ArrayList<Offer<E,?>> receivers;
+  private final MatchingStrategy strategy;
+  // The queues of a channel are created with its first offer; many channels
+  // (e.g., for a single reply) hardly ever keep offers pending
+  private volatile OfferQueue<Offer<E,?>> senders;
+  private volatile OfferQueue<Offer<E,?>> receivers;
   private volatile Offer<E,?> sendOffer;
   private volatile Offer<E,?> receiveOffer;
   private volatile boolean lockedDownSender;
   private volatile boolean lockedDownReceiver;
   private volatile boolean isIdle;
-  private long id;
-  private static volatile Long counter = 0L;
+  private volatile boolean closed;
+  private volatile Throwable closeCause;
+  private ArrayList<Runnable> closeListeners;
+  // Offers and cancellations are not made with the channel locked: they are pushed
+  // onto the inbox (a stack, lock-free), and applied in arrival order, with the channel
+  // locked, by the process which submitted the first of them while none was being
+  // applied (see submit). Every other operation on the channel applies them first.
+  private volatile Request<E> inbox = null;
+  private volatile int submitted = 0;
+  // After MAX_ROUNDS rounds of applying requests, the process applying them asks the
+  // next process submitting one to take over (see combine); the state of the handoff,
+  // and the count of requests handed over
+  private static final int MAX_ROUNDS = 8;
+  private static final int NO_HANDOFF = 0;
+  private static final int HANDOFF_REQUESTED = 1;
+  private static final int HANDOFF_TAKEN = 2;
+  private static final int HANDED_OVER = 3;
+  private volatile int handoff = NO_HANDOFF;
+  private int handedOver = 0;
+  // The offers left by ended selects since the abandoned offers were last purged,
+  // as counted by the selects (see abandoned), and how many make the select
+  // counting them trigger the next purge
+  private volatile int abandoned = 0;
+  private volatile int purgeAt = MIN_PURGE;
+  private static final int MIN_PURGE = 16;
+  // The offers pending which are not of a select; written with the channel locked,
+  // and read without locking by claim
+  private volatile int plainOffers = 0;
+  private AdmissionPolicy admission = AdmissionPolicy.unbounded();
+  // When the oldest send (receive) offer may exceed the latency target of the
+  // admission policy, so that the offers are not scanned on every arrival
+  private long shedSendersAt = Long.MIN_VALUE;
+  private long shedReceiversAt = Long.MIN_VALUE;
+  private long rejected = 0;
+  private final long id;
   private String nickName;
+  // Channel ids are taken from blocks of ids, one block per thread at a time, so that
+  // creating channels does not contend. A program creating its channels in one thread
+  // numbers them in creation order (as journals name unnamed channels by id).
+  private static final int ID_BLOCK = 1024;
+  private static final AtomicLong idBlocks = new AtomicLong();
+  private static final ThreadLocal<long[]> ids = ThreadLocal.withInitial(() -> new long[2]);
+  private static final VarHandle INBOX;
+  private static final VarHandle SUBMITTED;
+  private static final VarHandle HANDOFF;
+  private static final VarHandle ABANDONED;
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      INBOX = lookup.findVarHandle(SynchronousChannel.class,"inbox",Request.class);
+      SUBMITTED = lookup.findVarHandle(SynchronousChannel.class,"submitted",int.class);
+      HANDOFF = lookup.findVarHandle(SynchronousChannel.class,"handoff",int.class);
+      ABANDONED = lookup.findVarHandle(SynchronousChannel.class,"abandoned",int.class);
+    } catch (ReflectiveOperationException exc) {
+      throw new ExceptionInInitializerError(exc);
+    }
+  }
+  private static final OfferQueue<?> NO_OFFERS = new OfferQueue<PendingOffer>() {
+      public void add(PendingOffer offer) {
+        throw new UnsupportedOperationException();
+      }
+      public boolean remove(PendingOffer offer) {
+        return false;
+      }
+      public int size() {
+        return 0;
+      }
+      public Iterator<PendingOffer> iterator() {
+        return Collections.emptyIterator();
+      }
+      public String toString() {
+        return "[]";
+      }
+    };
   
   /**
    * Creates a new synchronous channel.
    */
   public SynchronousChannel() {
-    this(null);
+    this(null,Fairness.FIFO);
   }
 
   /**
@@ -36,17 +122,92 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
    * when printing the channel.
    */
   public SynchronousChannel(String nickName) {
-    this.senders = new ArrayList<Offer<E,?>>();
-    this.receivers = new ArrayList<Offer<E,?>>();
+    this(nickName,Fairness.FIFO);
+  }
+
+  /**
+   * Creates a new synchronous channel which chooses between matching offers
+   * according to the fairness policy.
+   */
+  public SynchronousChannel(Fairness fairness) {
+    this(null,fairness);
+  }
+
+  /**
+   * Creates a new synchronous channel with the associated nick name, which chooses between
+   * matching offers according to the fairness policy.
+   */
+  public SynchronousChannel(String nickName, Fairness fairness) {
+    this(nickName,MatchingStrategy.of(fairness));
+  }
+
+  /**
+   * Creates a new synchronous channel which keeps its pending offers, and chooses
+   * between matching offers, according to the matching strategy.
+   */
+  public SynchronousChannel(MatchingStrategy strategy) {
+    this(null,strategy);
+  }
+
+  /**
+   * Creates a new synchronous channel with the associated nick name, which keeps its
+   * pending offers, and chooses between matching offers, according to the matching strategy.
+   */
+  public SynchronousChannel(String nickName, MatchingStrategy strategy) {
+    this.strategy = strategy;
+    this.senders = noOffers();
+    this.receivers = noOffers();
     this.lockedDownSender = false;
     this.lockedDownReceiver = false;
     this.isIdle = true;
+    this.closed = false;
     this.nickName = nickName;
-    synchronized (counter) {
-      id = counter++;
+    this.id = newId();
+    ChannelRegistry.register(this);
+  }
+
+  private static long newId() {
+    long[] block = ids.get();
+    if (block[0] == block[1]) {
+      block[0] = idBlocks.getAndAdd(ID_BLOCK);
+      block[1] = block[0] + ID_BLOCK;
+    }
+    return block[0]++;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> OfferQueue<Offer<E,?>> noOffers() {
+    return (OfferQueue<Offer<E,?>>) NO_OFFERS;
+  }
+
+  // The queue of the offer, created on demand
+  private OfferQueue<Offer<E,?>> queue(Offer<E,?> offer) {
+    if (offer.isSendOffer()) {
+      if (senders == NO_OFFERS) senders = strategy.newQueue(true);
+      return senders;
+    } else {
+      if (receivers == NO_OFFERS) receivers = strategy.newQueue(false);
+      return receivers;
     }
   }
 
+  private void add(Offer<E,?> offer) {
+    queue(offer).add(offer);
+    if (!offer.originatesFromSelect()) plainOffers++;
+  }
+
+  // Adds back an offer removed for a synchronization attempt which failed
+  private void retry(Offer<E,?> offer) {
+    queue(offer).retry(offer);
+    if (!offer.originatesFromSelect()) plainOffers++;
+  }
+
+  private boolean remove(Offer<E,?> offer) {
+    boolean removed = offer.isSendOffer() ? senders.remove(offer) : receivers.remove(offer);
+    if (removed && !offer.originatesFromSelect()) plainOffers--;
+    return removed;
+  }
+
   public int compareTo(SynchronousChannel<E> other) {
     long otherId = other.getId();
     if (id < otherId) return -1;
@@ -54,43 +215,435 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
     else return 0;
   }
 
+  /**
+   * Returns an (infinite) stream of the values received over the channel
+   * (see {@link Channels#receiveStream(SynchronousChannel)}).
+   */
+  public Stream<E> stream() {
+    return Channels.receiveStream(this);
+  }
+
   long getId() {
     return id;
   }
 
-  synchronized void offer(Offer<E,?> offer) {
+  /**
+   * Closes the channel. Every process waiting to synchronize over the channel
+   * is woken: a send, receive or execute throws a {@link ChannelClosedException},
+   * whereas a select no longer considers its actions over the channel (and throws
+   * the exception only if all of its channels are closed). Later attempts to synchronize over
+   * the channel fail immediately in the same way. Closing a closed channel has no effect.
+   */
+  public void close() {
+    ArrayList<Offer<E,?>> pending;
+    ArrayList<Runnable> listeners;
+
+    // The offers are drained at once, and the processes woken outside the lock
+    synchronized (this) {
+      applyRequests();
+      if (closed) return;
+      if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+        JMsgProcess.getLogger().log(Level.FINE,this+": close senders="+senders+" receivers="+receivers);
+      closed = true;
+      pending = new ArrayList<Offer<E,?>>(senders.size() + receivers.size() + 2);
+      for (Offer<E,?> offer : senders) if (!offer.isAbandoned()) pending.add(offer);
+      for (Offer<E,?> offer : receivers) if (!offer.isAbandoned()) pending.add(offer);
+      if (!isIdle) {
+        pending.add(sendOffer);
+        pending.add(receiveOffer);
+        isIdle = true;
+      }
+      sendOffer = null;
+      receiveOffer = null;
+      senders = noOffers();
+      receivers = noOffers();
+      plainOffers = 0;
+      listeners = closeListeners;
+      closeListeners = null;
+    }
+
+    for (Offer<E,?> offer : pending)
+      offer.deliver(this,ClosedMessage.newClosedMessage(offer));
+    if (listeners != null)
+      for (Runnable listener : listeners) listener.run();
+  }
+
+  /**
+   * Closes the channel because of cause (e.g., the failure of the party sending
+   * over it), as close. The {@link ChannelClosedException} thrown to the
+   * processes synchronizing over the channel has cause as its cause.
+   * Closing a closed channel has no effect.
+   */
+  public void close(Throwable cause) {
+    synchronized (this) {
+      if (closed) return;
+      if (closeCause == null) closeCause = cause;
+    }
+    close();
+  }
+
+  /**
+   * Returns the cause the channel was closed with, or null.
+   */
+  public Throwable getCloseCause() {
+    return closeCause;
+  }
+
+  /**
+   * Sets the admission policy of the channel, which bounds its pending offers
+   * (see {@link AdmissionPolicy}). The offers already pending are left alone;
+   * the policy applies from the next offer on.
+   */
+  public synchronized void setAdmissionPolicy(AdmissionPolicy policy) {
+    if (policy == null) throw new NullPointerException();
+    admission = policy;
+    shedSendersAt = Long.MIN_VALUE;
+    shedReceiversAt = Long.MIN_VALUE;
+  }
+
+  public synchronized AdmissionPolicy getAdmissionPolicy() {
+    return admission;
+  }
+
+  /**
+   * Returns true if the channel has been closed.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns a snapshot of the state of the channel: its pending offers and the
+   * synchronization attempt in progress (see {@link ChannelStats}). The state is copied
+   * while holding the channel lock, which is held only for the copy, so the snapshot
+   * is consistent, and cheap enough to be taken periodically on a running program.
+   */
+  public ChannelStats snapshot() {
+    long[] senderIds;
+    long[] receiverIds;
+    long oldest = 0;
+    boolean lockDown;
+    long lockDownSender = 0;
+    long lockDownReceiver = 0;
+    boolean isClosed;
+    long now;
+    long rejected;
+
+    synchronized (this) {
+      applyRequests();
+      now = System.nanoTime();
+      isClosed = closed;
+      rejected = this.rejected;
+      // Abandoned offers (see purge) are not pending
+      senderIds = new long[senders.size()];
+      int i = 0;
+      for (Offer<E,?> offer : senders) {
+        if (offer.isAbandoned()) continue;
+        senderIds[i++] = offer.getOriginatingId();
+        oldest = older(oldest,offer);
+      }
+      senderIds = Arrays.copyOf(senderIds,i);
+      receiverIds = new long[receivers.size()];
+      i = 0;
+      for (Offer<E,?> offer : receivers) {
+        if (offer.isAbandoned()) continue;
+        receiverIds[i++] = offer.getOriginatingId();
+        oldest = older(oldest,offer);
+      }
+      receiverIds = Arrays.copyOf(receiverIds,i);
+      lockDown = !isIdle;
+      if (lockDown) {
+        lockDownSender = sendOffer.getOriginatingId();
+        lockDownReceiver = receiveOffer.getOriginatingId();
+        oldest = older(older(oldest,sendOffer),receiveOffer);
+      }
+    }
+
+    return new ChannelStats(toString(),id,now,isClosed,senderIds,receiverIds,oldest,
+                            lockDown,lockDownSender,lockDownReceiver,rejected);
+  }
+
+  private static long older(long oldest, Offer<?,?> offer) {
+    long created = offer.getCreatedNanos();
+    return oldest == 0 || created - oldest < 0 ? created : oldest;
+  }
+
+  // Runs listener when the channel is closed (at once if it is closed already)
+  void addCloseListener(Runnable listener) {
+    synchronized (this) {
+      if (!closed) {
+        if (closeListeners == null) closeListeners = new ArrayList<Runnable>();
+        closeListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  synchronized void removeCloseListener(Runnable listener) {
+    if (closeListeners != null) closeListeners.remove(listener);
+  }
+
+  // A request pushed onto the inbox of the channel: an offer, the offers of a
+  // select, a cancellation, or a purge of the abandoned offers
+  private static final class Request<E> {
+    static final int OFFER = 0;
+    static final int OFFERS = 1;
+    static final int CANCEL = 2;
+    static final int CANCEL_OFFERS = 3;
+    static final int PURGE = 4;
+
+    final int kind;
+    final Offer<E,?> offer;
+    final ArrayList<? extends Offer<E,?>> offers;
+    final Offer<?,?> remain;
+    Request<E> next;
+
+    Request(int kind, Offer<E,?> offer, ArrayList<? extends Offer<E,?>> offers, Offer<?,?> remain) {
+      this.kind = kind;
+      this.offer = offer;
+      this.offers = offers;
+      this.remain = remain;
+    }
+  }
+
+  void offer(Offer<E,?> offer) {
+    submit(new Request<E>(Request.OFFER,offer,null,null));
+  }
+
+  <T> void offers(ArrayList<Offer<E,T>> offers) {
+    submit(new Request<E>(Request.OFFERS,null,offers,null));
+  }
+
+  <T> void cancelOffer(Offer<E,T> offer) {
+    submit(new Request<E>(Request.CANCEL,offer,null,null));
+  }
+
+  <T> void cancelOffers(ArrayList<Offer<E,T>> offers, Offer<?,?> remain) {
+    submit(new Request<E>(Request.CANCEL_OFFERS,null,offers,remain));
+  }
+
+  // Pushes the request onto the inbox. The process finding no request being
+  // applied locks the channel and applies the requests, including those pushed
+  // meanwhile by other processes, which do not wait for the lock; unless asked
+  // to take over from the process applying them (see combine).
+  private void submit(Request<E> request) {
+    Request<E> head;
+    do {
+      head = inbox;
+      request.next = head;
+    } while (!INBOX.compareAndSet(this,head,request));
+    if ((int) SUBMITTED.getAndAdd(this,1) == 0) combine(1);
+    else if (handoff == HANDOFF_REQUESTED && !Thread.holdsLock(this)
+             && HANDOFF.compareAndSet(this,HANDOFF_REQUESTED,HANDOFF_TAKEN)) {
+      // Waits for the end of the round of the process applying the requests
+      while (handoff != HANDED_OVER) Thread.yield();
+      int missed = handedOver;
+      handoff = NO_HANDOFF;
+      combine(missed);
+    }
+  }
+
+  // Applies the requests until none is left, missed being those counted and not yet
+  // applied. Under contention new requests may keep arriving, so after MAX_ROUNDS
+  // rounds the next process submitting one is asked to take over, and this process
+  // leaves at the end of its round. The request is withdrawn before the count of
+  // requests drops to zero, so that no process waits for a handoff which never comes.
+  private void combine(int missed) {
+    for (int rounds = 1; ; rounds++) {
+      synchronized (this) {
+        applyRequests();
+      }
+      if (rounds < MAX_ROUNDS) {
+        missed = (int) SUBMITTED.getAndAdd(this,-missed) - missed;
+        if (missed == 0) return;
+        continue;
+      }
+      if (handoff == HANDOFF_TAKEN) {
+        handOver(missed);
+        return;
+      }
+      HANDOFF.compareAndSet(this,NO_HANDOFF,HANDOFF_REQUESTED);
+      int count;
+      do {
+        count = submitted;
+        if (count == missed && !HANDOFF.compareAndSet(this,HANDOFF_REQUESTED,NO_HANDOFF)
+            && handoff == HANDOFF_TAKEN) {
+          handOver(missed);
+          return;
+        }
+      } while (!SUBMITTED.compareAndSet(this,count,count - missed));
+      missed = count - missed;
+      if (missed == 0) return;
+    }
+  }
+
+  private void handOver(int missed) {
+    handedOver = missed;
+    handoff = HANDED_OVER;
+  }
+
+  // Applies the requests in the inbox, oldest first. Called with the channel locked.
+  private void applyRequests() {
+    @SuppressWarnings("unchecked")
+    Request<E> request = (Request<E>) INBOX.getAndSet(this,null);
+    if (request == null) return;
+    Request<E> first = null;
+    while (request != null) {
+      Request<E> next = request.next;
+      request.next = first;
+      first = request;
+      request = next;
+    }
+    for (request = first; request != null; request = request.next) {
+      switch (request.kind) {
+      case Request.OFFER:
+        register(request.offer);
+        break;
+      case Request.OFFERS:
+        register(request.offers);
+        break;
+      case Request.CANCEL:
+        if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+          JMsgProcess.getLogger().log(Level.FINE,this+": "+"cancelOffer("+request.offer+")");
+        if (doCancelOffer(request.offer))
+          checkMatchingOffers();
+        break;
+      case Request.CANCEL_OFFERS:
+        cancel(request.offers,request.remain);
+        break;
+      default:
+        break;
+      }
+    }
+    if (abandoned >= purgeAt) purge();
+  }
+
+  private void register(Offer<E,?> offer) {
     if (JMsgProcess.getLogger().isLoggable(Level.FINE))
       JMsgProcess.getLogger().log(Level.FINE,this+": offer "+offer);
-    if (offer.isSendOffer()) 
-      senders.add(offer);
-    else
-      receivers.add(offer);
-    if (isIdle) checkMatchingOffers();
+    // The select of the offer may have ended before the offer got here
+    if (offer.isAbandoned()) return;
+    if (closed) {
+      offer.deliver(this,ClosedMessage.newClosedMessage(offer));
+      return;
+    }
+    if (!admit(offer)) {
+      reject(offer);
+      return;
+    }
+    add(offer);
+    if (isIdle && !checkRangeGuard(offer)) checkMatchingOffers();
+    if (!offer.originatesFromSelect()) purgeIfDue();
   }
   
-  synchronized <T> void offers(ArrayList<Offer<E,T>> offers) {
+  // Synchronizes the offer of a select, before it is made, with the offer the
+  // channel would pair it with, if that offer is waiting and is not of a select
+  // (so that no lock down is needed): both offers are committed at once, and the
+  // select makes none of its other offers. Returns false, leaving the channel
+  // unchanged, if the offer would have to wait, or to go through a lock down.
+  // A range guarded receive is left to the index of the senders (see checkRangeGuard).
+  boolean claim(Offer<E,?> offer) {
+    // Most channels probed have no plain offer waiting; they are not locked
+    return plainOffers > 0 && doClaim(offer);
+  }
+
+  private synchronized boolean doClaim(Offer<E,?> offer) {
+    applyRequests();
+    if (closed || !isIdle || Journal.replaying != null || isRangeGuarded(offer)) return false;
+    // As the channel is idle no pending pair matches, so the offer would be paired with
+    // the first offer it matches, in the order of the queue
+    OfferQueue<Offer<E,?>> others = offer.isSendOffer() ? receivers : senders;
+    for (Offer<E,?> other : others) {
+      if (other.isAbandoned()) continue;
+      Offer<E,?> sendOffer = offer.isSendOffer() ? offer : other;
+      Offer<E,?> receiveOffer = offer.isSendOffer() ? other : offer;
+      if (!matches(sendOffer,receiveOffer)) continue;
+      if (other.originatesFromSelect()) return false;
+      if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+        JMsgProcess.getLogger().log(Level.FINE,this+": "+offer+" claims "+other);
+      remove(other);
+      commitToOffers(sendOffer,receiveOffer);
+      senders.matched();
+      receivers.matched();
+      purgeIfDue();
+      return true;
+    }
+    return false;
+  }
+
+  private void register(ArrayList<? extends Offer<E,?>> offers) {
     if (JMsgProcess.getLogger().isLoggable(Level.FINE))
       JMsgProcess.getLogger().log(Level.FINE,this+": offers "+offers+" isIdle="+isIdle+" senders="+senders+" receivers="+receivers);
-    for (Offer<E,T> offer : offers) {
-      if (offer.isSendOffer()) 
-	senders.add(offer);
-      else
-	receivers.add(offer);
+    if (closed) {
+      for (Offer<E,?> offer : offers)
+        if (!offer.isAbandoned()) offer.deliver(this,ClosedMessage.newClosedMessage(offer));
+      return;
+    }
+    boolean rangeGuards = true;
+    // The offers added, if not all of them
+    ArrayList<Offer<E,?>> added = null;
+    for (int i=0; i<offers.size(); i++) {
+      Offer<E,?> offer = offers.get(i);
+      boolean dropped = offer.isAbandoned();
+      if (!dropped && !admit(offer)) {
+        reject(offer);
+        dropped = true;
+      }
+      if (dropped) {
+        if (added == null) added = new ArrayList<Offer<E,?>>(offers.subList(0,i));
+        continue;
+      }
+      if (added != null) added.add(offer);
+      add(offer);
+      rangeGuards = rangeGuards && isRangeGuarded(offer);
+    }
+    if (isIdle) {
+      if (rangeGuards) {
+        for (Offer<E,?> offer : added != null ? added : offers) {
+          if (!isIdle) break;
+          // The senders cannot be indexed; every pair has to be checked
+          if (!checkRangeGuard(offer)) {
+            checkMatchingOffers();
+            break;
+          }
+        }
+      } else checkMatchingOffers();
     }
-    if (isIdle) checkMatchingOffers();
   }
   
   synchronized void acceptLockDown(Offer<E,?> offer) {
     if (JMsgProcess.getLogger().isLoggable(Level.FINE))
       JMsgProcess.getLogger().log(Level.FINE,this+": "+"acceptLockDown("+offer+")"); 
+    applyRequests();
+
+    // The synchronization attempt has been abandoned (the offer has been,
+    // or is being, informed of the abort or the closing)
+    if (closed || isIdle) return;
 
     if (sendOffer == offer)
       lockedDownSender = true;
     else if (receiveOffer == offer)
       lockedDownReceiver = true;
     
-    if (lockedDownSender && lockedDownReceiver)
+    if (lockedDownSender && lockedDownReceiver) {
       commitToOffers(sendOffer, receiveOffer);
+      // Offers may have arrived while we were synchronizing
+      checkMatchingOffers();
+      purgeIfDue();
+    } else if (offer == sendOffer && receiveOffer.isJoin()) {
+      // The join may now count on the sender
+      receiveOffer.deliver(this,LockDownMessage.newLockDownMessage(receiveOffer));
+    } else if (offer == receiveOffer && sendOffer.isJoin()) {
+      sendOffer.deliver(this,LockDownMessage.newLockDownMessage(sendOffer));
+    }
+  }
+
+  // Returns true if the join offer is synchronizing, and the other offer has locked down,
+  // so that accepting the lock down commits the synchronization. Called with the channel locked.
+  boolean isReadyToJoin(Offer<?,?> offer) {
+    return !closed && !isIdle
+      && ((offer == sendOffer && lockedDownReceiver) || (offer == receiveOffer && lockedDownSender));
   }
 
   private synchronized boolean doCancelOffer(Offer<E,?> offer) {
@@ -102,15 +655,15 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
       if (offer == sendOffer) {
         isIdle = true;
         if (receiveOffer.originatesFromSelect()) {
-          JMsgProcess.send(this,receiveOffer.getOriginatingId(), AbortMessage.newAbortMessage(receiveOffer));
-        } else receivers.add(receiveOffer);
+          receiveOffer.deliver(this,AbortMessage.newAbortMessage(receiveOffer));
+        } else retry(receiveOffer);
         removeOffer = false;
         reCheckMatch = true;
       } else if (offer == receiveOffer) {
         isIdle = true;
         if (sendOffer.originatesFromSelect()) {
-          JMsgProcess.send(this,sendOffer.getOriginatingId(), AbortMessage.newAbortMessage(sendOffer));
-        } else senders.add(sendOffer);
+          sendOffer.deliver(this,AbortMessage.newAbortMessage(sendOffer));
+        } else retry(sendOffer);
         removeOffer = false;
 	reCheckMatch = true;
       } 
@@ -119,27 +672,32 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
     if (removeOffer) {
       if (JMsgProcess.getLogger().isLoggable(Level.FINE))
         JMsgProcess.getLogger().log(Level.FINE,this+": removing "+offer);
-      if (offer.isSendOffer())
-        senders.remove(offer);
-      else
-        receivers.remove(offer);
+      remove(offer);
     }
     return reCheckMatch;
   }
 
-  synchronized <T> void cancelOffer(Offer<E,T> offer) {
+  // Withdraws the offer of an interrupted process, also when the offer is part of
+  // a synchronization attempt. Returns false if the offer is no longer pending,
+  // i.e., it has been committed or aborted, or the channel has been closed.
+  synchronized boolean withdrawOffer(Offer<E,?> offer) {
     if (JMsgProcess.getLogger().isLoggable(Level.FINE))
-      JMsgProcess.getLogger().log(Level.FINE,this+": "+"cancelOffer("+offer+")");
-    if (doCancelOffer(offer))
-      checkMatchingOffers();
+      JMsgProcess.getLogger().log(Level.FINE,this+": "+"withdrawOffer("+offer+")");
+    applyRequests();
+    if (!isIdle && (offer == sendOffer || offer == receiveOffer)) {
+      if (doCancelOffer(offer))
+        checkMatchingOffers();
+      return true;
+    }
+    return remove(offer);
   }
 
-  synchronized <T> void cancelOffers(ArrayList<Offer<E,T>> offers, Offer<?,?> remain) {
+  private void cancel(ArrayList<? extends Offer<E,?>> offers, Offer<?,?> remain) {
     if (JMsgProcess.getLogger().isLoggable(Level.FINE))
       JMsgProcess.getLogger().log(Level.FINE,this+": "+"cancelOffers("+offers+") remain="+remain+" senders="+senders+" receivers="+receivers);
 
     boolean checkMatchingOffers = false;
-    for (Offer<E,T> offer : offers) {
+    for (Offer<E,?> offer : offers) {
       if (offer != remain)
 	checkMatchingOffers = checkMatchingOffers || doCancelOffer(offer);
     }
@@ -151,67 +709,229 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
       checkMatchingOffers();
   }
    
+  // Counts the offers a select left on the channel when it ended (see SelectState).
+  // Once the selects have left enough offers since the last purge, as many as the
+  // offers left then, the select leaving the last of them has them purged; so a
+  // channel hardly used any more keeps few abandoned offers.
+  void abandoned(int count) {
+    if ((int) ABANDONED.getAndAdd(this,count) + count >= purgeAt)
+      submit(new Request<E>(Request.PURGE,null,null,null));
+  }
+
+  // The offers of a select are not cancelled when the select synchronizes over another
+  // channel (see SelectState), so they are dropped once they may be as many as the
+  // other offers, so that purging costs a constant time per offer: when a plain offer
+  // arrives or a pair matches, or when the selects ask for it (see abandoned).
+  // Called with the channel locked.
+  private void purgeIfDue() {
+    int count = abandoned;
+    if (count > 0 && (count >= purgeAt || 2*count >= senders.size()+receivers.size())) purge();
+  }
+
+  private void purge() {
+    int count = abandoned;
+    senders.purge(PendingOffer::isAbandoned);
+    receivers.purge(PendingOffer::isAbandoned);
+    // The offers counted meanwhile may not have been purged
+    ABANDONED.getAndAdd(this,-count);
+    purgeAt = Math.max(MIN_PURGE,senders.size()+receivers.size());
+  }
+
+  // Applies the admission policy to an offer about to be added, rejecting the
+  // pending offers the policy sheds. Returns false if the offer itself is rejected.
+  private boolean admit(Offer<E,?> offer) {
+    AdmissionPolicy policy = admission;
+    switch (policy.getMode()) {
+    case UNBOUNDED:
+      return true;
+    case LATENCY_TARGET:
+      shed(offer,policy.getTargetNanos());
+      return true;
+    default:
+      OfferQueue<Offer<E,?>> queue = offer.isSendOffer() ? senders : receivers;
+      if (queue.size() < policy.getMaxPending()) return true;
+      // The abandoned offers of selects are not pending
+      purge();
+      if (queue.size() < policy.getMaxPending()) return true;
+      if (policy.getMode() == AdmissionPolicy.Mode.REJECT_NEWEST) return false;
+      while (queue.size() >= policy.getMaxPending()) reject(oldest(queue));
+      return true;
+    }
+  }
+
+  // Rejects the offers of the kind of offer pending for longer than targetNanos.
+  // The offers are only scanned once the oldest of them may have exceeded the target.
+  private void shed(Offer<E,?> offer, long targetNanos) {
+    boolean sends = offer.isSendOffer();
+    long now = System.nanoTime();
+    long shedAt = sends ? shedSendersAt : shedReceiversAt;
+    if (now >= shedAt) {
+      ArrayList<Offer<E,?>> expired = new ArrayList<Offer<E,?>>();
+      shedAt = Long.MAX_VALUE;
+      for (Offer<E,?> pending : sends ? senders : receivers) {
+        if (pending.isAbandoned()) continue;
+        long deadline = pending.getCreatedNanos() + targetNanos;
+        if (now >= deadline) expired.add(pending);
+        else shedAt = Math.min(shedAt,deadline);
+      }
+      for (Offer<E,?> pending : expired) reject(pending);
+    }
+    shedAt = Math.min(shedAt,offer.getCreatedNanos() + targetNanos);
+    if (sends) shedSendersAt = shedAt;
+    else shedReceiversAt = shedAt;
+  }
+
+  private static <E> Offer<E,?> oldest(OfferQueue<Offer<E,?>> queue) {
+    Offer<E,?> oldest = null;
+    for (Offer<E,?> offer : queue)
+      if (oldest == null || offer.getCreatedNanos() - oldest.getCreatedNanos() < 0) oldest = offer;
+    return oldest;
+  }
+
+  // Tells the process of an offer (unless its select has ended) that the channel
+  // rejected it, removing it if it is pending
+  private void reject(Offer<E,?> offer) {
+    if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+      JMsgProcess.getLogger().log(Level.FINE,this+": rejecting "+offer+" ("+admission+")");
+    remove(offer);
+    rejected++;
+    if (!offer.isAbandoned()) offer.deliver(this,RejectedMessage.newRejectedMessage(offer));
+  }
+
+  // False if the processes of the offers are told when a select abandons them,
+  // so that the offers are not purged lazily (see RemoteChannel)
+  boolean purgesAbandonedOffers() {
+    return true;
+  }
+
+  // True if a receive offer is pending or synchronizing, but for the offers
+  // of ended selects (see TimerChannel)
+  synchronized boolean hasReceivers() {
+    applyRequests();
+    if (!isIdle) return true;
+    for (Offer<E,?> offer : receivers)
+      if (!offer.isAbandoned()) return true;
+    return false;
+  }
+
+  // Checks whether offers which did not match before (see JournalReplay) match now
+  synchronized void recheckOffers() {
+    applyRequests();
+    if (!closed && isIdle) checkMatchingOffers();
+  }
+
   private void checkMatchingOffers() {
-    int sendersSize = senders.size();
-    int receiversSize = receivers.size();
-    boolean found = false;
-    
-    if (sendersSize > 0 && receiversSize > 0) {
-      for (int senderIndex = 0; senderIndex < sendersSize && !found; senderIndex++) {
-        for (int receiverIndex = 0; receiverIndex < receiversSize && !found; receiverIndex++) {
-          found = checkMatchingOffer(senderIndex,receiverIndex);
+    boolean found;
+
+    // Several pairs may match after offers arrived while we were not idle.
+    // The pairs are tried in the order of the queues (see MatchingStrategy);
+    // the iteration stops as soon as a pair matches, as the queues are then modified.
+    do {
+      found = false;
+
+      if (senders.size() > 0 && receivers.size() > 0) {
+        for (Offer<E,?> sendOffer : senders) {
+          for (Offer<E,?> receiveOffer : receivers) {
+            if (checkMatchingOffer(sendOffer,receiveOffer)) {
+              found = true;
+              break;
+            }
+          }
+          if (found) break;
+        }
+        if (found) {
+          senders.matched();
+          receivers.matched();
+          purgeIfDue();
         }
       }
-    }
+    } while (found && isIdle);
   }
 
-  private boolean checkMatchingOffer(int sendIndex, int receiveIndex) {
-    Offer<E,?> sendOffer = senders.get(sendIndex);
-    Offer<E,?> receiveOffer = receivers.get(receiveIndex);
-    
-    if (sendOffer.getOriginatingId() != receiveOffer.getOriginatingId()) {
-      
-      @SuppressWarnings("unchecked")
-        ReceiveAction<E> ra = (ReceiveAction) receiveOffer.getAction().getBasicAction();
-      @SuppressWarnings("unchecked")
-        SendAction<E> sa = (SendAction) sendOffer.getAction().getBasicAction();
-
-      Predicate<E> guard = ra.getGuard();
-      E value = sa.getValue();
-
-      if (guard == null || guard.test(value)) {
-        senders.remove(sendIndex);
-        receivers.remove(receiveIndex);
-
-        // This could work; lets see if we have to lockdown the involved processes
-        if (!receiveOffer.originatesFromSelect() && !sendOffer.originatesFromSelect()) {
-          commitToOffers(sendOffer, receiveOffer);
+  private static boolean isRangeGuarded(Offer<?,?> offer) {
+    return !offer.isSendOffer()
+      && ((ReceiveAction<?>) offer.getAction().getBasicAction()).getGuard() instanceof RangeGuard<?>;
+  }
+
+  // A new receive offer with a range guard (see Guards) is matched by looking up
+  // the senders in its range in the index of the send offers. As no pending pair
+  // matched when the channel became idle, only the new offer needs to be checked.
+  // Returns false if the offer has no range guard, or the senders cannot be indexed;
+  // then every pair has to be checked.
+  private boolean checkRangeGuard(Offer<E,?> receiveOffer) {
+    if (!isRangeGuarded(receiveOffer)) return false;
+    SendIndex<E> index;
+    if (senders instanceof SendIndex<?>) index = (SendIndex<E>) senders;
+    else {
+      if (senders == NO_OFFERS) senders = strategy.newQueue(true);
+      senders = index = new SendIndex<E>(senders);
+    }
+    if (!index.isUsable()) return false;
+
+    RangeGuard<?> guard = (RangeGuard<?>) ((ReceiveAction<?>) receiveOffer.getAction().getBasicAction()).getGuard();
+    for (ArrayDeque<Offer<E,?>> equal : index.inRange(guard)) {
+      for (Offer<E,?> sendOffer : equal) {
+        if (checkMatchingOffer(sendOffer,receiveOffer)) {
+          senders.matched();
+          receivers.matched();
           return true;
-        } else {
-
-	  // We have to the protocol dance
-	  isIdle = false;
-	  this.sendOffer = sendOffer;
-	  this.receiveOffer = receiveOffer;
-
-	  if (JMsgProcess.getLogger().isLoggable(Level.FINE))
-	    JMsgProcess.getLogger().log(Level.FINE,this+": will try to synch "+sendOffer+" and "+receiveOffer);
-                
-	  if (sendOffer.originatesFromSelect()) {
-	    lockedDownSender = false;
-	    JMsgProcess.send(this,sendOffer.getOriginatingId(), LockDownMessage.newLockDownMessage(sendOffer));
-	  } else lockedDownSender = true;
-
-	  if (receiveOffer.originatesFromSelect()) {
-	    JMsgProcess.send(this,receiveOffer.getOriginatingId(), LockDownMessage.newLockDownMessage(receiveOffer));
-	    lockedDownReceiver = false;
-	  } else lockedDownReceiver = true;
-	}
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean checkMatchingOffer(Offer<E,?> sendOffer, Offer<E,?> receiveOffer) {
+    JournalReplay replay = Journal.replaying;
+    if (replay != null && !replay.allows(this,sendOffer,receiveOffer)) return false;
+
+    // Two joins cannot wait for each other to lock down
+    if (sendOffer.isJoin() && receiveOffer.isJoin()) return false;
+
+    if (matches(sendOffer,receiveOffer)) {
+      // This could work; lets see if we have to lockdown the involved processes
+      if (!receiveOffer.originatesFromSelect() && !sendOffer.originatesFromSelect()) {
+        remove(sendOffer);
+        remove(receiveOffer);
+        commitToOffers(sendOffer, receiveOffer);
         return true;
-      } else return false;
+      } else {
+        // The select of an offer may have ended; the offer is purged later
+        if (!sendOffer.contact() || !receiveOffer.contact()) return false;
+        remove(sendOffer);
+        remove(receiveOffer);
+
+        // We have to the protocol dance
+        isIdle = false;
+        this.sendOffer = sendOffer;
+        this.receiveOffer = receiveOffer;
+
+        if (JMsgProcess.getLogger().isLoggable(Level.FINE))
+          JMsgProcess.getLogger().log(Level.FINE,this+": will try to synch "+sendOffer+" and "+receiveOffer);
+
+        // A join is only informed once the other offer has locked down (see acceptLockDown)
+        lockedDownSender = !sendOffer.originatesFromSelect();
+        lockedDownReceiver = !receiveOffer.originatesFromSelect();
+        if (sendOffer.originatesFromSelect() && (!sendOffer.isJoin() || lockedDownReceiver))
+          sendOffer.deliver(this,LockDownMessage.newLockDownMessage(sendOffer));
+        if (receiveOffer.originatesFromSelect() && (!receiveOffer.isJoin() || lockedDownSender))
+          receiveOffer.deliver(this,LockDownMessage.newLockDownMessage(receiveOffer));
+      }
+      return true;
     } else return false;
   }
 
+  // True if the offers are from different processes, and the guard of the receive accepts the value
+  private static <E> boolean matches(Offer<E,?> sendOffer, Offer<E,?> receiveOffer) {
+    if (sendOffer.getOriginatingId() == receiveOffer.getOriginatingId()) return false;
+    @SuppressWarnings("unchecked")
+      ReceiveAction<E> ra = (ReceiveAction) receiveOffer.getAction().getBasicAction();
+    @SuppressWarnings("unchecked")
+      SendAction<E> sa = (SendAction) sendOffer.getAction().getBasicAction();
+    Predicate<E> guard = ra.getGuard();
+    return guard == null || guard.test(sa.getValue());
+  }
+
   private void commitToOffers(Offer<E,?> sendOffer, Offer<E,?> receiveOffer) {
     E value = null;
     BasicAction<E> action = sendOffer.getAction().getBasicAction();
@@ -220,12 +940,22 @@ public class SynchronousChannel<E> implements Comparable<SynchronousChannel<E>>
     }
     sendOffer.setResolvedValue(value);
     receiveOffer.setResolvedValue(value);
+    committed(value,receiveOffer.getOriginatingId());
+    Journal journal = Journal.recording;
+    if (journal != null) journal.committed(this,sendOffer,receiveOffer,value);
+    JournalReplay replay = Journal.replaying;
+    if (replay != null) replay.committed(this,value);
 
-    JMsgProcess.send(this,sendOffer.getOriginatingId(), CommitMessage.newCommitMessage(sendOffer));
-    JMsgProcess.send(this,receiveOffer.getOriginatingId(), CommitMessage.newCommitMessage(receiveOffer));
+    sendOffer.deliver(this,CommitMessage.newCommitMessage(sendOffer));
+    receiveOffer.deliver(this,CommitMessage.newCommitMessage(receiveOffer));
     isIdle = true;
   }
 
+  // Called (with the channel locked) when value is passed to the process receiverId,
+  // before the processes are informed
+  void committed(E value, long receiverId) {
+  }
+
   public String toString() {
     if (nickName != null)
       return nickName;
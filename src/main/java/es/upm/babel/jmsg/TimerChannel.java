@@ -0,0 +1,129 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+
+
+// A channel over which the timing wheel sends the current time when a timer
+// expires: once (after), or periodically (ticker). The send is an async offer,
+// so an expired timer waits on the channel, without a thread, until some
+// process receives from it; a ticker drops the ticks which would find the
+// previous tick still waiting. Closing the channel cancels the timer.
+//
+// The timer of an after channel only runs while a process waits to receive
+// from the channel: it is scheduled by the first receive offer, and cancelled
+// when the last receive offer is cancelled, withdrawn or abandoned by its select
+// (e.g., a select whose timeout did not fire). A later receive schedules it
+// again, for the same deadline, so the channel still sends its value once
+// the delay has elapsed.
+class TimerChannel extends SynchronousChannel<Instant> {
+  private final long periodNanos;
+  private final long id = JMsgProcess.newAsyncId();
+  private final long deadline;
+  // Null while the timer of an after channel is not scheduled
+  private volatile TimingWheel.Timer timer;
+  private volatile boolean expired = false;
+  private volatile boolean waiting = false;
+
+  private TimerChannel(String nickName, long periodNanos, long deadline) {
+    super(nickName);
+    this.periodNanos = periodNanos;
+    this.deadline = deadline;
+  }
+
+  static TimerChannel after(Duration delay) {
+    return new TimerChannel("after("+delay+")",0,System.nanoTime() + Math.max(0,delay.toNanos()));
+  }
+
+  static TimerChannel ticker(Duration period) {
+    if (period.isZero() || period.isNegative())
+      throw new IllegalArgumentException("non-positive period "+period);
+    long deadline = System.nanoTime() + period.toNanos();
+    TimerChannel channel = new TimerChannel("ticker("+period+")",period.toNanos(),deadline);
+    channel.timer = TimingWheel.getInstance().scheduleAt(deadline,() -> channel.ticked(deadline));
+    return channel;
+  }
+
+  // Runs in the timing wheel thread (or in the receiving process, see schedule)
+  private void expired() {
+    expired = true;
+    if (!waiting) {
+      waiting = true;
+      offer(AsyncOffer.newAsyncOffer(Action.send(this,Instant.now()),id,msg -> waiting = false));
+    }
+  }
+
+  private void ticked(long deadline) {
+    expired();
+    long next = deadline + periodNanos;
+    if (!isClosed())
+      timer = TimingWheel.getInstance().scheduleAt(next,() -> ticked(next));
+  }
+
+  // The timer is scheduled (or cancelled) after the offer has been made (or cancelled),
+  // and with the channel locked, so either a receive offer finds the timer cancelled,
+  // or the cancellation finds the offer
+  @Override
+  void offer(Offer<Instant,?> offer) {
+    super.offer(offer);
+    if (!offer.isSendOffer()) schedule();
+  }
+
+  @Override
+  <T> void offers(ArrayList<Offer<Instant,T>> offers) {
+    super.offers(offers);
+    schedule();
+  }
+
+  @Override
+  <T> void cancelOffer(Offer<Instant,T> offer) {
+    super.cancelOffer(offer);
+    unschedule();
+  }
+
+  @Override
+  <T> void cancelOffers(ArrayList<Offer<Instant,T>> offers, Offer<?,?> remain) {
+    super.cancelOffers(offers,remain);
+    unschedule();
+  }
+
+  @Override
+  boolean withdrawOffer(Offer<Instant,?> offer) {
+    boolean withdrawn = super.withdrawOffer(offer);
+    unschedule();
+    return withdrawn;
+  }
+
+  @Override
+  void abandoned(int count) {
+    super.abandoned(count);
+    unschedule();
+  }
+
+  // A receive arriving after the deadline gets the value at once
+  private void schedule() {
+    synchronized (this) {
+      if (periodNanos != 0 || timer != null || expired || isClosed()) return;
+      if (deadline - System.nanoTime() > 0) {
+        timer = TimingWheel.getInstance().scheduleAt(deadline,this::expired);
+        return;
+      }
+      expired = true;
+    }
+    expired();
+  }
+
+  private synchronized void unschedule() {
+    TimingWheel.Timer timer = this.timer;
+    if (periodNanos == 0 && timer != null && !hasReceivers() && timer.cancel())
+      this.timer = null;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    TimingWheel.Timer timer = this.timer;
+    if (timer != null) timer.cancel();
+  }
+}
@@ -0,0 +1,196 @@
+package es.upm.babel.cclib.jmsg;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+
+// A hashed timing wheel driven by a single daemon thread, which runs the
+// tasks of all timers. Timers are kept in doubly linked lists, one per slot
+// of the wheel, so scheduling and cancelling a timer are O(1): other threads
+// only enqueue the timer, and the wheel thread links (or unlinks) it at the
+// next tick. A timer further away than one revolution of the wheel waits
+// for the remaining rounds in its slot.
+class TimingWheel implements Runnable {
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int WHEEL_SIZE = 512;
+  private static final int MASK = WHEEL_SIZE - 1;
+
+  private static volatile TimingWheel instance = null;
+
+  private final Slot[] wheel = new Slot[WHEEL_SIZE];
+  private final Queue<Timer> added = new ConcurrentLinkedQueue<Timer>();
+  private final Queue<Timer> cancelled = new ConcurrentLinkedQueue<Timer>();
+  private final long startNanos = System.nanoTime();
+  private final Thread thread;
+  // The timers neither expired nor cancelled
+  private final AtomicInteger live = new AtomicInteger();
+  // Only used by the wheel thread
+  private long tick = 0;
+  private int active = 0;
+
+  private TimingWheel() {
+    for (int i=0; i<WHEEL_SIZE; i++) wheel[i] = new Slot();
+    thread = new Thread(this,"jmsg-timer");
+    thread.setDaemon(true);
+  }
+
+  static TimingWheel getInstance() {
+    TimingWheel wheel = instance;
+    if (wheel == null) {
+      synchronized (TimingWheel.class) {
+        if (instance == null) {
+          instance = new TimingWheel();
+          instance.thread.start();
+        }
+        wheel = instance;
+      }
+    }
+    return wheel;
+  }
+
+  // Runs task (in the wheel thread) when delayNanos have elapsed
+  Timer schedule(long delayNanos, Runnable task) {
+    return scheduleAt(System.nanoTime() + Math.max(0,delayNanos),task);
+  }
+
+  // Runs task when System.nanoTime() reaches deadlineNanos
+  Timer scheduleAt(long deadlineNanos, Runnable task) {
+    Timer timer = new Timer(this,deadlineNanos - startNanos,task);
+    live.incrementAndGet();
+    added.add(timer);
+    if (Thread.currentThread() != thread) LockSupport.unpark(thread);
+    return timer;
+  }
+
+  int liveTimers() {
+    return live.get();
+  }
+
+  public void run() {
+    while (true) {
+      if (active == 0 && added.isEmpty()) {
+        // Nothing to wait for; the clock is resynchronized when a timer arrives
+        LockSupport.park(this);
+        tick = (System.nanoTime() - startNanos) / TICK_NANOS;
+      } else {
+        long sleep = (tick + 1) * TICK_NANOS - (System.nanoTime() - startNanos);
+        if (sleep > 0) LockSupport.parkNanos(this,sleep);
+      }
+
+      long now = System.nanoTime() - startNanos;
+      while (tick * TICK_NANOS <= now) {
+        unlinkCancelled();
+        linkAdded();
+        expire(wheel[(int) (tick & MASK)]);
+        tick++;
+      }
+    }
+  }
+
+  private void unlinkCancelled() {
+    Timer timer;
+    while ((timer = cancelled.poll()) != null) {
+      if (timer.slot != null) {
+        timer.slot.remove(timer);
+        active--;
+      }
+    }
+  }
+
+  private void linkAdded() {
+    Timer timer;
+    while ((timer = added.poll()) != null) {
+      if (timer.state != Timer.PENDING) continue;
+      long ticks = Math.max(timer.deadline / TICK_NANOS, tick);
+      timer.rounds = (ticks - tick) / WHEEL_SIZE;
+      wheel[(int) (ticks & MASK)].add(timer);
+      active++;
+    }
+  }
+
+  private void expire(Slot slot) {
+    Timer timer = slot.head;
+    while (timer != null) {
+      Timer next = timer.next;
+      if (timer.rounds <= 0) {
+        slot.remove(timer);
+        active--;
+        if (Timer.STATE.compareAndSet(timer,Timer.PENDING,Timer.EXPIRED)) {
+          live.decrementAndGet();
+          try {
+            timer.task.run();
+          } catch (RuntimeException exc) {
+            if (JMsgProcess.getLogger().isLoggable(Level.SEVERE))
+              JMsgProcess.getLogger().log(Level.SEVERE,"timer task failed with "+exc);
+          }
+        }
+      } else timer.rounds--;
+      timer = next;
+    }
+  }
+
+  private static class Slot {
+    Timer head;
+    Timer tail;
+
+    void add(Timer timer) {
+      timer.slot = this;
+      timer.prev = tail;
+      timer.next = null;
+      if (tail == null) head = timer;
+      else tail.next = timer;
+      tail = timer;
+    }
+
+    void remove(Timer timer) {
+      if (timer.prev == null) head = timer.next;
+      else timer.prev.next = timer.next;
+      if (timer.next == null) tail = timer.prev;
+      else timer.next.prev = timer.prev;
+      timer.slot = null;
+      timer.prev = null;
+      timer.next = null;
+    }
+  }
+
+  static class Timer {
+    static final int PENDING = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED = 2;
+    static final AtomicIntegerFieldUpdater<Timer> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(Timer.class,"state");
+
+    private final TimingWheel wheel;
+    private final long deadline;
+    private final Runnable task;
+    private volatile int state = PENDING;
+    // Only used by the wheel thread
+    private long rounds;
+    private Slot slot;
+    private Timer prev;
+    private Timer next;
+
+    Timer(TimingWheel wheel, long deadline, Runnable task) {
+      this.wheel = wheel;
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    // Returns false if the task has already run (or is running)
+    boolean cancel() {
+      if (!STATE.compareAndSet(this,PENDING,CANCELLED)) return false;
+      wheel.live.decrementAndGet();
+      wheel.cancelled.add(this);
+      return true;
+    }
+
+    boolean isCancelled() {
+      return state == CANCELLED;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package es.upm.babel.cclib.jmsg;
+
+
+/**
+ * Determines how a process waits for the next message about its synchronization
+ * offers (e.g., in Command.receive), trading CPU usage for latency.
+ * <ul>
+ * <li>PARK: the thread is parked immediately until a message arrives (the default).
+ * <li>SPIN: the thread busy-waits for a message. This gives the lowest latency, but occupies a
+ * core while waiting; it is intended for threads pinned to their own core.
+ * <li>SPIN_YIELD_PARK: the thread busy-waits for a short while, then yields the processor
+ * for a while, and finally parks.
+ * </ul>
+ * <p>
+ * The strategy can be set for all processes (setDefault), and for the current
+ * process (setForCurrentProcess), which overrides the default:
+ * <code>
+ * WaitStrategy.setForCurrentProcess(WaitStrategy.SPIN);
+ * </code>
+ * </p>
+ */
+public enum WaitStrategy {
+  PARK, SPIN, SPIN_YIELD_PARK;
+
+  private static volatile WaitStrategy defaultStrategy = PARK;
+
+  /**
+   * Sets the wait strategy used by processes which have not chosen their own.
+   */
+  public static void setDefault(WaitStrategy strategy) {
+    if (strategy == null) throw new NullPointerException();
+    defaultStrategy = strategy;
+  }
+
+  /**
+   * Returns the wait strategy used by processes which have not chosen their own.
+   */
+  public static WaitStrategy getDefault() {
+    return defaultStrategy;
+  }
+
+  /**
+   * Sets the wait strategy of the current process (thread); null reverts
+   * to the default strategy.
+   */
+  public static void setForCurrentProcess(WaitStrategy strategy) {
+    JMsgProcess.getQueue().setWaitStrategy(strategy);
+  }
+}
@@ -1,8 +1,40 @@
 package es.upm.babel.cclib.jmsg;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.time.Duration;
@@ -357,6 +389,1806 @@ public class Tests {
   }
 
 
+  @Test
+  public void test_priority_select_latency() throws InterruptedException {
+    SynchronousChannel<Integer> dataCh = new SynchronousChannel<Integer>("data");
+    SynchronousChannel<Integer> controlCh = new SynchronousChannel<Integer>("control");
+    final int dataSenders = 16;
+    final int rounds = 20;
+    List<Thread> senders = new ArrayList<Thread>();
+
+    try {
+      for (int i=0; i<dataSenders; i++) {
+        Thread sender = new Thread(tg,() -> {
+            try { while (true) Command.executeInterruptibly(Action.send(dataCh,1)); }
+            catch (InterruptedException exc) { }
+        },"data"+i);
+        senders.add(sender);
+        sender.start();
+      }
+      Thread control = new Thread(tg,() -> { for (int i=0; i<rounds; i++) Command.send(controlCh,-i); },"control");
+      senders.add(control);
+      control.start();
+
+      List<Action<?,Integer>> selectArgs =
+        Arrays.asList(Action.receive(controlCh),Action.receive(dataCh));
+      for (int i=0; i<rounds; i++) {
+        // Data is received while no control message waits
+        assertThat(Command.receive(dataCh), is(1));
+        // Once both channels have a sender waiting, the control message is
+        // always preferred, however many data senders wait
+        while (controlCh.snapshot().getPendingSenders() == 0 || dataCh.snapshot().getPendingSenders() == 0)
+          sleep(1);
+        long start = System.nanoTime();
+        assertThat(Command.prioritySelect(selectArgs), is(-i));
+        assertThat((System.nanoTime() - start) / 1000000, lessThan(500L));
+      }
+      control.join();
+    } finally {
+      for (Thread sender : senders) sender.interrupt();
+      for (Thread sender : senders) sender.join();
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_fairness_policies() throws InterruptedException {
+    final int producers = 4;
+    final int rounds = 100;
+
+    for (Fairness fairness : Fairness.values()) {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch",fairness);
+      // How often each producer is the first one received in a round
+      int[] first = new int[producers];
+      // Where a ROUND_ROBIN channel starts searching the waiting producers
+      int next = 0;
+
+      for (int round=0; round<rounds; round++) {
+        // The producers wait on the channel in the order of their ids
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Integer> waiting = new ArrayList<Integer>();
+        for (int i=0; i<producers; i++) {
+          int id = i;
+          Thread producer = new Thread(tg,() -> Command.send(ch,id),"producer"+i);
+          threads.add(producer);
+          producer.start();
+          while (ch.snapshot().getPendingSenders() <= i) sleep(1);
+          waiting.add(id);
+        }
+
+        for (int i=0; i<producers; i++) {
+          Integer value = Command.receive(ch);
+          if (i == 0) first[value]++;
+          if (fairness == Fairness.FIFO)
+            assertThat(value, is(waiting.get(0)));
+          else if (fairness == Fairness.ROUND_ROBIN)
+            assertThat(value, is(waiting.get(next++ % waiting.size())));
+          else
+            assertTrue(waiting.contains(value));
+          waiting.remove(value);
+        }
+        for (Thread producer : threads) producer.join();
+      }
+
+      if (fairness == Fairness.RANDOM)
+        // Each producer is received first in about a quarter of the rounds
+        for (int i=0; i<producers; i++) {
+          assertThat(first[i], greaterThan(5));
+          assertThat(first[i], lessThan(rounds/2));
+        }
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_matching_strategies() throws InterruptedException {
+    final int senders = 3;
+
+    // The senders wait on the channel in the order of their ids
+    class Sender implements Runnable {
+      private SynchronousChannel<Integer> ch;
+      private int id;
+      private boolean select;
+      public Sender(SynchronousChannel<Integer> ch, int id, boolean select) { this.ch = ch; this.id = id; this.select = select; }
+      public void run() {
+        if (select) Command.select(Arrays.<Action<?,Integer>>asList(Action.send(ch,id)));
+        else Command.send(ch,id);
+      }
+    }
+
+    MatchingStrategy[] strategies =
+      { MatchingStrategy.fifo(), MatchingStrategy.lifo(), MatchingStrategy.preferNonSelect(),
+        MatchingStrategy.random(), MatchingStrategy.roundRobin() };
+    for (MatchingStrategy strategy : strategies) {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch",strategy);
+      // The random strategy is checked on the senders received first over many rounds
+      int rounds = strategy == MatchingStrategy.random() ? 60 : 1;
+      int[] first = new int[senders];
+
+      for (int round=0; round<rounds; round++) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<senders; i++) {
+          Thread sender = new Thread(tg,new Sender(ch,i,i == 0),"sender"+i);
+          threads.add(sender);
+          sender.start();
+          while (ch.snapshot().getPendingSenders() <= i) sleep(1);
+        }
+
+        List<Integer> received = new ArrayList<Integer>();
+        for (int i=0; i<senders; i++)
+          received.add(Command.receive(ch));
+        for (Thread sender : threads) sender.join();
+        first[received.get(0)]++;
+        if (strategy == MatchingStrategy.fifo())
+          assertThat(received, is(Arrays.asList(0,1,2)));
+        else if (strategy == MatchingStrategy.lifo())
+          assertThat(received, is(Arrays.asList(2,1,0)));
+        else if (strategy == MatchingStrategy.preferNonSelect())
+          assertThat(received, is(Arrays.asList(1,2,0)));
+        else if (strategy == MatchingStrategy.roundRobin())
+          // Starts at the first sender, then one position further along those left
+          assertThat(received, is(Arrays.asList(0,2,1)));
+        else
+          for (int i=0; i<senders; i++) assertTrue(received.contains(i));
+      }
+
+      if (strategy == MatchingStrategy.random())
+        // Each sender is received first in about a third of the rounds
+        for (int i=0; i<senders; i++) {
+          assertThat(first[i], greaterThan(3));
+          assertThat(first[i], lessThan(rounds*2/3));
+        }
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_range_guards() {
+    final int senders = 20;
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+
+    class Sender implements Runnable {
+      private int value;
+      public Sender(int value) { this.value = value; }
+      public void run() { Command.send(ch,value); }
+    }
+
+    for (int i=0; i<senders; i++)
+      new Thread(tg,new Sender(i),"sender"+i).start();
+    sleep(200);
+
+    assertThat(Command.receiveWithGuard(ch,Guards.between(5,7)), is(5));
+    assertThat(Command.receiveWithGuard(ch,Guards.between(5,7)), is(6));
+    assertThat(Command.receiveWithGuard(ch,Guards.greaterThan(17)), is(18));
+    assertThat(Command.receiveWithGuard(ch,Guards.atMost(2)), is(0));
+    assertThat(Command.receiveWithGuard(ch,Guards.equalTo(12)), is(12));
+    int odd = Command.receiveWithGuard(ch,value -> value % 2 == 1 && value > 10);
+    assertTrue(odd % 2 == 1 && odd > 10);
+
+    // A receiver waiting for a range is found by a later sender
+    new Thread(tg,() -> Command.send(ch,100),"late sender").start();
+    assertThat(Command.receiveWithGuard(ch,Guards.atLeast(100)), is(100));
+
+    Set<Integer> rest = new HashSet<Integer>();
+    for (int i=0; i<senders-6; i++)
+      rest.add(Command.receive(ch));
+    assertThat(rest.size(), is(senders-6));
+    assertFalse(rest.contains(12));
+    assertFalse(rest.contains(odd));
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_range_guards_unindexed() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+
+    // A null value cannot be indexed; a select of range guarded receives checks every sender
+    new Thread(tg,() -> Command.send(ch,null),"null sender").start();
+    new Thread(tg,() -> Command.send(ch,5),"sender").start();
+    sleep(100);
+    AtomicInteger received = new AtomicInteger(-1);
+    Thread selector = new Thread(tg,() -> {
+        received.set(Command.select(Arrays.<Action<?,Integer>>asList(Action.receiveWithGuard(ch,Guards.between(1,10)),
+                                                                     Action.receiveWithGuard(ch,Guards.atLeast(100)))));
+    },"selector");
+    selector.start();
+    selector.join(1000);
+    assertFalse(selector.isAlive());
+    assertThat(received.get(),is(5));
+    assertNull(Command.receive(ch));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_large_select() throws Exception {
+    final int n = 200;
+    final int selectors = 4;
+    final int rounds = 500;
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    for (int i=0; i<n; i++) channels.add(new SynchronousChannel<Integer>("large"+i));
+    List<Action<?,Integer>> selectArgs = new ArrayList<Action<?,Integer>>();
+    for (SynchronousChannel<Integer> channel : channels) selectArgs.add(Action.receive(channel));
+
+    // Selects over the same channels abort each other's synchronizations
+    AtomicInteger sum = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<selectors; i++) {
+      int id = i;
+      threads.add(new Thread(tg,() -> {
+          Random random = new Random(id);
+          for (int j=0; j<rounds; j++)
+            Command.select(Arrays.<Action<?,Integer>>asList(Action.send(channels.get(random.nextInt(n)),1),
+                                                            Action.send(channels.get(random.nextInt(n)),1)));
+      },"sender"+i));
+      threads.add(new Thread(tg,() -> {
+          for (int j=0; j<rounds; j++) sum.addAndGet(Command.select(selectArgs));
+      },"selector"+i));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    assertThat(sum.get(),is(selectors*rounds));
+
+    // No offer is left behind on any channel
+    for (SynchronousChannel<Integer> channel : channels) {
+      ChannelStats stats = channel.snapshot();
+      assertThat(stats.getPendingSenders()+stats.getPendingReceivers(),is(0));
+      assertFalse(stats.isLockDownInProgress());
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_fair_select() throws InterruptedException {
+    final int channels = 4;
+    List<Action<?,Integer>> selectArgs = new ArrayList<Action<?,Integer>>();
+
+    class Sender implements Runnable {
+      private SynchronousChannel<Integer> ch;
+      private int value;
+      public Sender(SynchronousChannel<Integer> ch, int value) { this.ch = ch; this.value = value; }
+      public void run() {
+        try { while (true) Command.executeInterruptibly(Action.send(ch,value)); }
+        catch (InterruptedException exc) { }
+      }
+    }
+
+    List<Thread> senders = new ArrayList<Thread>();
+    try {
+      for (int i=0; i<channels; i++) {
+        SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch"+i);
+        selectArgs.add(Action.receive(ch));
+        Thread sender = new Thread(tg,new Sender(ch,i),"sender"+i);
+        senders.add(sender);
+        sender.start();
+      }
+      sleep(100);
+
+      int[] received = new int[channels];
+      for (int i=0; i<400; i++)
+        received[Command.fairSelect(selectArgs)]++;
+      for (int i=0; i<channels; i++)
+        assertThat(received[i], greaterThan(0));
+    } finally {
+      for (Thread sender : senders) sender.interrupt();
+      for (Thread sender : senders) sender.join();
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_wait_strategies() throws Exception {
+    SynchronousChannel<Integer> ping = new SynchronousChannel<Integer>("ping");
+    SynchronousChannel<Integer> pong = new SynchronousChannel<Integer>("pong");
+
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      Thread ponger = new Thread(tg,() -> {
+          WaitStrategy.setForCurrentProcess(strategy);
+          for (int i=0; i<100; i++) Command.send(pong,Command.receive(ping)+1);
+      },"ponger");
+      ponger.start();
+      WaitStrategy.setForCurrentProcess(strategy);
+      for (int i=0; i<100; i++) {
+        Command.send(ping,i);
+        assertThat(Command.receive(pong),is(i+1));
+      }
+      ponger.join();
+    }
+    WaitStrategy.setForCurrentProcess(null);
+    assertThat(JMsgProcess.getQueue().getWaitStrategy(),is(WaitStrategy.getDefault()));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_channel_publisher() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch done = new CountDownLatch(1);
+    AtomicInteger sent = new AtomicInteger();
+
+    class Subscriber implements Flow.Subscriber<Integer> {
+      Flow.Subscription subscription;
+      public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(5);
+      }
+      public void onNext(Integer value) {
+        received.add(value);
+        if (value == 100) done.countDown();
+      }
+      public void onError(Throwable exc) { }
+      public void onComplete() { }
+    }
+
+    class Sender implements Runnable {
+      public void run() {
+        for (int i=1; i<=100; i++) {
+          Command.send(ch,i);
+          sent.incrementAndGet();
+        }
+      }
+    }
+
+    Subscriber subscriber = new Subscriber();
+    new ChannelPublisher<Integer>(ch).subscribe(subscriber);
+    new Thread(tg,new Sender(),"sender").start();
+
+    // Only the requested values can be sent
+    sleep(200);
+    assertThat(sent.get(), is(5));
+    assertThat(received.size(), is(5));
+
+    subscriber.subscription.request(95);
+    assertTrue(done.await(10,TimeUnit.SECONDS));
+    for (int i=0; i<100; i++)
+      assertThat(received.get(i), is(i+1));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_channel_subscriber() {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+    publisher.subscribe(new ChannelSubscriber<Integer>(ch));
+
+    class Publisher implements Runnable {
+      public void run() {
+        for (int i=1; i<=100; i++)
+          publisher.submit(i);
+        publisher.close();
+      }
+    }
+
+    new Thread(tg,new Publisher(),"publisher").start();
+    for (int i=1; i<=100; i++)
+      assertThat(Command.receive(ch), is(i));
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_flow_cancel_and_error() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    // The subscriber is signalled only when the test runs the tasks
+    Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    List<Integer> delivered = new ArrayList<Integer>();
+    Flow.Subscription[] subscription = new Flow.Subscription[1];
+    new ChannelPublisher<Integer>(ch,tasks::add,2).subscribe(new Flow.Subscriber<Integer>() {
+        public void onSubscribe(Flow.Subscription s) { subscription[0] = s; s.request(2); }
+        public void onNext(Integer item) { delivered.add(item); }
+        public void onError(Throwable exc) { }
+        public void onComplete() { }
+      });
+    Runnable task;
+    while ((task = tasks.poll()) != null) task.run();
+
+    // The values received but not delivered when the subscription is cancelled are not lost
+    List<Thread> senders = new ArrayList<Thread>();
+    for (int i=1; i<=2; i++) {
+      int value = i;
+      Thread sender = new Thread(tg,() -> Command.send(ch,value),"sender"+i);
+      senders.add(sender);
+      sender.start();
+    }
+    for (Thread sender : senders) sender.join();
+    subscription[0].cancel();
+    while ((task = tasks.poll()) != null) task.run();
+    assertTrue(delivered.isEmpty());
+    Set<Integer> handedBack = new HashSet<Integer>(Arrays.asList(Command.receive(ch),Command.receive(ch)));
+    assertThat(handedBack, is(new HashSet<Integer>(Arrays.asList(1,2))));
+
+    // A failing publisher closes the channel with its error as cause
+    SynchronousChannel<Integer> failing = new SynchronousChannel<Integer>("failing");
+    SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+    publisher.subscribe(new ChannelSubscriber<Integer>(failing));
+    publisher.submit(1);
+    assertThat(Command.receive(failing), is(1));
+    IllegalStateException error = new IllegalStateException("publisher failed");
+    publisher.closeExceptionally(error);
+    ChannelClosedException exc = assertThrows(ChannelClosedException.class, () -> Command.receive(failing));
+    assertThat(exc.getCause(), is(error));
+    assertThat(failing.getCloseCause(), is(error));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_channel_stream() {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+
+    class Sender implements Runnable {
+      private int first;
+      public Sender(int first) { this.first = first; }
+      public void run() { for (int i=first; i<=10; i+=2) Command.send(ch,i); }
+    }
+
+    new Thread(tg,new Sender(1),"odds").start();
+    new Thread(tg,new Sender(2),"evens").start();
+    List<Integer> evens = Channels.receiveStream(ch,value -> value % 2 == 0).limit(5).collect(Collectors.toList());
+    assertThat(evens, equalTo(Arrays.asList(2,4,6,8,10)));
+    List<Integer> rest = ch.stream().limit(5).collect(Collectors.toList());
+    assertThat(rest, equalTo(Arrays.asList(1,3,5,7,9)));
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_parallel_channel_stream() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    final int senders = 4;
+    final int messages = 100;
+    Set<Thread> receivers = ConcurrentHashMap.newKeySet();
+
+    class Sender implements Runnable {
+      public void run() { for (int i=1; i<=messages; i++) Command.send(ch,i); }
+    }
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<senders; i++) {
+      Thread t = new Thread(tg,new Sender(),"sender"+i);
+      threads.add(t);
+      t.start();
+    }
+    new Thread(tg,() -> {
+        for (Thread t : threads) {
+          try { t.join(); } catch (InterruptedException exc) { }
+        }
+        Command.send(ch,-1);
+    },"poisoner").start();
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    int sum =
+      pool.submit(() ->
+                  Channels.receiveStream(ch,null,value -> value == -1)
+                  .parallel()
+                  .peek(value -> receivers.add(Thread.currentThread()))
+                  .mapToInt(value -> value)
+                  .sum())
+      .get(10,TimeUnit.SECONDS);
+    pool.shutdown();
+
+    assertThat(sum, is(senders * messages * (messages+1) / 2));
+    assertThat(receivers.size(), greaterThan(1));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_sharded_channel() {
+    ShardedChannel<Integer> ch = new ShardedChannel<Integer>("sharded",4);
+    SynchronousChannel<Integer> reportCh = new SynchronousChannel<Integer>("report");
+    final int producers = 8;
+    final int messages = 50;
+
+    class Producer implements Runnable {
+      public void run() { for (int i=1; i<=messages; i++) Command.send(ch,i); }
+    }
+
+    class Consumer implements Runnable {
+      public void run() {
+        int sum = 0;
+        for (int i=0; i<messages; i++) sum += Command.receive(ch);
+        Command.send(reportCh,sum);
+      }
+    }
+
+    for (int i=0; i<producers; i++) {
+      new Thread(tg,new Producer(),"producer"+i).start();
+      new Thread(tg,new Consumer(),"consumer"+i).start();
+    }
+
+    int sum = 0;
+    for (int i=0; i<producers; i++) sum += Command.receive(reportCh);
+    assertThat(sum, is(producers * messages * (messages+1) / 2));
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_sharded_channel_select() {
+    ShardedChannel<Integer> ch1 = new ShardedChannel<Integer>("sharded",3);
+    SynchronousChannel<String> ch2 = new SynchronousChannel<String>("ch2");
+
+    class Sender implements Runnable {
+      public void run() { Command.send(ch1,1); }
+    }
+
+    new Thread(tg,new Sender(),"sender").start();
+    List<Action<?,Integer>> selectArgs =
+      Arrays.asList(Action.receive(ch2, value -> Integer.parseInt(value)),Action.receive(ch1));
+    assertThat(Command.select(selectArgs), is(1));
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_sharded_channel_offers() throws Exception {
+    // A monitor sends over a shard
+    ShardedChannel<Proc> exits = new ShardedChannel<Proc>("exits",3);
+    Proc proc = Proc.spawn("proc", () -> { });
+    proc.monitor(exits);
+    assertTrue(Command.receive(exits) == proc);
+
+    // The async sends of a subscriber
+    ShardedChannel<Integer> ch = new ShardedChannel<Integer>("sharded",3);
+    SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+    publisher.subscribe(new ChannelSubscriber<Integer>(ch));
+    new Thread(tg, () -> { for (int i=1; i<=50; i++) publisher.submit(i); publisher.close(); }).start();
+    int sum = 0;
+    for (int i=0; i<50; i++) sum += Command.receive(ch);
+    assertThat(sum,is(50*51/2));
+
+    // The async receives of a publisher meet the senders of every shard
+    ShardedChannel<Integer> work = new ShardedChannel<Integer>("work",3);
+    List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Flow.Subscription> subscriptions = new ArrayList<Flow.Subscription>();
+    new ChannelPublisher<Integer>(work).subscribe(new Flow.Subscriber<Integer>() {
+        public void onSubscribe(Flow.Subscription subscription) {
+          subscriptions.add(subscription);
+          subscription.request(25);
+        }
+        public void onNext(Integer value) { received.add(value); }
+        public void onError(Throwable exc) { }
+        public void onComplete() { }
+      });
+    List<Thread> senders = new ArrayList<Thread>();
+    for (int i=0; i<4; i++) {
+      int first = 10*i;
+      senders.add(new Thread(tg, () -> { for (int j=first; j<first+5; j++) Command.send(work,j); }));
+    }
+    for (Thread sender : senders) sender.start();
+    for (Thread sender : senders) sender.join();
+    for (int i=0; i<50 && received.size() < 20; i++) sleep(10);
+    assertThat(received.size(),is(20));
+
+    // Cancelling the subscription withdraws the receives still pending
+    subscriptions.get(0).cancel();
+    sleep(100);
+    Thread sender = new Thread(tg, () -> Command.send(work,100));
+    sender.start();
+    assertThat(Command.receive(work),is(100));
+    sender.join();
+    assertThat(received.size(),is(20));
+
+    // The helpers are bounded, and leave no mailboxes behind
+    ShardedChannel<Integer> idle = new ShardedChannel<Integer>("idle",2);
+    int queues = JMsgProcess.getQueues();
+    AtomicInteger rejected = new AtomicInteger();
+    List<Offer<Integer,Integer>> offers = new ArrayList<Offer<Integer,Integer>>();
+    for (int i=0; i<Helpers.MAX_HELPERS+1; i++) {
+      Offer<Integer,Integer> offer =
+        AsyncOffer.newAsyncOffer(Action.receive(idle),JMsgProcess.newAsyncId(),msg -> {
+            if (msg instanceof RejectedMessage<?,?>) rejected.incrementAndGet();
+          });
+      offers.add(offer);
+      idle.offer(offer);
+    }
+    assertThat(rejected.get(),is(1));
+    for (Offer<Integer,Integer> offer : offers) idle.cancelOffer(offer);
+    for (int i=0; i<100 && (Helpers.running() > 0 || JMsgProcess.getQueues() > queues); i++) sleep(10);
+    assertThat(Helpers.running(),is(0));
+    assertThat(JMsgProcess.getQueues(),is(queues));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_close() throws Exception {
+    final int waiting = 1000;
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    AtomicInteger closed = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i=0; i<waiting; i++) {
+      int value = i;
+      Thread t = new Thread(tg,() -> {
+          try {
+            if (value % 2 == 0) Command.receiveWithGuard(ch,v -> v < 0);
+            else Command.send(ch,value);
+          } catch (ChannelClosedException exc) {
+            if (exc.getChannel() == ch) closed.incrementAndGet();
+          }
+      },"waiting"+i);
+      threads.add(t);
+      t.start();
+    }
+    sleep(500);
+    ch.close();
+    for (Thread t : threads) t.join();
+    assertThat(closed.get(),is(waiting));
+    assertThat(ch.isClosed(),is(true));
+
+    assertThrows(ChannelClosedException.class, () -> Command.send(ch,1));
+    assertThrows(ChannelClosedException.class, () -> Command.receive(ch));
+    ch.close();
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_close_select() throws Exception {
+    SynchronousChannel<Integer> ch1 = new SynchronousChannel<Integer>("ch1");
+    SynchronousChannel<Integer> ch2 = new SynchronousChannel<Integer>("ch2");
+    List<Action<?,Integer>> selectArgs = Arrays.asList(Action.receive(ch1),Action.receive(ch2));
+
+    // Closing a channel disables its branch of a waiting select
+    new Thread(tg,() -> { sleep(200); ch1.close(); sleep(200); Command.send(ch2,2); },"closer").start();
+    assertThat(Command.select(selectArgs),is(2));
+
+    // A closed channel is not considered by a later select
+    new Thread(tg,() -> Command.send(ch2,3),"sender").start();
+    assertThat(Command.prioritySelect(selectArgs),is(3));
+
+    // A select throws when all its channels are closed
+    new Thread(tg,() -> { sleep(200); ch2.close(); },"closer").start();
+    assertThrows(ChannelClosedException.class, () -> Command.select(selectArgs));
+    assertThrows(ChannelClosedException.class, () -> Command.fairSelect(selectArgs));
+
+    // Streams end when the channel is closed
+    SynchronousChannel<Integer> ch3 = new SynchronousChannel<Integer>("ch3");
+    new Thread(tg,() -> {
+        for (int i=0; i<10; i++) Command.send(ch3,i);
+        ch3.close();
+    },"streamer").start();
+    assertThat(Channels.receiveStream(ch3,null,v -> v < 0).count(),is(10L));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_interruptible() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    List<Action<?,Integer>> selectArgs = Arrays.asList(Action.receive(ch),Action.send(ch,1));
+    AtomicInteger interrupted = new AtomicInteger();
+
+    Thread receiver = new Thread(tg,() -> {
+        try { Command.executeInterruptibly(Action.receive(ch)); }
+        catch (InterruptedException exc) { interrupted.incrementAndGet(); }
+    },"receiver");
+    Thread selecter = new Thread(tg,() -> {
+        try { Command.selectInterruptibly(selectArgs); }
+        catch (InterruptedException exc) { interrupted.incrementAndGet(); }
+    },"selecter");
+    receiver.start();
+    sleep(100);
+    receiver.interrupt();
+    receiver.join();
+    selecter.start();
+    sleep(100);
+    selecter.interrupt();
+    selecter.join();
+    assertThat(interrupted.get(),is(2));
+
+    // No offer remains on the channel
+    new Thread(tg,() -> Command.send(ch,2),"sender").start();
+    assertThat(Command.receive(ch),is(2));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_codecs() throws Exception {
+    // The channel frames the values, so a codec of variable length values adds no length
+    Codec<byte[]> bytes = Codec.bytes();
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    bytes.encode(new byte[] { 1, 2, 3 },new DataOutputStream(encoded));
+    assertThat(encoded.size(),is(3));
+    byte[] decoded = bytes.decode(new DataInputStream(new ByteArrayInputStream(encoded.toByteArray())));
+    assertTrue(Arrays.equals(decoded,new byte[] { 1, 2, 3 }));
+
+    // Only the classes accepted by the filter are deserialized
+    Codec<ArrayList<String>> lists =
+      Codec.serializable(ObjectInputFilter.Config.createFilter("java.util.ArrayList;java.lang.Object;java.lang.String;!*"));
+    encoded.reset();
+    lists.encode(new ArrayList<String>(Arrays.asList("a","b")),new DataOutputStream(encoded));
+    assertThat(lists.decode(new DataInputStream(new ByteArrayInputStream(encoded.toByteArray()))),
+               is(Arrays.asList("a","b")));
+    Codec<ArrayList<Object>> unexpected =
+      Codec.serializable(ObjectInputFilter.Config.createFilter("java.util.ArrayList;java.lang.Object;java.lang.String;!*"));
+    encoded.reset();
+    unexpected.encode(new ArrayList<Object>(Arrays.asList(new HashSet<String>())),new DataOutputStream(encoded));
+    assertThrows(InvalidClassException.class,
+                 () -> unexpected.decode(new DataInputStream(new ByteArrayInputStream(encoded.toByteArray()))));
+    assertThrows(NullPointerException.class, () -> Codec.serializable(null));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_remote_channels() throws Exception {
+    final int n = 200;
+    SynchronousChannel<Integer> numbers = new SynchronousChannel<Integer>("numbers");
+    SynchronousChannel<Integer> other = new SynchronousChannel<Integer>("other");
+    ChannelServer server = ChannelServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+    server.export("numbers",numbers,Codec.integers());
+    RemoteChannel<Integer> remote = RemoteChannel.connect(server.getAddress(),"numbers",Codec.integers());
+
+    // Local sender, remote receiver, and the other way round
+    new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(numbers,i); },"local sender").start();
+    for (int i=0; i<n; i++) assertThat(Command.receive(remote),is(i));
+    new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(remote,i); },"remote sender").start();
+    for (int i=0; i<n; i++) assertThat(Command.receive(numbers),is(i));
+
+    // A select over a remote and a local channel, against selects on both ends of the remote channel
+    List<Action<?,Integer>> receives = Arrays.<Action<?,Integer>>asList(Action.receive(remote),Action.receive(other));
+    Set<Integer> received = ConcurrentHashMap.newKeySet();
+    Thread selecter = new Thread(tg,() -> { for (int i=0; i<2*n; i++) received.add(Command.select(receives)); },"selecter");
+    selecter.start();
+    new Thread(tg,() -> {
+        for (int i=0; i<n; i++)
+          Command.select(Arrays.<Action<?,Integer>>asList(Action.send(numbers,i),Action.send(other,n+i)));
+      },"local selecter").start();
+    for (int i=0; i<n; i++)
+      Command.select(Arrays.<Action<?,Integer>>asList(Action.send(remote,2*n+i),Action.send(other,3*n+i)));
+    selecter.join();
+    assertThat(received.size(),is(2*n));
+
+    // An interrupted receive is withdrawn from the exported channel
+    AtomicInteger interrupted = new AtomicInteger();
+    Thread receiver = new Thread(tg,() -> {
+        try { Command.executeInterruptibly(Action.receive(remote)); }
+        catch (InterruptedException exc) { interrupted.incrementAndGet(); }
+    },"receiver");
+    receiver.start();
+    sleep(100);
+    receiver.interrupt();
+    receiver.join();
+    assertThat(interrupted.get(),is(1));
+    new Thread(tg,() -> Command.send(numbers,7),"sender").start();
+    assertThat(Command.receive(remote),is(7));
+
+    // The server forgets the remote processes with no offer pending
+    for (int i=0; i<50 && server.remoteProcesses() > 0; i++) sleep(10);
+    assertThat(server.remoteProcesses(),is(0));
+
+    assertThrows(IllegalArgumentException.class, () -> Action.receiveWithGuard(remote,v -> v > 0));
+    RemoteChannel<Integer> missing = RemoteChannel.connect(server.getAddress(),"missing",Codec.integers());
+    assertThrows(ChannelClosedException.class, () -> Command.receive(missing));
+
+    // Closing the remote channel closes the exported channel, and the other way round
+    remote.close();
+    for (int i=0; i<50 && !numbers.isClosed(); i++) sleep(10);
+    assertTrue(numbers.isClosed());
+    server.export("other",other,Codec.integers());
+    RemoteChannel<Integer> remoteOther = RemoteChannel.connect(server.getAddress(),"other",Codec.integers());
+    Thread closed = new Thread(tg,() -> assertThrows(ChannelClosedException.class, () -> Command.receive(remoteOther)),"closed");
+    closed.start();
+    sleep(100);
+    other.close();
+    closed.join();
+    assertTrue(remoteOther.isClosed());
+    server.close();
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_remote_invalid_lengths() throws Exception {
+    SynchronousChannel<Integer> numbers = new SynchronousChannel<Integer>("numbers");
+    ChannelServer server = ChannelServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+    server.export("numbers",numbers,Codec.integers());
+
+    // A frame longer than any a peer writes closes the link before anything is allocated
+    try (Socket socket = new Socket(server.getAddress().getAddress(),server.getAddress().getPort())) {
+      new DataOutputStream(socket.getOutputStream()).writeInt(Integer.MAX_VALUE);
+      assertThat(socket.getInputStream().read(),is(-1));
+    }
+
+    // So does a value longer than its frame
+    try (Socket socket = new Socket(server.getAddress().getAddress(),server.getAddress().getPort())) {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      DataOutputStream records = new DataOutputStream(frame);
+      records.writeByte(RemoteLink.OPEN);
+      records.writeLong(1);
+      records.writeUTF("numbers");
+      records.writeByte(RemoteLink.OFFER);
+      records.writeLong(1);
+      records.writeInt(1);
+      records.writeLong(1);
+      records.writeLong(0);
+      records.writeInt(-1);
+      records.writeBoolean(true);
+      records.writeInt(1 << 20);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(frame.size());
+      frame.writeTo(out);
+      assertThat(socket.getInputStream().read(),is(-1));
+    }
+
+    // The other links are served
+    RemoteChannel<Integer> remote = RemoteChannel.connect(server.getAddress(),"numbers",Codec.integers());
+    new Thread(tg,() -> Command.send(numbers,7),"sender").start();
+    assertThat(Command.receive(remote),is(7));
+    assertThrows(IllegalArgumentException.class, () -> RemoteChannel.setMaxValueSize(-1));
+    server.close();
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_shared_memory_channel() throws Exception {
+    final int n = 1000;
+    final int senders = 4;
+    Path file = Files.createTempFile("jmsg",".channel");
+    try {
+      // Two mappings of the file, as in two JVMs
+      SharedMemoryChannel<String> a = SharedMemoryChannel.open(file,16,32,Codec.strings());
+      SharedMemoryChannel<String> b = SharedMemoryChannel.open(file,16,32,Codec.strings());
+
+      new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(a,"v"+i); },"sender").start();
+      for (int i=0; i<n; i++) assertThat(Command.receive(b),is("v"+i));
+
+      Set<String> received = ConcurrentHashMap.newKeySet();
+      for (int i=0; i<senders; i++) {
+        int id = i;
+        new Thread(tg,() -> { for (int j=0; j<n; j++) Command.send(j % 2 == 0 ? a : b,id+"/"+j); },"sender"+i).start();
+      }
+      Thread receiver = new Thread(tg,() -> { for (int i=0; i<senders*n/2; i++) received.add(Command.receive(b)); },"receiver");
+      receiver.start();
+      for (int i=0; i<senders*n/2; i++) received.add(Command.receive(a));
+      receiver.join();
+      assertThat(received.size(),is(senders*n));
+
+      // A send completes only when the value has been received
+      Thread sender = new Thread(tg,() -> Command.send(a,null),"null sender");
+      sender.start();
+      sleep(100);
+      assertTrue(sender.isAlive());
+      assertNull(Command.receive(b));
+      sender.join();
+
+      // An interrupted send is withdrawn
+      AtomicInteger interrupted = new AtomicInteger();
+      sender = new Thread(tg,() -> {
+          try { Command.executeInterruptibly(Action.send(a,"withdrawn")); }
+          catch (InterruptedException exc) { interrupted.incrementAndGet(); }
+      },"interrupted sender");
+      sender.start();
+      sleep(100);
+      sender.interrupt();
+      sender.join();
+      assertThat(interrupted.get(),is(1));
+      new Thread(tg,() -> Command.send(a,"last"),"last sender").start();
+      assertThat(Command.receive(b),is("last"));
+
+      assertThrows(IllegalArgumentException.class, () -> Command.send(a,"a value which does not fit in a slot"));
+      assertThrows(IllegalArgumentException.class, () -> Command.select(Arrays.<Action<?,String>>asList(Action.receive(a))));
+      assertThrows(IllegalArgumentException.class, () -> SharedMemoryChannel.open(file,32,32,Codec.strings()));
+      new Thread(tg,() -> Command.send(a,"0123456789abcdefghijklmnopqrs"),"long sender").start();
+      assertThat(Command.receive(b),is("0123456789abcdefghijklmnopqrs"));
+
+      // A file which is not a channel is left as it is
+      Path other = Files.createTempFile("jmsg",".other");
+      try {
+        Files.write(other,new byte[] { 1, 2, 3 });
+        assertThrows(IOException.class, () -> SharedMemoryChannel.open(other,16,32,Codec.strings()));
+        assertThat(Files.size(other),is(3L));
+      } finally {
+        Files.delete(other);
+      }
+
+      // The offers of the Flow adapters are made by helper processes
+      SubmissionPublisher<String> publisher = new SubmissionPublisher<String>();
+      publisher.subscribe(new ChannelSubscriber<String>(a));
+      new Thread(tg, () -> { for (int i=0; i<10; i++) publisher.submit("s"+i); }).start();
+      for (int i=0; i<10; i++) assertThat(Command.receive(b),is("s"+i));
+      List<String> published = Collections.synchronizedList(new ArrayList<String>());
+      List<Flow.Subscription> subscriptions = new ArrayList<Flow.Subscription>();
+      new ChannelPublisher<String>(b).subscribe(new Flow.Subscriber<String>() {
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscriptions.add(subscription);
+            subscription.request(10);
+          }
+          public void onNext(String value) { published.add(value); }
+          public void onError(Throwable exc) { }
+          public void onComplete() { }
+        });
+      for (int i=0; i<5; i++) Command.send(a,"p"+i);
+      for (int i=0; i<50 && published.size() < 5; i++) sleep(10);
+      assertThat(published,is(Arrays.asList("p0","p1","p2","p3","p4")));
+      // Cancelling the subscription withdraws the receive still pending
+      subscriptions.get(0).cancel();
+      sleep(100);
+      new Thread(tg,() -> Command.send(a,"after cancel"),"sender").start();
+      assertThat(Command.receive(b),is("after cancel"));
+      assertThat(published.size(),is(5));
+
+      // A shared memory channel cannot be exported
+      ChannelServer server = ChannelServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+      assertThrows(IllegalArgumentException.class, () -> server.export("shared",a,Codec.strings()));
+      server.close();
+
+      a.close();
+      assertTrue(b.isClosed());
+      assertThrows(ChannelClosedException.class, () -> Command.receive(b));
+    } finally {
+      Files.delete(file);
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_admission_policies() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("bounded");
+    SynchronousChannel<Integer> other = new SynchronousChannel<Integer>("other");
+    AtomicInteger overloaded = new AtomicInteger();
+    List<Thread> senders = new ArrayList<Thread>();
+
+    // Reject newest: a send over a full channel fails at once
+    ch.setAdmissionPolicy(AdmissionPolicy.rejectNewest(2));
+    for (int i=1; i<=2; i++) senders.add(overloadableSend(ch,i,overloaded));
+    while (ch.snapshot().getPendingSenders() < 2) sleep(10);
+    assertThrows(ChannelOverloadedException.class, () -> Command.send(ch,3));
+
+    // A select does not consider a full channel
+    Thread selector = new Thread(tg, () -> Command.select(Arrays.<Action<?,Integer>>asList(Action.send(ch,3),Action.send(other,4))));
+    selector.start();
+    while (other.snapshot().getPendingSenders() == 0) sleep(10);
+    assertThat(Command.receive(other),is(4));
+    selector.join();
+    assertThrows(ChannelOverloadedException.class,
+                 () -> Command.select(Arrays.<Action<?,Integer>>asList(Action.send(ch,3))));
+    assertThat(Command.receive(ch) + Command.receive(ch),is(3));
+    for (Thread sender : senders) sender.join();
+    assertThat(ch.snapshot().getRejectedOffers(),is(3L));
+
+    // Reject oldest: the waiting sender is rejected to make room
+    ch.setAdmissionPolicy(AdmissionPolicy.rejectOldest(1));
+    Thread oldest = overloadableSend(ch,1,overloaded);
+    while (ch.snapshot().getPendingSenders() < 1) sleep(10);
+    Thread newest = overloadableSend(ch,2,overloaded);
+    oldest.join();
+    assertThat(overloaded.get(),is(1));
+    assertThat(Command.receive(ch),is(2));
+    newest.join();
+
+    // Latency target: a sender waiting for longer than the target is rejected
+    ch.setAdmissionPolicy(AdmissionPolicy.latencyTarget(Duration.ofMillis(50)));
+    Thread late = overloadableSend(ch,1,overloaded);
+    while (ch.snapshot().getPendingSenders() < 1) sleep(10);
+    sleep(100);
+    Thread timely = overloadableSend(ch,2,overloaded);
+    late.join();
+    assertThat(overloaded.get(),is(2));
+    assertThat(Command.receive(ch),is(2));
+    timely.join();
+
+    assertThat(raisedException,is(0));
+  }
+
+  private Thread overloadableSend(SynchronousChannel<Integer> ch, int value, AtomicInteger overloaded) {
+    Thread sender = new Thread(tg, () -> {
+        try { Command.send(ch,value); }
+        catch (ChannelOverloadedException exc) { overloaded.incrementAndGet(); }
+    });
+    sender.start();
+    return sender;
+  }
+
+
+  @Test
+  public void test_select_claims() throws Exception {
+    SynchronousChannel<Integer> ch0 = new SynchronousChannel<Integer>("ch0");
+    SynchronousChannel<Integer> ch1 = new SynchronousChannel<Integer>("ch1");
+    SynchronousChannel<Integer> ch2 = new SynchronousChannel<Integer>("ch2");
+    Thread sender1 = new Thread(tg, () -> Command.send(ch1,10));
+    Thread sender2 = new Thread(tg, () -> Command.send(ch2,20));
+    sender1.start();
+    sender2.start();
+    while (ch1.snapshot().getPendingSenders() == 0 || ch2.snapshot().getPendingSenders() == 0) sleep(10);
+
+    // A waiting sender is claimed only if the guard accepts its value
+    assertThat(Command.prioritySelect(Arrays.<Action<?,Integer>>asList(Action.receive(ch0),
+                                                                       Action.receiveWithGuard(ch1, v -> v > 10),
+                                                                       Action.receive(ch2))),is(20));
+    assertThat(Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch0),Action.receive(ch1))),is(10));
+    sender1.join();
+    sender2.join();
+
+    // A select sender is synchronized with through lock downs
+    Thread selector = new Thread(tg, () -> Command.select(Arrays.<Action<?,Integer>>asList(Action.send(ch0,0),Action.send(ch1,1))));
+    selector.start();
+    while (ch0.snapshot().getPendingSenders() == 0) sleep(10);
+    assertThat(Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch0),Action.receive(ch2))),is(0));
+    selector.join();
+
+    // An interrupted select does not claim
+    Thread sender0 = new Thread(tg, () -> Command.send(ch0,1));
+    sender0.start();
+    while (ch0.snapshot().getPendingSenders() == 0) sleep(10);
+    Thread.currentThread().interrupt();
+    assertThrows(InterruptedException.class,
+                 () -> Command.selectInterruptibly(Arrays.<Action<?,Integer>>asList(Action.receive(ch0))));
+    assertThat(Command.receive(ch0),is(1));
+    sender0.join();
+
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_inbox_contention() throws Exception {
+    final int n = 2000;
+    final int pairs = 8;
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("contended");
+    SynchronousChannel<Integer> idle = new SynchronousChannel<Integer>("idle");
+
+    // Selects offer and cancel on the channel all the time, so that the process applying
+    // the requests of the inbox hands over to others; no request is lost meanwhile
+    AtomicInteger sum = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<pairs; i++) {
+      threads.add(new Thread(tg,() -> { for (int j=0; j<n; j++) Command.send(ch,1); },"sender"+i));
+      threads.add(new Thread(tg,() -> {
+          List<Action<?,Integer>> receives = Arrays.<Action<?,Integer>>asList(Action.receive(ch),Action.receive(idle));
+          for (int j=0; j<n; j++) sum.addAndGet(Command.select(receives));
+      },"receiver"+i));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    assertThat(sum.get(),is(pairs*n));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_abandoned_offers_purged() throws Exception {
+    final int n = 40;
+    SynchronousChannel<Object> rare = new SynchronousChannel<Object>("rare");
+    SynchronousChannel<Object> busy = new SynchronousChannel<Object>("busy");
+    List<WeakReference<Object>> values = new ArrayList<WeakReference<Object>>();
+    // Every select offers a value over rare, and synchronizes over busy
+    Thread sender = new Thread(tg, () -> {
+        for (int i=0; i<n; i++) {
+          while (rare.snapshot().getPendingSenders() == 0) sleep(1);
+          Command.send(busy,i);
+        }
+    });
+    sender.start();
+    for (int i=0; i<n; i++) {
+      Object value = new Object();
+      values.add(new WeakReference<Object>(value));
+      Command.select(Arrays.<Action<?,Object>>asList(Action.send(rare,value),Action.receive(busy)));
+    }
+    sender.join();
+
+    // The selects have the offers they left on rare purged, but the last few
+    for (int i=0; i<10 && retained(values) >= 16; i++) {
+      System.gc();
+      sleep(10);
+    }
+    assertThat(retained(values),lessThan(16));
+
+    // Any synchronization over rare purges the rest
+    Thread plain = new Thread(tg, () -> Command.send(rare,"plain"));
+    plain.start();
+    assertThat(Command.receive(rare),is("plain"));
+    plain.join();
+    for (int i=0; i<10 && retained(values) > 0; i++) {
+      System.gc();
+      sleep(10);
+    }
+    assertThat(retained(values),is(0));
+    assertThat(raisedException,is(0));
+  }
+
+  private static int retained(List<WeakReference<Object>> values) {
+    int retained = 0;
+    for (WeakReference<Object> value : values)
+      if (value.get() != null) retained++;
+    return retained;
+  }
+
+
+  @Test
+  public void test_channel_ids() throws Exception {
+    final int n = 5000;
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<4; i++)
+      threads.add(new Thread(tg, () -> { for (int j=0; j<n; j++) ids.add(new SynchronousChannel<Integer>().getId()); }));
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    assertThat(ids.size(),is(4*n));
+
+    // Channels created in one thread are numbered in order; their queues are created on demand
+    SynchronousChannel<Integer> first = new SynchronousChannel<Integer>();
+    SynchronousChannel<Integer> second = new SynchronousChannel<Integer>();
+    assertTrue(first.compareTo(second) < 0);
+    assertThat(second.snapshot().getPendingSenders(),is(0));
+    Thread sender = new Thread(tg, () -> Command.send(second,1));
+    sender.start();
+    while (second.snapshot().getPendingSenders() == 0) sleep(10);
+    assertThat(Command.receive(second),is(1));
+    sender.join();
+    second.close();
+    assertThat(second.snapshot().getPendingReceivers(),is(0));
+
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_processes() throws Exception {
+    final int n = 1000;
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("procs");
+    SynchronousChannel<Proc> exits = new SynchronousChannel<Proc>("exits");
+
+    Proc sender = Proc.spawn("sender", () -> { for (int i=0; i<10; i++) Command.send(ch,i); });
+    sender.monitor(exits);
+    for (int i=0; i<10; i++) assertThat(Command.receive(ch),is(i));
+    sender.join();
+    assertFalse(sender.isAlive());
+    assertNull(sender.getFailure());
+    assertThat(sender.getSynchronizations(),is(10L));
+    assertTrue(Command.receive(exits) == sender);
+
+    // Processes sharing two threads keep their own mailboxes
+    ProcGroup group = ProcGroup.fixed("pool",2);
+    int queues = JMsgProcess.getQueues();
+    AtomicInteger sum = new AtomicInteger();
+    for (int i=0; i<n; i++) {
+      int value = i;
+      group.spawn(() -> Command.send(ch,value));
+      group.spawn(() -> sum.addAndGet(Command.receive(ch)));
+    }
+    group.join();
+    assertThat(sum.get(),is(n*(n-1)/2));
+    assertThat(group.size(),is(0));
+    assertThat(group.getSpawned(),is(2L*n));
+    assertThat(group.getExited(),is(2L*n));
+    assertThat(group.getSynchronizations(),is(2L*n));
+    assertThat(JMsgProcess.getQueues(),is(queues));
+
+    // A failure ends the process, not the thread; an interrupt reaches only its process
+    Proc failed = group.spawn("failed", () -> { throw new IllegalStateException(); });
+    failed.join();
+    assertTrue(failed.getFailure() instanceof IllegalStateException);
+    Proc blocked = group.spawn("blocked", () -> {
+        try { Command.executeInterruptibly(Action.receive(ch)); }
+        catch (InterruptedException exc) { sum.set(-1); }
+    });
+    sleep(100);
+    blocked.interrupt();
+    blocked.join();
+    assertThat(sum.get(),is(-1));
+    Proc last = group.spawn(() -> Command.send(ch,1));
+    assertThat(Command.receive(ch),is(1));
+    last.join();
+    assertNull(last.getFailure());
+    last.monitor(exits);
+    assertTrue(Command.receive(exits) == last);
+    group.shutdown();
+
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_interrupt_stress() throws Exception {
+    final int channels = 4;
+    List<SynchronousChannel<Integer>> chs = new ArrayList<SynchronousChannel<Integer>>();
+    for (int i=0; i<channels; i++) chs.add(new SynchronousChannel<Integer>("ch"+i));
+    Set<Integer> sent = ConcurrentHashMap.newKeySet();
+    Set<Integer> received = ConcurrentHashMap.newKeySet();
+    AtomicInteger values = new AtomicInteger();
+    AtomicInteger duplicates = new AtomicInteger();
+    AtomicInteger failures = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(16);
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    Random random = new Random(42);
+
+    class Sender implements Runnable {
+      int kind;
+      Sender(int kind) { this.kind = kind; }
+      public void run() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            int value = values.incrementAndGet();
+            SynchronousChannel<Integer> ch1 = chs.get(random.nextInt(channels));
+            SynchronousChannel<Integer> ch2 = chs.get(random.nextInt(channels));
+            if (kind == 0) Command.executeInterruptibly(Action.send(ch1,value));
+            else Command.selectInterruptibly(Arrays.asList(Action.send(ch1,value),Action.send(ch2,value)));
+            sent.add(value);
+          }
+        } catch (InterruptedException exc) { }
+        catch (RuntimeException exc) { failures.incrementAndGet(); }
+      }
+    }
+
+    class Receiver implements Runnable {
+      int kind;
+      Receiver(int kind) { this.kind = kind; }
+      public void run() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            SynchronousChannel<Integer> ch1 = chs.get(random.nextInt(channels));
+            SynchronousChannel<Integer> ch2 = chs.get(random.nextInt(channels));
+            int value;
+            if (kind == 0) value = Command.executeInterruptibly(Action.receive(ch1));
+            else value = Command.selectInterruptibly(Arrays.asList(Action.receive(ch1),Action.receive(ch2)));
+            if (!received.add(value)) duplicates.incrementAndGet();
+          }
+        } catch (InterruptedException exc) { }
+        catch (RuntimeException exc) { failures.incrementAndGet(); }
+      }
+    }
+
+    long end = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < end) {
+      tasks.add(pool.submit(new Sender(random.nextInt(2))));
+      tasks.add(pool.submit(new Receiver(random.nextInt(2))));
+      sleep(random.nextInt(5));
+      for (int i=0; i<2 && !tasks.isEmpty(); i++)
+        tasks.remove(random.nextInt(tasks.size())).cancel(true);
+    }
+    pool.shutdownNow();
+    assertThat(pool.awaitTermination(10,TimeUnit.SECONDS),is(true));
+
+    // Exactly the values whose send completed have been received, once
+    assertThat(failures.get(),is(0));
+    assertThat(duplicates.get(),is(0));
+    assertThat(received,is(sent));
+    assertThat(sent.size(),greaterThan(0));
+
+    // No offer has leaked, and no channel is stuck
+    for (SynchronousChannel<Integer> ch : chs) {
+      new Thread(tg,() -> Command.send(ch,-1),"sender").start();
+      assertThat(Command.receive(ch),is(-1));
+      new Thread(tg,() -> assertThat(Command.receive(ch),is(-2)),"receiver").start();
+      sleep(10);
+      Command.send(ch,-2);
+    }
+    sleep(100);
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_pipeline() throws Exception {
+    final int values = 1000;
+    List<Integer> source = new ArrayList<Integer>();
+    for (int i=0; i<values; i++) source.add(i);
+
+    for (boolean ordered : new boolean[] { true, false }) {
+      List<String> results = Collections.synchronizedList(new ArrayList<String>());
+      Pipeline pipeline =
+        Pipeline.from(source)
+        .stage("square",(Integer v) -> { sleep(ThreadLocalRandom.current().nextInt(2)); return v*v; },4)
+        .stage("format",v -> Integer.toString(v),2)
+        .ordered(ordered)
+        .to(results::add)
+        .start();
+      pipeline.await();
+
+      List<String> expected = new ArrayList<String>();
+      for (int i=0; i<values; i++) expected.add(Integer.toString(i*i));
+      if (ordered) assertThat(results,is(expected));
+      else assertThat(results,containsInAnyOrder(expected.toArray()));
+      assertThat(pipeline.metrics().size(),is(2));
+      for (Pipeline.StageMetrics stage : pipeline.metrics())
+        assertThat(stage.getProcessed(),is((long) values));
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_pipeline_slow_value() throws Exception {
+    final int values = 1000;
+    AtomicInteger pulled = new AtomicInteger();
+    CountDownLatch slow = new CountDownLatch(1);
+    Iterable<Integer> source = () -> new Iterator<Integer>() {
+        int next = 0;
+        public boolean hasNext() { return next < values; }
+        public Integer next() { pulled.incrementAndGet(); return next++; }
+      };
+    List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+    Pipeline pipeline =
+      Pipeline.from(source)
+      .stage("slow",(Integer v) -> {
+          if (v == 0) {
+            try { slow.await(); } catch (InterruptedException exc) { }
+          }
+          return v;
+        },3)
+      .stage("copy",v -> v,2)
+      .to(results::add)
+      .start();
+
+    // The values after the slow one wait for credits, rather than piling up before the sink
+    sleep(200);
+    assertThat(pulled.get(),lessThanOrEqualTo(5));
+    assertThat(results.size(),is(0));
+    slow.countDown();
+    pipeline.await();
+    assertThat(results.size(),is(values));
+    for (int i=0; i<values; i++) assertThat(results.get(i),is(i));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_pipeline_channels() throws Exception {
+    SynchronousChannel<Integer> in = new SynchronousChannel<Integer>("in");
+    SynchronousChannel<Integer> out = new SynchronousChannel<Integer>("out");
+    SynchronousChannel<Integer> control = new SynchronousChannel<Integer>("control");
+    Pipeline pipeline = Pipeline.from(in).stage("double",(Integer v) -> 2*v,3).to(out).start();
+
+    new Thread(tg,() -> {
+        for (int i=0; i<100; i++) Command.send(in,i);
+        Command.send(control,-1);
+        control.close();
+        in.close();
+    },"producer").start();
+
+    // The pipeline output is consumed by a select, until the pipeline closes it
+    int sum = 0;
+    int controls = 0;
+    List<Action<?,Integer>> selectArgs =
+      Arrays.asList(Action.receive(out),Action.receive(control,v -> -1));
+    try {
+      while (true) {
+        int value = Command.select(selectArgs);
+        if (value < 0) controls++;
+        else sum += value;
+      }
+    } catch (ChannelClosedException exc) { }
+    pipeline.await();
+    assertThat(controls,is(1));
+    assertThat(sum,is(2*(99*100/2)));
+
+    // A failing stage cancels the pipeline
+    Pipeline failing = Pipeline.from(Arrays.asList(1,0,2)).stage((Integer v) -> 1/v).to(v -> { }).start();
+    assertThrows(RuntimeException.class, () -> failing.await());
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_timers() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+
+    // Timeout of a select
+    long start = System.nanoTime();
+    int value = Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch),Action.receive(Channels.after(Duration.ofMillis(100)),t -> -1)));
+    assertThat(value,is(-1));
+    assertThat(System.nanoTime() - start,greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100)));
+
+    // The other action is chosen; the timer later expires without a receiver
+    SynchronousChannel<java.time.Instant> timeout = Channels.after(Duration.ofMillis(50));
+    new Thread(tg,() -> Command.send(ch,1),"sender").start();
+    value = Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch),Action.receive(timeout,t -> -1)));
+    assertThat(value,is(1));
+    sleep(100);
+    // ... and its value waits on the channel
+    assertNotNull(Command.receive(timeout));
+
+    // A ticker drops the ticks of a slow receiver
+    SynchronousChannel<java.time.Instant> ticker = Channels.ticker(Duration.ofMillis(10));
+    for (int i=0; i<5; i++) Command.receive(ticker);
+    sleep(100);
+    Command.receive(ticker);
+    ticker.close();
+    assertThrows(ChannelClosedException.class, () -> Command.receive(ticker));
+
+    // A heartbeat loop
+    SynchronousChannel<java.time.Instant> heartbeat = Channels.ticker(Duration.ofMillis(5));
+    new Thread(tg,() -> { for (int i=0; i<10; i++) { sleep(7); Command.send(ch,i); } },"sender").start();
+    int received = 0;
+    int beats = 0;
+    List<Action<?,Integer>> selectArgs = Arrays.asList(Action.receive(ch),Action.receive(heartbeat,t -> -1));
+    while (received < 10) {
+      if (Command.select(selectArgs) < 0) beats++;
+      else received++;
+    }
+    heartbeat.close();
+    assertThat(beats,greaterThan(0));
+    assertThat(raisedException,is(0));
+  }
+
+  @Test
+  public void test_timers_cancelled() throws Exception {
+    final int n = 1000;
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("ch");
+    TimingWheel wheel = TimingWheel.getInstance();
+    int live = wheel.liveTimers();
+
+    // A timeout loop leaves no timer behind when the other action is chosen
+    new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(ch,i); },"sender").start();
+    for (int i=0; i<n; i++) {
+      int value = Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch),
+                                                                  Action.receive(Channels.after(Duration.ofMinutes(1)),t -> -1)));
+      assertThat(value,is(i));
+    }
+    assertThat(wheel.liveTimers(),lessThanOrEqualTo(live));
+
+    // The timer of an abandoned timeout runs again for a later receive, to the same deadline
+    long start = System.nanoTime();
+    SynchronousChannel<java.time.Instant> timeout = Channels.after(Duration.ofMillis(100));
+    new Thread(tg,() -> { sleep(20); Command.send(ch,1); },"sender").start();
+    assertThat(Command.select(Arrays.<Action<?,Integer>>asList(Action.receive(ch),Action.receive(timeout,t -> -1))),is(1));
+    assertThat(wheel.liveTimers(),lessThanOrEqualTo(live));
+    assertNotNull(Command.receive(timeout));
+    long elapsed = System.nanoTime() - start;
+    assertThat(elapsed,greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(95)));
+    assertThat(elapsed,lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+
+    // Interrupting a receive cancels the timer too
+    SynchronousChannel<java.time.Instant> never = Channels.after(Duration.ofMinutes(1));
+    Thread.currentThread().interrupt();
+    assertThrows(InterruptedException.class,() -> Command.executeInterruptibly(Action.receive(never)));
+    assertThat(wheel.liveTimers(),lessThanOrEqualTo(live));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_many_timers() throws Exception {
+    int n = 100000;
+    List<SynchronousChannel<java.time.Instant>> timers = new ArrayList<SynchronousChannel<java.time.Instant>>();
+    Random random = new Random(1);
+    for (int i=0; i<n; i++)
+      timers.add(Channels.after(Duration.ofMillis(200+random.nextInt(60*60*1000))));
+    // The timers still running are cancelled
+    for (SynchronousChannel<java.time.Instant> timer : timers) timer.close();
+
+    // Timers expiring together
+    List<SynchronousChannel<java.time.Instant>> expiring = new ArrayList<SynchronousChannel<java.time.Instant>>();
+    for (int i=0; i<n; i++)
+      expiring.add(Channels.after(Duration.ofMillis(100+random.nextInt(400))));
+    for (SynchronousChannel<java.time.Instant> timer : expiring) assertNotNull(Command.receive(timer));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_channel_snapshot() throws Exception {
+    ChannelRegistry.enable();
+    try {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("snapshot");
+      Set<Long> senderIds = ConcurrentHashMap.newKeySet();
+      for (int i=0; i<3; i++) {
+        int value = i;
+        new Thread(tg,() -> { senderIds.add(Thread.currentThread().getId()); Command.send(ch,value); },"sender"+i).start();
+      }
+      sleep(100);
+
+      ChannelStats stats = ch.snapshot();
+      assertThat(stats.getChannelName(),is("snapshot"));
+      assertThat(stats.getPendingSenders(),is(3));
+      assertThat(stats.getPendingReceivers(),is(0));
+      assertThat(stats.isLockDownInProgress(),is(false));
+      for (long id : stats.getSenderIds()) assertTrue(senderIds.contains(id));
+      assertThat(stats.getOldestOfferAgeNanos(),greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+      assertTrue(ChannelRegistry.channels().contains(ch));
+
+      for (int i=0; i<3; i++) Command.receive(ch);
+      stats = ch.snapshot();
+      assertThat(stats.getPendingSenders(),is(0));
+      assertThat(stats.getOldestOfferAgeNanos(),is(0L));
+
+      // The registry does not keep channels alive
+      for (int i=0; i<1000; i++) new SynchronousChannel<Integer>("garbage");
+      for (int i=0; i<10 && ChannelRegistry.channels().size() > 1; i++) {
+        System.gc();
+        sleep(10);
+      }
+      assertThat(ChannelRegistry.channels().size(),lessThan(1000));
+    } finally {
+      ChannelRegistry.disable();
+    }
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_buffer_channel() throws Exception {
+    BufferPool pool = new BufferPool(64,true,8);
+    BufferChannel frames = new BufferChannel("frames");
+    int n = 10000;
+    AtomicInteger sum0 = new AtomicInteger();
+    AtomicInteger sum1 = new AtomicInteger();
+
+    // Receivers peek at the type in the header of the frames
+    List<Thread> receivers = new ArrayList<Thread>();
+    for (int type=0; type<2; type++) {
+      short myType = (short) type;
+      AtomicInteger sum = type == 0 ? sum0 : sum1;
+      Thread receiver = new Thread(tg,() -> {
+          for (int i=0; i<n/2; i++) {
+            PooledBuffer frame = Command.execute(Action.receiveWithGuard(frames,f -> f.peekShort(0) == myType));
+            assertTrue(frame.isOwned());
+            frame.buffer().getShort();
+            sum.addAndGet(frame.buffer().getInt());
+            frame.release();
+            assertThrows(IllegalStateException.class, () -> frame.buffer());
+          }
+      },"receiver"+type);
+      receiver.start();
+      receivers.add(receiver);
+    }
+
+    Thread sender = new Thread(tg,() -> {
+        for (int i=0; i<n; i++) {
+          PooledBuffer frame = pool.acquire();
+          frame.buffer().putShort((short) (i % 2)).putInt(i).flip();
+          Command.send(frames,frame);
+          // The receiver owns the frame
+          assertThrows(IllegalStateException.class, () -> frame.buffer());
+        }
+    },"sender");
+    sender.start();
+    sender.join();
+    for (Thread receiver : receivers) receiver.join();
+    assertThat(sum0.get() + sum1.get(),is((n-1)*n/2));
+    assertThat(sum1.get() - sum0.get(),is(n/2));
+    // The buffers are recycled
+    assertThat(pool.getAllocated(),lessThan(100L));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_mailbox_coalescing() throws Exception {
+    SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>();
+    Mailbox mailbox = new Mailbox();
+    long timestamp = mailbox.nextSelectTimestamp();
+    Offer<Integer,Integer> offer = new Offer<Integer,Integer>(Action.receive(ch),timestamp,0);
+    Offer<Integer,Integer> other = new Offer<Integer,Integer>(Action.receive(ch),timestamp,1);
+
+    // Duplicate notifications are queued once
+    mailbox.put(LockDownMessage.newLockDownMessage(offer));
+    mailbox.put(LockDownMessage.newLockDownMessage(offer));
+    mailbox.put(LockDownMessage.newLockDownMessage(other));
+    assertThat(mailbox.getDiscarded(),is(1L));
+
+    // Superseded lock downs are purged, and no longer queued
+    Offer<Integer,Integer> next = new Offer<Integer,Integer>(Action.receive(ch),mailbox.nextSelectTimestamp(),0);
+    assertTrue(mailbox.isEmpty());
+    mailbox.put(LockDownMessage.newLockDownMessage(other));
+    mailbox.put(AbortMessage.newAbortMessage(offer));
+    mailbox.put(LockDownMessage.newLockDownMessage(next));
+    assertThat(mailbox.getDiscarded(),is(4L));
+    assertThat(mailbox.take(),instanceOf(AbortMessage.class));
+    assertThat(mailbox.take().getOffer(),is(next));
+    assertTrue(mailbox.isEmpty());
+
+    // A lock down sent after its offer has been re-armed is not a duplicate
+    timestamp = mailbox.nextSelectTimestamp();
+    Offer<Integer,Integer> rearmed = new Offer<Integer,Integer>(Action.receive(ch),timestamp,0);
+    mailbox.put(LockDownMessage.newLockDownMessage(rearmed));
+    rearmed.setTimestamp(timestamp+1);
+    mailbox.put(LockDownMessage.newLockDownMessage(rearmed));
+    mailbox.put(LockDownMessage.newLockDownMessage(rearmed));
+    assertThat(mailbox.getDiscarded(),is(5L));
+    assertThat(mailbox.take().getOffer(),is(rearmed));
+    assertThat(mailbox.take().getOffer(),is(rearmed));
+    assertTrue(mailbox.isEmpty());
+
+    // Many messages (beyond the initial capacity) keep their order
+    for (int i=0; i<100; i++)
+      mailbox.put(CommitMessage.newCommitMessage(new Offer<Integer,Integer>(Action.receive(ch),i)));
+    for (int i=0; i<100; i++) assertThat(mailbox.take().getOffer().getOriginatingId(),is((long) i));
+
+    // Conflicting selects: every select can synchronize over every channel
+    int n = 8;
+    int rounds = 500;
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    for (int i=0; i<n; i++) channels.add(new SynchronousChannel<Integer>());
+    AtomicInteger received = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<n; i++) {
+      SynchronousChannel<Integer> mine = channels.get(i);
+      threads.add(new Thread(tg,() -> { for (int j=0; j<rounds; j++) Command.send(mine,j); },"sender"+i));
+      threads.add(new Thread(tg,() -> {
+          List<Action<?,Integer>> selectArgs = new ArrayList<Action<?,Integer>>();
+          for (SynchronousChannel<Integer> channel : channels) selectArgs.add(Action.receive(channel));
+          for (int j=0; j<rounds; j++) {
+            Command.select(selectArgs);
+            received.incrementAndGet();
+          }
+      },"selector"+i));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    assertThat(received.get(),is(n*rounds));
+    assertThat(raisedException,is(0));
+  }
+
+
+  @Test
+  public void test_journal() throws Exception {
+    Path file = Files.createTempFile("jmsg",".journal");
+    try {
+      Journal journal = Journal.start(file,1 << 20,true);
+      List<Integer> recorded = runJournaled();
+      journal.close();
+
+      List<Journal.Record> records = Journal.read(file);
+      assertThat(records.size(),is(recorded.size()));
+      for (int i=0; i<records.size(); i++) {
+        Journal.Record record = records.get(i);
+        assertThat(record.getChannelName(),is("journal-ch"+record.getReceiveIndex()));
+        assertThat(record.getSenderName(),is("journal-producer"+record.getReceiveIndex()));
+        assertThat(record.getReceiverName(),is("journal-consumer"));
+        assertThat(record.getSendIndex(),is(-1));
+        assertThat(record.getValueHash(),is(recorded.get(i).hashCode()));
+      }
+
+      // The random choices of the consumer are replayed
+      Journal.replay(file);
+      List<Integer> replayed = runJournaled();
+      assertTrue(Journal.isReplayComplete());
+      assertThat(Journal.getDivergences(),is(0L));
+      assertThat(replayed,is(recorded));
+    } finally {
+      Journal.stopReplay();
+      Files.deleteIfExists(file);
+    }
+    assertThat(raisedException,is(0));
+  }
+
+  @Test
+  public void test_journal_wrapped() throws Exception {
+    final int producers = 4;
+    final int n = 5000;
+    Path file = Files.createTempFile("jmsg",".journal");
+    try {
+      // A journal of two chunks wraps around many times
+      Journal journal = Journal.start(file,8 << 10,true);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i=0; i<producers; i++) {
+        SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("wrap-ch"+i);
+        int base = 1000000*i;
+        threads.add(new Thread(tg,() -> { for (int j=0; j<n; j++) Command.send(ch,base+j); },"wrap-producer"+i));
+        threads.add(new Thread(tg,() -> { for (int j=0; j<n; j++) Command.receive(ch); },"wrap-consumer"+i));
+      }
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+      journal.close();
+
+      // Every record left is whole, and its names have not been overwritten
+      List<Journal.Record> records = Journal.read(file);
+      assertTrue(records.size() > 0);
+      Set<Long> sequences = new HashSet<Long>();
+      for (Journal.Record record : records) {
+        assertTrue(sequences.add(record.getSequence()));
+        int producer = record.getValueHash() / 1000000;
+        assertThat(record.getChannelName(),is("wrap-ch"+producer));
+        assertThat(record.getSenderName(),is("wrap-producer"+producer));
+        assertThat(record.getReceiverName(),is("wrap-consumer"+producer));
+      }
+      assertThrows(IOException.class, () -> Journal.replay(file));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+    assertThat(raisedException,is(0));
+  }
+
+  // Two producers send over their channels; a consumer chooses randomly between them
+  private List<Integer> runJournaled() throws InterruptedException {
+    int n = 200;
+    List<SynchronousChannel<Integer>> channels = new ArrayList<SynchronousChannel<Integer>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<2; i++) {
+      SynchronousChannel<Integer> ch = new SynchronousChannel<Integer>("journal-ch"+i);
+      int base = 1000*i;
+      channels.add(ch);
+      threads.add(new Thread(tg,() -> { for (int j=0; j<n; j++) Command.send(ch,base+j); },"journal-producer"+i));
+    }
+    List<Integer> received = new ArrayList<Integer>();
+    threads.add(new Thread(tg,() -> {
+        List<Action<?,Integer>> selectArgs = Arrays.asList(Action.receive(channels.get(0)),Action.receive(channels.get(1)));
+        for (int j=0; j<2*n; j++) received.add(Command.fairSelect(selectArgs));
+    },"journal-consumer"));
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return received;
+  }
+
+
+  @Test
+  public void test_join() throws Exception {
+    int n = 500;
+    SynchronousChannel<Integer> orders = new SynchronousChannel<Integer>("orders");
+    SynchronousChannel<Integer> quotes = new SynchronousChannel<Integer>("quotes");
+    SynchronousChannel<Integer> credits = new SynchronousChannel<Integer>("credits");
+    SynchronousChannel<Integer> spare = new SynchronousChannel<Integer>("spare");
+
+    List<Thread> producers = new ArrayList<Thread>();
+    producers.add(new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(orders,i); },"orders"));
+    producers.add(new Thread(tg,() -> { for (int i=0; i<n; i++) Command.send(credits,1); },"credits"));
+
+    // Joiners list the channels in different orders
+    AtomicInteger joins = new AtomicInteger();
+    AtomicInteger orderSum = new AtomicInteger();
+    AtomicInteger creditSum = new AtomicInteger();
+    // Quotes are offered in a select, competing with another consumer
+    producers.add(new Thread(tg,() -> {
+        for (int i=0; joins.get() < n; i++)
+          Command.select(Arrays.<Action<?,Integer>>asList(Action.send(quotes,i),Action.send(spare,i)));
+    },"quotes"));
+    Thread spareConsumer = new Thread(tg,() -> {
+        try {
+          while (true) Command.receive(spare);
+        } catch (ChannelClosedException exc) { }
+    },"spare");
+    spareConsumer.start();
+
+    List<Thread> joiners = new ArrayList<Thread>();
+    for (int j=0; j<4; j++) {
+      boolean reversed = j % 2 == 1;
+      joiners.add(new Thread(tg,() -> {
+          List<Action<?,Integer>> actions =
+            Arrays.asList(Action.receive(orders),Action.receive(quotes),Action.receive(credits));
+          if (reversed) actions = Arrays.asList(actions.get(2),actions.get(1),actions.get(0));
+          try {
+            while (true) {
+              List<Integer> taken = Command.join(actions);
+              assertThat(taken.size(),is(3));
+              joins.incrementAndGet();
+              orderSum.addAndGet(taken.get(reversed ? 2 : 0));
+              creditSum.addAndGet(taken.get(reversed ? 0 : 2));
+            }
+          } catch (ChannelClosedException exc) { }
+      },"joiner"+j));
+    }
+    for (Thread thread : joiners) thread.start();
+    for (Thread thread : producers) thread.start();
+    for (Thread thread : producers) thread.join();
+    orders.close();
+    quotes.close();
+    credits.close();
+    spare.close();
+    for (Thread thread : joiners) thread.join();
+    spareConsumer.join();
+
+    assertThat(joins.get(),is(n));
+    assertThat(orderSum.get(),is((n-1)*n/2));
+    assertThat(creditSum.get(),is(n));
+    assertThrows(IllegalArgumentException.class,
+                 () -> Command.join(Arrays.<Action<?,Integer>>asList(Action.receive(orders),Action.receive(orders))));
+    assertThat(raisedException,is(0));
+  }
+
+
   @BeforeEach
   public void setup() throws Exception {
     raisedException = 0;